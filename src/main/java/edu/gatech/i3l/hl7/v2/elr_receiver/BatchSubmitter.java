@@ -0,0 +1,277 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+
+/*
+ * Collects entries submitted by any thread (HL7 connections, queue drain workers) and
+ * sends them together when maxEntries are waiting, or lingerMillis after the first of
+ * them was submitted. Batches are sent by a small pool of sender threads.
+ *
+ * A subclass encodes and POSTs a batch (post()) and reads the outcome of each entry from
+ * the response (outcomes()). If the POST itself fails, every entry in it gets that
+ * status. A missing outcome is 502, so the entry is queued and retried.
+ *
+ * Callers wait for an outcome for at most timeoutMillis. An entry that has no outcome by
+ * then is handled as not delivered (and queued), although it may still go out with its
+ * batch.
+ */
+public abstract class BatchSubmitter<T> {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(BatchSubmitter.class.getName());
+
+	// Status and response body of one entry.
+	public static class Outcome {
+		private final int status;
+		private final String body;
+
+		public Outcome(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		// -1 if the server could not be reached.
+		public int getStatus() {
+			return status;
+		}
+
+		public String getBody() {
+			return body;
+		}
+
+		public boolean isSuccess() {
+			return status == 200 || status == 201;
+		}
+	}
+
+	private static class Pending<T> {
+		final T entry;
+		final CompletableFuture<Outcome> outcome = new CompletableFuture<Outcome>();
+
+		Pending(T entry) {
+			this.entry = entry;
+		}
+	}
+
+	private final String name;
+	protected final String url;
+	private final int maxEntries;
+	private final long lingerNanos;
+	private final long timeoutMillis;
+
+	private final Object lock = new Object();
+	private List<Pending<T>> pending = new ArrayList<Pending<T>>();
+	private long firstSubmitted = 0L;
+	private volatile boolean running = true;
+
+	private final Thread collector;
+	private final ExecutorService senders;
+
+	// Metrics
+	private final AtomicLong batches = new AtomicLong(0L);
+	private final AtomicLong entries = new AtomicLong(0L);
+	private final AtomicLong failedEntries = new AtomicLong(0L);
+
+	// name is for the logs and the thread names, eg. "FHIR batch".
+	protected BatchSubmitter(String name, String url, int maxEntries, long lingerMillis, int senders,
+			long timeoutMillis) {
+		this.name = name;
+		this.url = url;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, lingerMillis));
+		this.timeoutMillis = Math.max(1L, timeoutMillis);
+
+		String threadName = name.toLowerCase().replace(' ', '-');
+		this.senders = Executors.newFixedThreadPool(Math.max(1, senders),
+				new QueueDrainService.DaemonThreadFactory(threadName + "-send"));
+		collector = new QueueDrainService.DaemonThreadFactory(threadName).newThread(new Runnable() {
+			public void run() {
+				collect();
+			}
+		});
+	}
+
+	// Called by the subclass at the end of its constructor.
+	protected void start() {
+		collector.start();
+	}
+
+	// How long to wait for the outcome of an entry.
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	// Encodes the batch and POSTs it to url.
+	protected abstract ClientResponse post(List<T> batch);
+
+	// Outcomes in the order of the entries. Null if the response has none.
+	protected abstract List<Outcome> outcomes(String response);
+
+	public Future<Outcome> submit(T entry) {
+		Pending<T> submitted = new Pending<T>(entry);
+		synchronized (lock) {
+			if (!running) {
+				submitted.outcome.complete(new Outcome(-1, "Batch submitter stopped"));
+				return submitted.outcome;
+			}
+			if (pending.isEmpty())
+				firstSubmitted = System.nanoTime();
+			pending.add(submitted);
+			lock.notifyAll();
+		}
+		return submitted.outcome;
+	}
+
+	private void collect() {
+		while (running) {
+			final List<Pending<T>> batch;
+			synchronized (lock) {
+				try {
+					while (running && pending.isEmpty())
+						lock.wait();
+					long left;
+					while (running && pending.size() < maxEntries
+							&& (left = lingerNanos - (System.nanoTime() - firstSubmitted)) > 0)
+						TimeUnit.NANOSECONDS.timedWait(lock, left);
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (pending.isEmpty())
+					continue;
+
+				if (pending.size() <= maxEntries) {
+					batch = pending;
+					pending = new ArrayList<Pending<T>>();
+				} else {
+					// The rest already waited, so they go out with the next batch right away.
+					batch = new ArrayList<Pending<T>>(pending.subList(0, maxEntries));
+					pending = new ArrayList<Pending<T>>(pending.subList(maxEntries, pending.size()));
+				}
+			}
+
+			try {
+				senders.execute(new Runnable() {
+					public void run() {
+						try {
+							send(batch);
+						} catch (RuntimeException e) {
+							LOGGER.error(name + " of " + batch.size() + " failed", e);
+							completeAll(batch, new Outcome(-1, e.getMessage()));
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Stopped while the batch was taken. It is queued and retried like the rest.
+				completeAll(batch, new Outcome(-1, "Batch submitter stopped"));
+			}
+		}
+	}
+
+	private void send(List<Pending<T>> batch) {
+		batches.incrementAndGet();
+		entries.addAndGet(batch.size());
+
+		List<T> sent = new ArrayList<T>(batch.size());
+		for (Pending<T> entry : batch) {
+			sent.add(entry.entry);
+		}
+
+		int status;
+		String response = null;
+		try {
+			ClientResponse clientResponse = post(sent);
+			status = clientResponse.getStatus();
+			response = clientResponse.getEntity(String.class);
+		} catch (ClientHandlerException e) {
+			LOGGER.error("Failed to connect to " + url + " for " + name + " of " + batch.size() + ": "
+					+ e.getMessage());
+			status = -1;
+		}
+
+		if (status != 200 && status != 201) {
+			LOGGER.error(name + " of " + batch.size() + " failed with " + status);
+			completeAll(batch, new Outcome(status, response));
+			return;
+		}
+
+		List<Outcome> outcomes = outcomes(response);
+		if (outcomes == null) {
+			LOGGER.error(name + " response without results: " + response);
+			completeAll(batch, new Outcome(502, response));
+			return;
+		}
+
+		for (int i = 0; i < batch.size(); i++) {
+			Outcome outcome = i < outcomes.size() ? outcomes.get(i) : null;
+			if (outcome == null)
+				outcome = new Outcome(502, "No result " + i + " in batch response");
+			if (!outcome.isSuccess())
+				failedEntries.incrementAndGet();
+			batch.get(i).outcome.complete(outcome);
+		}
+	}
+
+	private void completeAll(List<Pending<T>> batch, Outcome outcome) {
+		failedEntries.addAndGet(batch.size());
+		for (Pending<T> entry : batch) {
+			entry.outcome.complete(outcome);
+		}
+	}
+
+	// "201 Created" -> 201. 502 if there is no status code.
+	static int parseStatus(String status) {
+		String code = status.trim();
+		int space = code.indexOf(' ');
+		if (space > 0)
+			code = code.substring(0, space);
+		try {
+			return Integer.parseInt(code);
+		} catch (NumberFormatException e) {
+			return 502;
+		}
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getEntries() {
+		return entries.get();
+	}
+
+	public long getFailedEntries() {
+		return failedEntries.get();
+	}
+
+	// Entries that were not sent yet fail with -1, so that they are queued and retried.
+	public void stop() {
+		List<Pending<T>> left;
+		synchronized (lock) {
+			running = false;
+			left = pending;
+			pending = new ArrayList<Pending<T>>();
+			lock.notifyAll();
+		}
+		completeAll(left, new Outcome(-1, "Batch submitter stopped"));
+		senders.shutdown();
+	}
+
+	// Average entries per batch.
+	protected double getEntriesPerBatch() {
+		long count = batches.get();
+		return count == 0 ? 0.0 : (double) entries.get() / count;
+	}
+}
@@ -0,0 +1,175 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.DeadLetterStore;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.DeadLetterStore.Entry;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.DeadLetterStore.Filter;
+
+/*
+ * Sends a selection of dead letters to the controller again, several at a time.
+ * Delivered ones are marked as reprocessed. The others stay as they are and can be
+ * selected again.
+ *
+ * Command line (run from the receiver's working directory, the receiver can keep running):
+ *
+ *   deadletter list      [sender=<MSH-4>] [controlId=<MSH-10>] [reason=<text>]
+ *                        [since=<date or date-time>] [until=<date or date-time>] [all=true]
+ *   deadletter reprocess <same filters> [parallel=<threads>]
+ *
+ * all=true includes dead letters that were already reprocessed.
+ */
+public class DeadLetterReprocessor {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(DeadLetterReprocessor.class.getName());
+
+	static final int DEFAULT_PARALLELISM = 4;
+
+	private final IHL7v2ReceiverApplication myApp;
+	private final DeadLetterStore store;
+	private final int parallelism;
+
+	private final AtomicInteger reprocessed = new AtomicInteger(0);
+	private final AtomicInteger failed = new AtomicInteger(0);
+
+	public DeadLetterReprocessor(IHL7v2ReceiverApplication app, DeadLetterStore store, int parallelism) {
+		this.myApp = app;
+		this.store = store;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public int getReprocessed() {
+		return reprocessed.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public void reprocess(List<Entry> entries) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(parallelism,
+				new QueueDrainService.DaemonThreadFactory("dead-letter"));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(entries.size());
+			for (final Entry entry : entries) {
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						reprocess(entry);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					LOGGER.error("Dead letter reprocessing failed", e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void reprocess(Entry entry) {
+		try {
+			String jsonString = new String(store.read(entry), StandardCharsets.UTF_8);
+			myApp.sendData(new JSONObject(jsonString));
+			store.markReprocessed(entry);
+			reprocessed.incrementAndGet();
+		} catch (DeliveryFailedException e) {
+			LOGGER.error("Dead letter " + entry.getId() + " was not accepted: " + e.getMessage());
+			failed.incrementAndGet();
+		} catch (JSONException e) {
+			LOGGER.error("Dead letter " + entry.getId() + " is not valid JSON: " + e.getMessage());
+			failed.incrementAndGet();
+		} catch (IOException e) {
+			LOGGER.error("Failed to read or update dead letter " + entry.getId(), e);
+			failed.incrementAndGet();
+		} catch (RuntimeException e) {
+			LOGGER.error("Dead letter " + entry.getId() + " could not be sent", e);
+			failed.incrementAndGet();
+		}
+	}
+
+	// The dead-letter command. app must have its endpoints configured.
+	public static void run(String[] args, HL7v2ReceiverApplication<?> app, String qFileName) throws Exception {
+		if (args.length < 2 || !("list".equals(args[1]) || "reprocess".equals(args[1]))) {
+			System.out.println("Usage: deadletter list|reprocess [sender=..] [controlId=..] [reason=..] "
+					+ "[since=..] [until=..] [all=true] [parallel=..]");
+			return;
+		}
+
+		Filter filter = new Filter();
+		int parallelism = DEFAULT_PARALLELISM;
+		for (int i = 2; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 0) {
+				System.out.println("Ignored argument: " + args[i]);
+				continue;
+			}
+			String key = args[i].substring(0, eq);
+			String value = args[i].substring(eq + 1);
+			if ("sender".equals(key)) {
+				filter.sender = value;
+			} else if ("controlId".equals(key)) {
+				filter.controlId = value;
+			} else if ("reason".equals(key)) {
+				filter.reasonContains = value;
+			} else if ("since".equals(key)) {
+				filter.fromTime = parseTime(value);
+			} else if ("until".equals(key)) {
+				filter.toTime = parseTime(value);
+			} else if ("all".equals(key)) {
+				filter.includeReprocessed = "true".equalsIgnoreCase(value);
+			} else if ("parallel".equals(key)) {
+				parallelism = Integer.parseInt(value);
+			} else {
+				System.out.println("Ignored argument: " + args[i]);
+			}
+		}
+
+		DeadLetterStore store = new DeadLetterStore(qFileName + "-dead");
+		try {
+			List<Entry> selected = store.select(filter);
+			if ("list".equals(args[1])) {
+				for (Entry entry : selected) {
+					System.out.println(entry.getId() + "\t" + Instant.ofEpochMilli(entry.getTime()) + "\t"
+							+ entry.getSender() + "\t" + entry.getControlId() + "\t"
+							+ (entry.isReprocessed() ? "reprocessed" : "pending") + "\t" + entry.getReason());
+				}
+				System.out.println(selected.size() + " dead letter(s)");
+			} else {
+				DeadLetterReprocessor reprocessor = new DeadLetterReprocessor(app, store, parallelism);
+				reprocessor.reprocess(selected);
+				System.out.println(reprocessor.getReprocessed() + " reprocessed, " + reprocessor.getFailed()
+						+ " failed, out of " + selected.size());
+			}
+		} finally {
+			store.close();
+		}
+	}
+
+	// yyyy-MM-dd or yyyy-MM-ddTHH:mm[:ss], local time.
+	static long parseTime(String value) {
+		if (value.contains("T"))
+			return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+	}
+}
@@ -0,0 +1,28 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+/*
+ * Thrown when the controller did not accept the data. Anything that goes wrong
+ * after the controller accepted it is reported with other exceptions, so that
+ * the queue does not send the same data again.
+ */
+public class DeliveryFailedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	private final int status;
+
+	public DeliveryFailedException(String message, int status) {
+		super(message);
+		this.status = status;
+	}
+
+	// HTTP status from the controller, or -1 if we could not connect.
+	public int getStatus() {
+		return status;
+	}
+
+	// The controller could not take it now (unreachable, overloaded or down). Other
+	// failures mean it rejected the data and sending it again will not help.
+	public boolean isTransient() {
+		return status == -1 || status == 408 || status == 429 || status >= 500;
+	}
+}
@@ -0,0 +1,217 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Background delivery to one destination, so that a slow or failing destination does
+ * not hold up the others or the thread that ACKs the lab.
+ *
+ * Each lane has its own worker threads and bounded task queue. A task that fails with a
+ * transient DeliveryFailedException (see isTransient) is retried after a back off that
+ * doubles every attempt, up to maxAttempts. Other failures are logged and dropped.
+ *
+ * When the queue is full, an optional lane drops (sheds) the new task. A required lane
+ * makes the caller wait for room instead. An optional lane also sheds once its backlog
+ * reaches shedThreshold, to leave room for retries.
+ *
+ * Settings come from config.properties as lane<Name><Setting>, for example
+ * laneOpenMdiThreads, laneOpenMdiQueueCapacity, laneOpenMdiMaxAttempts,
+ * laneOpenMdiBackoffMillis, laneOpenMdiOptional and laneOpenMdiShedThreshold.
+ */
+public class DeliveryLane {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(DeliveryLane.class.getName());
+
+	static final int DEFAULT_THREADS = 2;
+	static final int DEFAULT_QUEUE_CAPACITY = 1000;
+	static final int DEFAULT_MAX_ATTEMPTS = 5;
+	static final long DEFAULT_BACKOFF_MILLIS = 2000L;
+	static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+
+	public interface Task {
+		// Throw DeliveryFailedException to have the task retried.
+		public void deliver() throws Exception;
+	}
+
+	private final String name;
+	private final int maxAttempts;
+	private final long backoffMillis;
+	private final boolean optional;
+	private final int shedThreshold;
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService retryScheduler;
+
+	// Metrics
+	private final AtomicLong submitted = new AtomicLong(0L);
+	private final AtomicLong delivered = new AtomicLong(0L);
+	private final AtomicLong retried = new AtomicLong(0L);
+	private final AtomicLong failed = new AtomicLong(0L);
+	private final AtomicLong shed = new AtomicLong(0L);
+
+	public DeliveryLane(String name, int threads, int queueCapacity, int maxAttempts, long backoffMillis,
+			boolean optional, int shedThreshold) {
+		this.name = name;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.backoffMillis = Math.max(1L, backoffMillis);
+		this.optional = optional;
+		int capacity = Math.max(1, queueCapacity);
+		this.shedThreshold = shedThreshold <= 0 ? capacity : Math.min(shedThreshold, capacity);
+
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity),
+				new QueueDrainService.DaemonThreadFactory("lane-" + name), new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+						onFull(r, pool);
+					}
+				});
+		retryScheduler = Executors
+				.newSingleThreadScheduledExecutor(new QueueDrainService.DaemonThreadFactory("lane-" + name + "-retry"));
+	}
+
+	public static DeliveryLane fromConfig(HL7v2ReceiverApplication<?> app, String name, boolean defaultOptional) {
+		String prefix = "lane" + name;
+		return new DeliveryLane(name, app.getConfigInt(prefix + "Threads", DEFAULT_THREADS),
+				app.getConfigInt(prefix + "QueueCapacity", DEFAULT_QUEUE_CAPACITY),
+				app.getConfigInt(prefix + "MaxAttempts", DEFAULT_MAX_ATTEMPTS),
+				app.getConfigLong(prefix + "BackoffMillis", DEFAULT_BACKOFF_MILLIS),
+				"true".equalsIgnoreCase(
+						app.getConfigProperties().getProperty(prefix + "Optional", String.valueOf(defaultOptional)).trim()),
+				app.getConfigInt(prefix + "ShedThreshold", 0));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// Returns false if the task was shed.
+	public boolean submit(String description, Task task) {
+		submitted.incrementAndGet();
+		if (optional && executor.getQueue().size() >= shedThreshold) {
+			onShed(description);
+			return false;
+		}
+		return execute(new Attempt(description, task, 1));
+	}
+
+	private boolean execute(Attempt attempt) {
+		try {
+			executor.execute(attempt);
+			return true;
+		} catch (RejectedExecutionException e) {
+			onShed(attempt.description);
+			return false;
+		}
+	}
+
+	private void onFull(Runnable r, ThreadPoolExecutor pool) {
+		if (optional || pool.isShutdown())
+			throw new RejectedExecutionException();
+
+		// Required lane. Wait for room.
+		try {
+			pool.getQueue().put(r);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+	}
+
+	private void onShed(String description) {
+		long count = shed.incrementAndGet();
+		if (count == 1 || count % 100 == 0) {
+			LOGGER.warn("Lane " + name + " is backed up (" + executor.getQueue().size() + " waiting). Shed " + count
+					+ " task(s) so far, latest: " + description);
+		}
+	}
+
+	private class Attempt implements Runnable {
+		final String description;
+		final Task task;
+		final int number;
+
+		Attempt(String description, Task task, int number) {
+			this.description = description;
+			this.task = task;
+			this.number = number;
+		}
+
+		public void run() {
+			try {
+				task.deliver();
+				delivered.incrementAndGet();
+			} catch (DeliveryFailedException e) {
+				if (e.isTransient() && number < maxAttempts) {
+					retry(e);
+				} else {
+					failed.incrementAndGet();
+					LOGGER.error("Lane " + name + ": " + description + " failed after " + number + " attempt(s): "
+							+ e.getMessage());
+				}
+			} catch (Exception e) {
+				failed.incrementAndGet();
+				LOGGER.error("Lane " + name + ": " + description + " failed", e);
+			}
+		}
+
+		private void retry(DeliveryFailedException e) {
+			long delay = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(20, number - 1));
+			delay += ThreadLocalRandom.current().nextLong(delay / 10 + 1);
+			retried.incrementAndGet();
+			LOGGER.warn("Lane " + name + ": " + description + " failed (" + e.getMessage() + "). Retry in " + delay
+					+ " ms");
+
+			final Attempt next = new Attempt(description, task, number + 1);
+			retryScheduler.schedule(new Runnable() {
+				public void run() {
+					execute(next);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public int getBacklog() {
+		return executor.getQueue().size();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	public long getRetried() {
+		return retried.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+
+	public void stop() {
+		retryScheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	public String toString() {
+		return "Lane " + name + ": backlog " + getBacklog() + ", submitted " + getSubmitted() + ", delivered "
+				+ getDelivered() + ", retried " + getRetried() + ", failed " + getFailed() + ", shed " + getShed();
+	}
+}
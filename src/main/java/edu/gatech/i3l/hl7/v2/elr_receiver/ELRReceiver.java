@@ -145,6 +145,22 @@ public class ELRReceiver {
 			transport = envTransport;
 		}
 
+		// Dead-letter command. Runs against the queue files and exits.
+		if (args.length > 0 && "deadletter".equals(args[0])) {
+			HL7v2ReceiverApplication<?> handler;
+			if (parser_mode.equals("FHIR")) {
+				handler = new HL7v2ReceiverFHIRApplication();
+				handler.setConfigProperties(prop);
+				handler.configEndpoints(fhir_controller_api_url, useTls, httpAuth, indexServiceApiUrl);
+			} else {
+				handler = new HL7v2ReceiverECRApplication();
+				handler.setConfigProperties(prop);
+				handler.configEndpoints(phcr_controller_api_url, useTls, httpAuth, indexServiceApiUrl);
+			}
+			DeadLetterReprocessor.run(args, handler, qFileName);
+			return;
+		}
+
 		if ("MLLP".equals(transport)) {
 			HapiContext ctx = new DefaultHapiContext();
 			LOGGER.debug("Starting with MLLP");
@@ -155,12 +171,14 @@ public class ELRReceiver {
 				HL7v2ReceiverFHIRApplication handler = new HL7v2ReceiverFHIRApplication();
 				server.registerApplication("*", "*", (ReceivingApplication<Message>) handler);
 				// Configure the Receiver App before we start.
+				handler.setConfigProperties(prop);
 				handler.config(fhir_controller_api_url, useTls, qFileName, ecrTemplateFileName, null, indexServiceApiUrl);
 			} else {
 				LOGGER.debug("Preparing for ECR parser");
 				HL7v2ReceiverECRApplication handler = new HL7v2ReceiverECRApplication();
 				server.registerApplication("*", "*", (ReceivingApplication<Message>) handler);
 				// Configure the Receiver App before we start.
+				handler.setConfigProperties(prop);
 				handler.config(phcr_controller_api_url, useTls, qFileName, ecrTemplateFileName, null, indexServiceApiUrl);
 			}
 			server.registerConnectionListener(new MyConnectionListener());
@@ -183,6 +201,7 @@ public class ELRReceiver {
 
 				server.registerApplication("*", "*", (ReceivingApplication<Message>) handler);
 				// Configure the Receiver App before we start.
+				handler.setConfigProperties(prop);
 				handler.config(fhir_controller_api_url, useTls, qFileName, ecrTemplateFileName, httpAuth, indexServiceApiUrl);
 			} else {
 				HL7v2ReceiverECRApplication handler = new HL7v2ReceiverECRApplication();
@@ -190,6 +209,7 @@ public class ELRReceiver {
 
 				server.registerApplication("*", "*", (ReceivingApplication<Message>) handler);
 				// Configure the Receiver App before we start.
+				handler.setConfigProperties(prop);
 				handler.config(phcr_controller_api_url, useTls, qFileName, ecrTemplateFileName, httpAuth, indexServiceApiUrl);
 			}
 
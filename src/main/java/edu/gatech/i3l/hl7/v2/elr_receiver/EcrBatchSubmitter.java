@@ -0,0 +1,141 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+/*
+ * Sends ECRs to the PHCR controller in bulk instead of one POST each.
+ *
+ * ECRs are collected and sent together as BatchSubmitter does. The body is either
+ * NDJSON (application/x-ndjson, one ECR per line) or a JSON array of the ECRs. Either way
+ * the ECR bytes are the ones EcrDocument made.
+ *
+ * The controller answers with one result per ECR, in the same order and in the same
+ * form (NDJSON lines or a JSON array):
+ *
+ *   { "status": 201, ... }
+ *
+ * status may also be a string such as "201 Created". The rest of the result is the
+ * outcome body of that ECR.
+ */
+public class EcrBatchSubmitter extends BatchSubmitter<EcrDocument> {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(EcrBatchSubmitter.class.getName());
+
+	static final int DEFAULT_MAX_ENTRIES = 50;
+	static final long DEFAULT_LINGER_MILLIS = 100L;
+	static final int DEFAULT_SENDERS = 2;
+	static final long DEFAULT_TIMEOUT_MILLIS = 90 * 1000L;
+
+	private final boolean ndjson;
+
+	public EcrBatchSubmitter(String url, boolean ndjson, int maxEntries, long lingerMillis, int senders,
+			long timeoutMillis) {
+		super("ECR batch", url, maxEntries, lingerMillis, senders, timeoutMillis);
+		this.ndjson = ndjson;
+		start();
+	}
+
+	// Null if ecrBatchMode is off (the default).
+	public static EcrBatchSubmitter fromConfig(HL7v2ReceiverApplication<?> app) {
+		String mode = app.getConfigProperties().getProperty("ecrBatchMode", "off").trim();
+		if (!mode.equalsIgnoreCase("ndjson") && !mode.equalsIgnoreCase("array"))
+			return null;
+
+		String url = app.getConfigProperties().getProperty("ecrBatchUrl", "").trim();
+		if (url.isEmpty())
+			url = app.getControllerApiUrl();
+
+		LOGGER.info("ECR bulk mode (" + mode.toLowerCase() + "): ECRs are sent to " + url);
+		return new EcrBatchSubmitter(url, mode.equalsIgnoreCase("ndjson"),
+				app.getConfigInt("ecrBatchMaxEntries", DEFAULT_MAX_ENTRIES),
+				app.getConfigLong("ecrBatchLingerMillis", DEFAULT_LINGER_MILLIS),
+				app.getConfigInt("ecrBatchSenders", DEFAULT_SENDERS),
+				app.getConfigLong("ecrBatchTimeoutMillis", DEFAULT_TIMEOUT_MILLIS));
+	}
+
+	protected ClientResponse post(List<EcrDocument> batch) {
+		return OutboundHttpClient.get().resource(url).type(ndjson ? "application/x-ndjson" : "application/json")
+				.post(ClientResponse.class, body(batch));
+	}
+
+	protected List<Outcome> outcomes(String response) {
+		List<JSONObject> results = results(response);
+		if (results == null)
+			return null;
+
+		List<Outcome> outcomes = new ArrayList<Outcome>(results.size());
+		for (JSONObject result : results) {
+			if (result == null) {
+				outcomes.add(null);
+				continue;
+			}
+			Object status = result.opt("status");
+			outcomes.add(new Outcome(status instanceof Number ? ((Number) status).intValue()
+					: parseStatus(result.optString("status", "")), result.toString()));
+		}
+		return outcomes;
+	}
+
+	// The ECR bytes, one per line or as the elements of an array.
+	private byte[] body(List<EcrDocument> batch) {
+		// A newline after each ECR, or brackets and commas between them.
+		int size = ndjson ? batch.size() : batch.size() + 1;
+		for (EcrDocument ecr : batch) {
+			size += ecr.getBytes().length;
+		}
+		byte[] body = new byte[size];
+		int length = 0;
+		if (!ndjson)
+			body[length++] = '[';
+		for (int i = 0; i < batch.size(); i++) {
+			if (i > 0 && !ndjson)
+				body[length++] = ',';
+			byte[] ecr = batch.get(i).getBytes();
+			System.arraycopy(ecr, 0, body, length, ecr.length);
+			length += ecr.length;
+			if (ndjson)
+				body[length++] = '\n';
+		}
+		if (!ndjson)
+			body[length++] = ']';
+		return body;
+	}
+
+	// Results as a JSON array or as NDJSON lines. Null if it is neither.
+	static List<JSONObject> results(String response) {
+		if (response == null)
+			return null;
+		String text = response.trim();
+		List<JSONObject> results = new ArrayList<JSONObject>();
+		try {
+			if (text.startsWith("[")) {
+				JSONArray array = new JSONArray(text);
+				for (int i = 0; i < array.length(); i++) {
+					results.add(array.optJSONObject(i));
+				}
+			} else {
+				for (String line : text.split("\n")) {
+					if (!line.trim().isEmpty())
+						results.add(new JSONObject(line));
+				}
+			}
+		} catch (JSONException e) {
+			return null;
+		}
+		return results.isEmpty() ? null : results;
+	}
+
+	public String toString() {
+		return String.format("ECR %s: %d batches, %.1f ECRs per batch, %d failed ECRs", ndjson ? "ndjson" : "array",
+				getBatches(), getEntriesPerBatch(), getFailedEntries());
+	}
+}
@@ -0,0 +1,48 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/*
+ * An ECR on its way to the PHCR controller, serialized once.
+ *
+ * The JSON bytes are written with EcrJsonWriter when the document is made, and the same
+ * bytes are the POST body and the queue payload. The text for the logs is
+ * made from them the first time it is asked for, and then kept. Change the JSON tree
+ * before making the document, not after.
+ */
+public class EcrDocument {
+	private final JSONObject json;
+	private final byte[] bytes;
+	private String text = null;
+
+	private EcrDocument(JSONObject json, byte[] bytes) {
+		this.json = json;
+		this.bytes = bytes;
+	}
+
+	public static EcrDocument of(JSONObject json) {
+		return new EcrDocument(json, EcrJsonWriter.toJson(json));
+	}
+
+	// For the routing key and non-JSON queue codecs.
+	public JSONObject getJson() {
+		return json;
+	}
+
+	// UTF-8 JSON text. Shared, do not change.
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	public synchronized String getText() {
+		if (text == null)
+			text = new String(bytes, StandardCharsets.UTF_8);
+		return text;
+	}
+
+	public String toString() {
+		return getText();
+	}
+}
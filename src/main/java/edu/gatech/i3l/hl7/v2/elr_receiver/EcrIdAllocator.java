@@ -0,0 +1,151 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * ECR ids: 64 bit numbers made of the time, the node and a sequence.
+ *
+ *   | 41 bits ms since 2020-01-01 | 10 bits node | 12 bits sequence |
+ *
+ * Allocation is one compare-and-set. Ids go up on each node, also when the clock goes
+ * back (the sequence keeps counting, and when it wraps it moves on to the next
+ * millisecond). That is 4096 ids per millisecond before ids run ahead of the clock.
+ *
+ * A time a little ahead of the ids given out (reserveMillis) is kept in the state
+ * file and written before any id past it is given out. After a restart, ids start at
+ * that time, so none of the ids of the last run are given out again, even if the
+ * clock is behind. Writing it is the only lock, and happens once per reserveMillis.
+ *
+ * Each node that sends ECRs to the same controller needs its own node id (ecrNodeId).
+ * Without it the node id is a hash of the host name, which may be the same on two nodes.
+ */
+public class EcrIdAllocator {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(EcrIdAllocator.class.getName());
+
+	// 2020-01-01T00:00:00Z
+	static final long EPOCH_MILLIS = 1577836800000L;
+	static final int NODE_BITS = 10;
+	static final int SEQUENCE_BITS = 12;
+	static final int MAX_NODE = (1 << NODE_BITS) - 1;
+	static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+	static final long DEFAULT_RESERVE_MILLIS = 10000L;
+
+	private final long node;
+	private final long reserveMillis;
+	private final RandomAccessFile state;
+	private final File file;
+
+	// Time (ms since EPOCH_MILLIS) and sequence of the last id.
+	private final AtomicLong last;
+	// Ids up to this time may be given out. Written to the state file first.
+	private volatile long reservedUntil;
+
+	// file null keeps nothing between runs.
+	public EcrIdAllocator(int node, File file, long reserveMillis) throws IOException {
+		if (node < 0 || node > MAX_NODE)
+			throw new IllegalArgumentException("ECR node id must be 0 to " + MAX_NODE + ": " + node);
+		this.node = ((long) node) << SEQUENCE_BITS;
+		this.reserveMillis = Math.max(1L, reserveMillis);
+		this.file = file;
+
+		long reserved = 0L;
+		if (file != null) {
+			state = new RandomAccessFile(file, "rwd");
+			if (state.length() >= 8)
+				reserved = state.readLong();
+		} else {
+			state = null;
+		}
+		reservedUntil = reserved;
+		last = new AtomicLong(reserved > 0 ? (reserved << SEQUENCE_BITS) - 1 : 0L);
+		if (reserved > 0)
+			LOGGER.info("ECR ids continue after " + (reserved + EPOCH_MILLIS) + " (from " + file + ")");
+	}
+
+	public static EcrIdAllocator fromConfig(HL7v2ReceiverApplication<?> app) {
+		String file = app.getConfigProperties().getProperty("ecrIdFile", "").trim();
+		if (file.isEmpty())
+			file = app.getConfigProperties().getProperty("qFileName", "queueELR").trim() + "-ecrid";
+
+		int node = app.getConfigInt("ecrNodeId", -1);
+		if (node < 0) {
+			try {
+				String host = InetAddress.getLocalHost().getHostName();
+				node = host.hashCode() & MAX_NODE;
+				// Two host names can give the same node id, and then the same ECR ids.
+				LOGGER.warn("ecrNodeId is not set. Node id " + node + " is taken from host name " + host
+						+ ". Set ecrNodeId on each node if more than one node sends ECRs to the same controller.");
+			} catch (IOException e) {
+				node = 0;
+				LOGGER.warn("ecrNodeId is not set and the host name is not known. Node id 0 is used.");
+			}
+		}
+
+		long reserveMillis = app.getConfigLong("ecrIdReserveMillis", DEFAULT_RESERVE_MILLIS);
+		try {
+			return new EcrIdAllocator(node, new File(file), reserveMillis);
+		} catch (IOException e) {
+			LOGGER.error("Failed to open ECR id state file " + file + ". ECR ids may repeat after a restart.", e);
+			try {
+				return new EcrIdAllocator(node, null, reserveMillis);
+			} catch (IOException e1) {
+				// Not without a state file.
+				throw new IllegalStateException(e1);
+			}
+		}
+	}
+
+	public long next() {
+		long now = System.currentTimeMillis() - EPOCH_MILLIS;
+		long previous;
+		long next;
+		do {
+			previous = last.get();
+			if (now > (previous >>> SEQUENCE_BITS))
+				next = now << SEQUENCE_BITS;
+			else
+				next = previous + 1;
+		} while (!last.compareAndSet(previous, next));
+
+		long millis = next >>> SEQUENCE_BITS;
+		if (millis >= reservedUntil)
+			reserve(millis);
+		return (millis << (NODE_BITS + SEQUENCE_BITS)) | node | (next & SEQUENCE_MASK);
+	}
+
+	private synchronized void reserve(long millis) {
+		if (millis < reservedUntil)
+			return;
+
+		long until = millis + reserveMillis;
+		if (state != null) {
+			try {
+				state.seek(0L);
+				state.writeLong(until);
+			} catch (IOException e) {
+				// Ids are still unique in this run. After a restart some may be given out again.
+				LOGGER.error("Failed to write ECR id state to " + file, e);
+			}
+		}
+		reservedUntil = until;
+	}
+
+	public synchronized void close() {
+		if (state != null) {
+			try {
+				state.close();
+			} catch (IOException e) {
+				// Nothing more we can do.
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Streaming JSON writer for ECR documents. Values are written as UTF-8 straight into a
+ * byte buffer. There is no intermediate String of the whole document, and no StringWriter
+ * or per-value quote() strings as with JSONObject.toString().
+ *
+ * Each thread has one writer (get()), and its buffer is kept for the next document
+ * unless it grew past MAX_RETAINED_BYTES. toByteArray() is the only copy.
+ *
+ * The output is the same JSON as JSONObject.toString() gives for the tree, with the same
+ * escapes as JSONObject.quote(): quotes, backslashes and the slash of "</" get a
+ * backslash, and control characters, U+0080 to U+009F and U+2000 to U+20FF are written
+ * as six character escapes (or as \n, \t and so on).
+ */
+public final class EcrJsonWriter {
+	static final int DEFAULT_BUFFER_BYTES = 8 * 1024;
+	// Buffers larger than this are not kept between documents.
+	static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private static final ThreadLocal<EcrJsonWriter> WRITERS = new ThreadLocal<EcrJsonWriter>() {
+		protected EcrJsonWriter initialValue() {
+			return new EcrJsonWriter();
+		}
+	};
+
+	private byte[] buffer = new byte[DEFAULT_BUFFER_BYTES];
+	private int length = 0;
+	// Whether a comma is needed before the next value, per nesting level.
+	private boolean[] needsComma = new boolean[16];
+	private int depth = 0;
+
+	EcrJsonWriter() {
+	}
+
+	// The writer of this thread, empty.
+	public static EcrJsonWriter get() {
+		EcrJsonWriter writer = WRITERS.get();
+		writer.reset();
+		return writer;
+	}
+
+	public void reset() {
+		if (buffer.length > MAX_RETAINED_BYTES)
+			buffer = new byte[DEFAULT_BUFFER_BYTES];
+		length = 0;
+		depth = 0;
+		needsComma[0] = false;
+	}
+
+	// JSON text of the object.
+	public static byte[] toJson(JSONObject json) {
+		EcrJsonWriter writer = get();
+		writer.value(json);
+		return writer.toByteArray();
+	}
+
+	public EcrJsonWriter beginObject() {
+		beforeValue();
+		write((byte) '{');
+		push();
+		return this;
+	}
+
+	public EcrJsonWriter endObject() {
+		depth--;
+		write((byte) '}');
+		return this;
+	}
+
+	public EcrJsonWriter beginArray() {
+		beforeValue();
+		write((byte) '[');
+		push();
+		return this;
+	}
+
+	public EcrJsonWriter endArray() {
+		depth--;
+		write((byte) ']');
+		return this;
+	}
+
+	// Object key. The value follows.
+	public EcrJsonWriter name(String name) {
+		beforeValue();
+		writeString(name);
+		write((byte) ':');
+		needsComma[depth] = false;
+		return this;
+	}
+
+	public EcrJsonWriter value(String value) {
+		beforeValue();
+		if (value == null)
+			writeAscii("null");
+		else
+			writeString(value);
+		return this;
+	}
+
+	public EcrJsonWriter value(long value) {
+		beforeValue();
+		writeLong(value);
+		return this;
+	}
+
+	public EcrJsonWriter value(boolean value) {
+		beforeValue();
+		writeAscii(value ? "true" : "false");
+		return this;
+	}
+
+	// An org.json value: JSONObject, JSONArray, String, Number, Boolean or NULL. Anything
+	// else is written with toString(), as org.json does.
+	public EcrJsonWriter value(Object value) {
+		if (value == null || value == JSONObject.NULL) {
+			beforeValue();
+			writeAscii("null");
+		} else if (value instanceof JSONObject) {
+			JSONObject object = (JSONObject) value;
+			beginObject();
+			for (String key : object.keySet()) {
+				name(key);
+				value(object.opt(key));
+			}
+			endObject();
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray) value;
+			beginArray();
+			for (int i = 0; i < array.length(); i++) {
+				value(array.opt(i));
+			}
+			endArray();
+		} else if (value instanceof String) {
+			value((String) value);
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short
+				|| value instanceof Byte) {
+			value(((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			beforeValue();
+			writeAscii(decimal(value.toString()));
+		} else if (value instanceof BigInteger || value instanceof BigDecimal || value instanceof Boolean) {
+			beforeValue();
+			writeAscii(value.toString());
+		} else {
+			value(value.toString());
+		}
+		return this;
+	}
+
+	// As JSONObject.numberToString(): no trailing zeros after the point.
+	private static String decimal(String text) {
+		if (text.indexOf('.') < 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0)
+			return text;
+		int end = text.length();
+		while (text.charAt(end - 1) == '0')
+			end--;
+		if (text.charAt(end - 1) == '.')
+			end--;
+		return text.substring(0, end);
+	}
+
+	public int size() {
+		return length;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private void beforeValue() {
+		if (needsComma[depth])
+			write((byte) ',');
+		needsComma[depth] = true;
+	}
+
+	private void push() {
+		depth++;
+		if (depth == needsComma.length)
+			needsComma = Arrays.copyOf(needsComma, depth * 2);
+		needsComma[depth] = false;
+	}
+
+	private void writeString(String value) {
+		ensure(value.length() * 3 + 2);
+		buffer[length++] = '"';
+		char previous = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\' || (c == '/' && previous == '<')) {
+				ensure(2 + (value.length() - i) * 3);
+				buffer[length++] = '\\';
+				buffer[length++] = (byte) c;
+			} else if (c < 0x20 || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+				ensure(6 + (value.length() - i) * 3);
+				buffer[length++] = '\\';
+				switch (c) {
+				case '\n':
+					buffer[length++] = 'n';
+					break;
+				case '\r':
+					buffer[length++] = 'r';
+					break;
+				case '\t':
+					buffer[length++] = 't';
+					break;
+				case '\b':
+					buffer[length++] = 'b';
+					break;
+				case '\f':
+					buffer[length++] = 'f';
+					break;
+				default:
+					buffer[length++] = 'u';
+					buffer[length++] = HEX[(c >> 12) & 0xF];
+					buffer[length++] = HEX[(c >> 8) & 0xF];
+					buffer[length++] = HEX[(c >> 4) & 0xF];
+					buffer[length++] = HEX[c & 0xF];
+				}
+			} else if (c < 0x80) {
+				buffer[length++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[length++] = (byte) (0xC0 | (c >> 6));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogate, as String.getBytes(UTF_8) writes it.
+				buffer[length++] = '?';
+			} else {
+				buffer[length++] = (byte) (0xE0 | (c >> 12));
+				buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length++] = (byte) (0x80 | (c & 0x3F));
+			}
+			previous = c;
+		}
+		buffer[length++] = '"';
+	}
+
+	private void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeAscii(Long.toString(value));
+			return;
+		}
+		ensure(20);
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int start = length;
+		do {
+			buffer[length++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		// Digits were written last first.
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+
+	private void writeAscii(String text) {
+		ensure(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			buffer[length++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void write(byte b) {
+		ensure(1);
+		buffer[length++] = b;
+	}
+
+	private void ensure(int more) {
+		if (length + more > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+	}
+}
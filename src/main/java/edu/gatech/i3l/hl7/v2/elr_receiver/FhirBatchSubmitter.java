@@ -0,0 +1,108 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+/*
+ * Sends message bundles to the FHIR server in batch (or transaction) bundles instead of
+ * one $process-message POST each.
+ *
+ * Bundles are collected and sent together as BatchSubmitter does. Each message bundle
+ * becomes one entry:
+ *
+ *   { "request": { "method": "POST", "url": "$process-message" }, "resource": <bundle> }
+ *
+ * The batch is streamed to the server (see FhirRequestEntity) and the bundles in it are
+ * encoded straight into the request. Entry i of the batch-response is the outcome of
+ * bundle i: its status and the resource returned for it, the same as a single POST would
+ * return.
+ *
+ * In a transaction all entries succeed or fail together, so one bad bundle fails the
+ * others too. fhirBatchMode is off by default. When it is on, batch is usually the
+ * better choice.
+ */
+public class FhirBatchSubmitter extends BatchSubmitter<FhirBundleEnvelope> {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(FhirBatchSubmitter.class.getName());
+
+	static final int DEFAULT_MAX_ENTRIES = 50;
+	static final long DEFAULT_LINGER_MILLIS = 100L;
+	static final int DEFAULT_SENDERS = 2;
+	static final String DEFAULT_ENTRY_URL = "$process-message";
+	static final long DEFAULT_TIMEOUT_MILLIS = 90 * 1000L;
+
+	private final String entryUrl;
+	private final boolean transaction;
+
+	public FhirBatchSubmitter(String url, String entryUrl, boolean transaction, int maxEntries, long lingerMillis,
+			int senders, long timeoutMillis) {
+		super("FHIR batch", url, maxEntries, lingerMillis, senders, timeoutMillis);
+		this.entryUrl = entryUrl;
+		this.transaction = transaction;
+		start();
+	}
+
+	// Null if fhirBatchMode is off (the default).
+	public static FhirBatchSubmitter fromConfig(HL7v2ReceiverApplication<?> app) {
+		String mode = app.getConfigProperties().getProperty("fhirBatchMode", "off").trim();
+		if (!mode.equalsIgnoreCase("batch") && !mode.equalsIgnoreCase("transaction"))
+			return null;
+
+		String url = app.getConfigProperties().getProperty("fhirBatchUrl", "").trim();
+		if (url.isEmpty())
+			url = app.getControllerApiUrl().replace("/$process-message", "");
+
+		LOGGER.info("FHIR " + mode.toLowerCase() + " mode: bundles are sent to " + url);
+		return new FhirBatchSubmitter(url,
+				app.getConfigProperties().getProperty("fhirBatchEntryUrl", DEFAULT_ENTRY_URL).trim(),
+				mode.equalsIgnoreCase("transaction"), app.getConfigInt("fhirBatchMaxEntries", DEFAULT_MAX_ENTRIES),
+				app.getConfigLong("fhirBatchLingerMillis", DEFAULT_LINGER_MILLIS),
+				app.getConfigInt("fhirBatchSenders", DEFAULT_SENDERS),
+				app.getConfigLong("fhirBatchTimeoutMillis", DEFAULT_TIMEOUT_MILLIS));
+	}
+
+	protected ClientResponse post(List<FhirBundleEnvelope> batch) {
+		return FhirRequestEntity.batch(batch, transaction ? "transaction" : "batch", entryUrl)
+				.post(OutboundHttpClient.get().resource(url));
+	}
+
+	protected List<Outcome> outcomes(String response) {
+		JSONArray results;
+		try {
+			results = new JSONObject(response).optJSONArray("entry");
+		} catch (JSONException e) {
+			results = null;
+		}
+		if (results == null)
+			return null;
+
+		List<Outcome> outcomes = new ArrayList<Outcome>(results.length());
+		for (int i = 0; i < results.length(); i++) {
+			JSONObject result = results.optJSONObject(i);
+			if (result == null) {
+				outcomes.add(null);
+				continue;
+			}
+			JSONObject entryResponse = result.optJSONObject("response");
+			JSONObject resource = result.optJSONObject("resource");
+			if (resource == null && entryResponse != null)
+				resource = entryResponse.optJSONObject("outcome");
+			outcomes.add(new Outcome(parseStatus(entryResponse == null ? "" : entryResponse.optString("status", "")),
+					resource == null ? null : resource.toString()));
+		}
+		return outcomes;
+	}
+
+	public String toString() {
+		return String.format("FHIR %s: %d batches, %.1f bundles per batch, %d failed bundles",
+				transaction ? "transaction" : "batch", getBatches(), getEntriesPerBatch(), getFailedEntries());
+	}
+}
@@ -0,0 +1,218 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.HumanName;
+import org.hl7.fhir.dstu3.model.Identifier;
+import org.hl7.fhir.dstu3.model.MessageHeader;
+import org.hl7.fhir.dstu3.model.MessageHeader.MessageDestinationComponent;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.ResourceType;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.json.JSONObject;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+/*
+ * A FHIR message bundle on its way to the FHIR controller, index service and OpenMDI.
+ *
+ * A bundle from the mapper is kept as it is. Request bodies are streamed from it with
+ * writeTo(). Its JSON text is encoded only if something asks for it (a failed delivery
+ * that goes to the queue), and then kept. A bundle from the queue comes as JSON text and
+ * is parsed, with the FHIR version it was mapped to, only if the routing facts are needed.
+ *
+ * The routing facts are taken from the bundle the first time one is asked for:
+ * destination (ME office) from the MessageHeader, and case number, name and gender of
+ * the first Patient with an identifier.
+ */
+public class FhirBundleEnvelope {
+	static final String NOT_SPECIFIED = "NOT_SPECIFIED";
+
+	// Null if the envelope was made from JSON text.
+	private final IBaseBundle bundle;
+	private String json;
+	// Of the JSON text, if the envelope was made from it.
+	private final FhirVersionEnum version;
+
+	private boolean extracted = false;
+	private boolean hasMessageHeader = false;
+	private String destination = NOT_SPECIFIED;
+	private String caseNumber = "";
+	private String firstName = null;
+	private String lastName = "";
+	private String gender = "";
+
+	private FhirBundleEnvelope(IBaseBundle bundle, String json, FhirVersionEnum version) {
+		this.bundle = bundle;
+		this.json = json;
+		this.version = version;
+	}
+
+	public static FhirBundleEnvelope of(IBaseBundle bundle) {
+		return new FhirBundleEnvelope(bundle, null, null);
+	}
+
+	// version is the FHIR version the bundle was mapped to (R4 or DSTU3).
+	public static FhirBundleEnvelope fromJson(String json, FhirVersionEnum version) {
+		return new FhirBundleEnvelope(null, json, version);
+	}
+
+	// Compact JSON text of the bundle.
+	public synchronized String getJson() {
+		if (json == null)
+			json = FhirSerializationService.get().encode(bundle);
+		return json;
+	}
+
+	// Write the JSON text. A bundle that was not encoded yet is encoded straight into
+	// the writer and not kept. No lock is held while writing, as the writer may be a
+	// network connection. The bundle is only read, here and by the other threads
+	// (extract() does not use the FirstRep getters, which would add to it).
+	public void writeTo(Writer writer) throws IOException {
+		String text;
+		synchronized (this) {
+			text = json;
+		}
+		if (text != null)
+			writer.write(text);
+		else
+			FhirSerializationService.get().encode(bundle, writer);
+	}
+
+	// For the queue.
+	public JSONObject toJsonObject() {
+		return new JSONObject(getJson());
+	}
+
+	public synchronized boolean hasMessageHeader() {
+		extract();
+		return hasMessageHeader;
+	}
+
+	// Name (or endpoint) of the first destination in the MessageHeader.
+	public synchronized String getDestination() {
+		extract();
+		return destination;
+	}
+
+	// Empty if there is no Patient with an identifier.
+	public synchronized String getCaseNumber() {
+		extract();
+		return caseNumber;
+	}
+
+	// First given name. Null if there is none.
+	public synchronized String getFirstName() {
+		extract();
+		return firstName;
+	}
+
+	public synchronized String getLastName() {
+		extract();
+		return lastName;
+	}
+
+	public synchronized String getGender() {
+		extract();
+		return gender;
+	}
+
+	private void extract() {
+		if (extracted)
+			return;
+		extracted = true;
+
+		if (bundle instanceof org.hl7.fhir.r4.model.Bundle) {
+			extractR4((org.hl7.fhir.r4.model.Bundle) bundle);
+		} else if (bundle instanceof Bundle) {
+			extractStu3((Bundle) bundle);
+		} else if (version == FhirVersionEnum.DSTU3) {
+			extractStu3(FhirSerializationService.get().parse(Bundle.class, getJson()));
+		} else {
+			extractR4(FhirSerializationService.get().parse(org.hl7.fhir.r4.model.Bundle.class, getJson()));
+		}
+	}
+
+	private void extractStu3(Bundle bundle) {
+		List<BundleEntryComponent> entries = bundle.getEntry();
+		if (!entries.isEmpty() && entries.get(0).getResource() != null
+				&& entries.get(0).getResource().getResourceType() == ResourceType.MessageHeader) {
+			hasMessageHeader = true;
+			List<MessageDestinationComponent> destinations = ((MessageHeader) entries.get(0).getResource())
+					.getDestination();
+			if (destinations.size() > 0)
+				setDestination(destinations.get(0).getName(), destinations.get(0).getEndpoint());
+		}
+
+		for (BundleEntryComponent entry : entries) {
+			Resource resource = entry.getResource();
+			if (resource == null || resource.isEmpty() || resource.getResourceType() != ResourceType.Patient)
+				continue;
+
+			Patient patient = (Patient) resource;
+			// Not the FirstRep getters, which add an empty element to the patient.
+			if (!patient.hasIdentifier() || patient.getIdentifier().get(0).isEmpty())
+				continue;
+
+			Identifier identifier = patient.getIdentifier().get(0);
+			caseNumber = identifier.getValue() == null ? "" : identifier.getValue();
+			if (patient.hasName() && !patient.getName().get(0).isEmpty()) {
+				HumanName name = patient.getName().get(0);
+				if (!name.getGiven().isEmpty())
+					firstName = name.getGiven().get(0).getValue();
+				lastName = name.getFamily();
+			}
+			if (patient.getGender() != null)
+				gender = patient.getGender().toString();
+			break;
+		}
+	}
+
+	private void extractR4(org.hl7.fhir.r4.model.Bundle bundle) {
+		List<org.hl7.fhir.r4.model.Bundle.BundleEntryComponent> entries = bundle.getEntry();
+		if (!entries.isEmpty() && entries.get(0).getResource() != null && entries.get(0).getResource()
+				.getResourceType() == org.hl7.fhir.r4.model.ResourceType.MessageHeader) {
+			hasMessageHeader = true;
+			List<org.hl7.fhir.r4.model.MessageHeader.MessageDestinationComponent> destinations = ((org.hl7.fhir.r4.model.MessageHeader) entries
+					.get(0).getResource()).getDestination();
+			if (destinations.size() > 0)
+				setDestination(destinations.get(0).getName(), destinations.get(0).getEndpoint());
+		}
+
+		for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : entries) {
+			org.hl7.fhir.r4.model.Resource resource = entry.getResource();
+			if (resource == null || resource.isEmpty()
+					|| resource.getResourceType() != org.hl7.fhir.r4.model.ResourceType.Patient)
+				continue;
+
+			org.hl7.fhir.r4.model.Patient patient = (org.hl7.fhir.r4.model.Patient) resource;
+			// Not the FirstRep getters, which add an empty element to the patient.
+			if (!patient.hasIdentifier() || patient.getIdentifier().get(0).isEmpty())
+				continue;
+
+			org.hl7.fhir.r4.model.Identifier identifier = patient.getIdentifier().get(0);
+			caseNumber = identifier.getValue() == null ? "" : identifier.getValue();
+			if (patient.hasName() && !patient.getName().get(0).isEmpty()) {
+				org.hl7.fhir.r4.model.HumanName name = patient.getName().get(0);
+				if (!name.getGiven().isEmpty())
+					firstName = name.getGiven().get(0).getValue();
+				lastName = name.getFamily();
+			}
+			if (patient.getGender() != null)
+				gender = patient.getGender().toString();
+			break;
+		}
+	}
+
+	private void setDestination(String name, String endpoint) {
+		if (name != null && !name.isEmpty())
+			destination = name;
+		else
+			destination = endpoint;
+	}
+}
@@ -0,0 +1,105 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.json.JSONObject;
+
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+
+/*
+ * FHIR JSON request body that is written straight to the connection.
+ *
+ * The bundle is encoded into a buffered writer on top of the request stream (gzipped if
+ * fhirGzipRequests is set), so a large bundle is never held as one String or byte array.
+ * Together with chunked transfer (httpChunkedEncodingSize in OutboundHttpClient), the
+ * memory used per request is the size of the buffers, not of the bundle.
+ *
+ * If the envelope already has its JSON text (a bundle from the queue), that is written.
+ */
+public class FhirRequestEntity implements StreamingOutput {
+	static final int DEFAULT_BUFFER_BYTES = 16 * 1024;
+
+	private static volatile boolean gzipRequests = false;
+	private static volatile int bufferBytes = DEFAULT_BUFFER_BYTES;
+
+	private interface Body {
+		void writeTo(Writer writer) throws IOException;
+	}
+
+	private final Body body;
+	private final boolean gzip;
+
+	private FhirRequestEntity(Body body, boolean gzip) {
+		this.body = body;
+		this.gzip = gzip;
+	}
+
+	public static void configure(HL7v2ReceiverApplication<?> app) {
+		gzipRequests = "true".equalsIgnoreCase(app.getConfigProperties().getProperty("fhirGzipRequests", "false").trim());
+		bufferBytes = Math.max(512, app.getConfigInt("fhirRequestBufferBytes", DEFAULT_BUFFER_BYTES));
+	}
+
+	public static FhirRequestEntity of(FhirBundleEnvelope envelope) {
+		return of(envelope, gzipRequests);
+	}
+
+	public static FhirRequestEntity of(final FhirBundleEnvelope envelope, boolean gzip) {
+		return new FhirRequestEntity(new Body() {
+			public void writeTo(Writer writer) throws IOException {
+				envelope.writeTo(writer);
+			}
+		}, gzip);
+	}
+
+	// A batch or transaction Bundle with one POST entry to entryUrl for each envelope.
+	public static FhirRequestEntity batch(final List<FhirBundleEnvelope> envelopes, final String type,
+			String entryUrl) {
+		final String request = "{\"request\":{\"method\":\"POST\",\"url\":" + JSONObject.quote(entryUrl)
+				+ "},\"resource\":";
+		return new FhirRequestEntity(new Body() {
+			public void writeTo(Writer writer) throws IOException {
+				writer.write("{\"resourceType\":\"Bundle\",\"type\":\"" + type + "\",\"entry\":[");
+				for (int i = 0; i < envelopes.size(); i++) {
+					if (i > 0)
+						writer.write(',');
+					writer.write(request);
+					envelopes.get(i).writeTo(writer);
+					writer.write('}');
+				}
+				writer.write("]}");
+			}
+		}, gzipRequests);
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	public ClientResponse post(WebResource webResource) {
+		WebResource.Builder builder = webResource.type("application/fhir+json");
+		if (gzip)
+			builder = builder.header("Content-Encoding", "gzip");
+		return builder.post(ClientResponse.class, this);
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		GZIPOutputStream gzipOutput = gzip ? new GZIPOutputStream(output, bufferBytes) : null;
+		Writer writer = new BufferedWriter(
+				new OutputStreamWriter(gzip ? gzipOutput : output, StandardCharsets.UTF_8), bufferBytes);
+		body.writeTo(writer);
+		writer.flush();
+		if (gzipOutput != null)
+			gzipOutput.finish();
+	}
+}
@@ -0,0 +1,112 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+
+/*
+ * FHIR JSON encoding and parsing for the whole process.
+ *
+ * A FhirContext is expensive to create (it scans the model classes), but is thread safe
+ * once created. There is one R4 and one STU3 context here, created on first use and kept
+ * for good. Parsers are cheap but not thread safe, so each thread keeps its own, set up
+ * once.
+ *
+ * The context is picked from the FHIR version of the resource or model class, so an STU3
+ * Bundle is read with the STU3 context even if the message was mapped to R4.
+ */
+public class FhirSerializationService {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(FhirSerializationService.class.getName());
+
+	// Resource types we map to. Their definitions are scanned up front by warmUp().
+	static final String[] WARM_UP_TYPES = { "Bundle", "MessageHeader", "Patient", "Observation",
+			"DiagnosticReport", "Specimen", "Practitioner", "Organization" };
+
+	private static final FhirSerializationService INSTANCE = new FhirSerializationService();
+
+	private volatile FhirContext r4 = null;
+	private volatile FhirContext stu3 = null;
+
+	private final ThreadLocal<IParser> r4Parser = new ThreadLocal<IParser>() {
+		@Override
+		protected IParser initialValue() {
+			return getContext(FhirVersionEnum.R4).newJsonParser();
+		}
+	};
+
+	private final ThreadLocal<IParser> stu3Parser = new ThreadLocal<IParser>() {
+		@Override
+		protected IParser initialValue() {
+			return getContext(FhirVersionEnum.DSTU3).newJsonParser();
+		}
+	};
+
+	FhirSerializationService() {
+	}
+
+	public static FhirSerializationService get() {
+		return INSTANCE;
+	}
+
+	public FhirContext getContext(FhirVersionEnum version) {
+		if (version == FhirVersionEnum.DSTU3) {
+			if (stu3 == null) {
+				synchronized (this) {
+					if (stu3 == null)
+						stu3 = FhirContext.forDstu3();
+				}
+			}
+			return stu3;
+		}
+
+		if (version != FhirVersionEnum.R4)
+			throw new IllegalArgumentException("FHIR version " + version + " is not supported");
+		if (r4 == null) {
+			synchronized (this) {
+				if (r4 == null)
+					r4 = FhirContext.forR4();
+			}
+		}
+		return r4;
+	}
+
+	// Create the context and scan the resource types we use, so the first message does
+	// not pay for it.
+	public void warmUp(FhirVersionEnum version) {
+		long start = System.currentTimeMillis();
+		FhirContext context = getContext(version);
+		for (String type : WARM_UP_TYPES) {
+			context.getResourceDefinition(type);
+		}
+		LOGGER.info("FHIR " + version + " context ready in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	// The parser of this thread for the version. Do not change its settings.
+	public IParser getParser(FhirVersionEnum version) {
+		if (version == FhirVersionEnum.DSTU3)
+			return stu3Parser.get();
+		if (version != FhirVersionEnum.R4)
+			throw new IllegalArgumentException("FHIR version " + version + " is not supported");
+		return r4Parser.get();
+	}
+
+	public String encode(IBaseResource resource) {
+		return getParser(resource.getStructureFhirVersionEnum()).encodeResourceToString(resource);
+	}
+
+	public void encode(IBaseResource resource, Writer writer) throws IOException {
+		getParser(resource.getStructureFhirVersionEnum()).encodeResourceToWriter(resource, writer);
+	}
+
+	public <T extends IBaseResource> T parse(Class<T> type, String json) {
+		return getParser(FhirVersionEnum.determineVersionForType(type)).parseResource(type, json);
+	}
+}
@@ -4,24 +4,32 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Properties;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // uncomment below
 //import com.fasterxml.jackson.databind.ObjectMapper;
-import com.squareup.tape2.QueueFile;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.hoh.api.IAuthorizationServerCallback;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.protocol.ReceivingApplicationException;
 import ca.uhn.hl7v2.util.Terser;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.DeadLetterStore;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.GroupCommitWriter;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.IngressJournal;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.LeasedQueue;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.PayloadCodec;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.PayloadCodecs;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.QueueRecord;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.ShardedQueue;
 import edu.gatech.i3l.hl7.v2.parser.BaseHL7v2Parser;
+import edu.gatech.i3l.hl7.v2.parser.ParallelMapping;
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerators;
+import edu.gatech.i3l.hl7.v2.parser.TerminologyTables;
 
 /*
  * HL7v2 Message Receiver Application for ELR
@@ -36,9 +44,14 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2Parser>
 		implements IHL7v2ReceiverApplication, IAuthorizationServerCallback {
 	private String controller_api_url;
 	private boolean useTls;
-	private QueueFile queueFile = null;
-	private TimerTask timerTask = null;
-	private Timer timer = null;
+	private ShardedQueue queue = null;
+	private QueueDrainService drainService = null;
+	private DeadLetterStore deadLetters = null;
+	private PayloadCodec payloadCodec = PayloadCodecs.JSON;
+	private IngressJournal journal = null;
+	private JournalReplayService replayService = null;
+	private MessageDeduplicator deduplicator = null;
+	private Properties configProperties = new Properties();
 	private v myParser = null;
 	private String httpUser = null;
 	private String httpPw = null;
@@ -67,8 +80,54 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2Parser>
 		return myParser;
 	}
 
-	public QueueFile getQueueFile() {
-		return queueFile;
+	public ShardedQueue getQueue() {
+		return queue;
+	}
+
+	public QueueDrainService getDrainService() {
+		return drainService;
+	}
+
+	public DeadLetterStore getDeadLetters() {
+		return deadLetters;
+	}
+
+	// Not null in ACK-fast mode.
+	public IngressJournal getJournal() {
+		return journal;
+	}
+
+	public void setConfigProperties(Properties configProperties) {
+		if (configProperties != null)
+			this.configProperties = configProperties;
+	}
+
+	public Properties getConfigProperties() {
+		return configProperties;
+	}
+
+	protected int getConfigInt(String key, int defaultValue) {
+		String value = configProperties.getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.error("Invalid value for " + key + " in config.properties: " + value + ". Using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	protected long getConfigLong(String key, long defaultValue) {
+		String value = configProperties.getProperty(key);
+		if (value == null || value.trim().isEmpty())
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			LOGGER.error("Invalid value for " + key + " in config.properties: " + value + ". Using " + defaultValue);
+			return defaultValue;
+		}
 	}
 
 	public String getControllerApiUrl() {
@@ -82,9 +141,81 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2Parser>
 	public void config(String controller_api_url, boolean useTls, String qFileName, String ecr_template_filename,
 			String httpAuth, String indexServiceApiUrl) throws Exception {
 
+		configEndpoints(controller_api_url, useTls, httpAuth, indexServiceApiUrl);
+
+		// Terminology tables from a file instead of the ones built in, reloaded when it changes.
+		String terminologyFile = configProperties.getProperty("terminologyFile", "").trim();
+		if (!terminologyFile.isEmpty())
+			TerminologyTables.watch(new File(terminologyFile),
+					getConfigLong("terminologyCheckMillis", TerminologyTables.DEFAULT_CHECK_MILLIS));
+
+		// random, or name based for ids that stay the same when a message is resent.
+		ResourceIdGenerators.set(ResourceIdGenerators.forName(configProperties.getProperty("resourceIdMode")));
+
+		// Batch messages with many RESPONSE groups are mapped on a fork/join pool.
+		ParallelMapping.configure(getConfigInt("parallelMappingThreshold", ParallelMapping.DEFAULT_THRESHOLD),
+				getConfigInt("parallelMappingThreads", 0));
+
+		// Set up QueueFile
+		if (queue == null) {
+			queue = new ShardedQueue(qFileName, getConfigInt("queueShards", ShardedQueue.DEFAULT_SHARDS),
+					getConfigLong("queueLeaseMillis", LeasedQueue.DEFAULT_LEASE_MILLIS),
+					getConfigLong("queueGroupCommitMillis", GroupCommitWriter.DEFAULT_WINDOW_MILLIS),
+					getConfigInt("queueGroupCommitMaxBatch", GroupCommitWriter.DEFAULT_MAX_BATCH),
+					"true".equalsIgnoreCase(configProperties.getProperty("queueCompression", "false").trim()));
+		}
+		payloadCodec = PayloadCodecs.forName(configProperties.getProperty("queuePayloadCodec"));
+		if (deadLetters == null) {
+			deadLetters = new DeadLetterStore(qFileName + "-dead");
+		}
+
+		// After QueueFile is set up, we start background service.
+		if (drainService != null)
+			drainService.stop();
+
+		drainService = new QueueDrainService(this,
+				getConfigInt("queueWorkers", QueueDrainService.DEFAULT_WORKERS),
+				getConfigInt("queueBatchSize", QueueDrainService.DEFAULT_BATCH_SIZE),
+				getConfigLong("queueMinBackoffMillis", QueueDrainService.DEFAULT_MIN_BACKOFF_MILLIS),
+				getConfigLong("queueMaxBackoffMillis", QueueDrainService.DEFAULT_MAX_BACKOFF_MILLIS),
+				QueueDrainService.DEFAULT_IDLE_MILLIS,
+				getConfigLong("queueReportIntervalMillis", QueueDrainService.DEFAULT_REPORT_INTERVAL_MILLIS),
+				getConfigInt("queueMaxAttempts", QueueDrainService.DEFAULT_MAX_ATTEMPTS));
+		drainService.start(20 * 1000);
+
+		// Resends of messages we already processed are ACKed and skipped.
+		if (deduplicator == null
+				&& "true".equalsIgnoreCase(configProperties.getProperty("dedupEnabled", "false").trim())) {
+			String dedupFile = configProperties.getProperty("dedupFile", "").trim();
+			deduplicator = new MessageDeduplicator(
+					getConfigLong("dedupWindowMillis", MessageDeduplicator.DEFAULT_WINDOW_MILLIS),
+					getConfigInt("dedupMaxEntries", MessageDeduplicator.DEFAULT_MAX_ENTRIES),
+					dedupFile.isEmpty() ? null : new File(dedupFile));
+		}
+
+		// ACK-fast mode: inbound messages are journaled and ACKed, then mapped and
+		// delivered in the background.
+		if (replayService != null)
+			replayService.stop();
+
+		if ("true".equalsIgnoreCase(configProperties.getProperty("ackFastMode", "false").trim())) {
+			if (journal == null) {
+				journal = new IngressJournal(new File(configProperties.getProperty("journalDir", "journal")),
+						getConfigInt("journalSegmentBytes", IngressJournal.DEFAULT_SEGMENT_BYTES));
+			}
+			replayService = new JournalReplayService(this, journal, JournalReplayService.DEFAULT_IDLE_MILLIS);
+			replayService.start();
+		}
+	}
+
+	// Destinations only. Enough to deliver data without the queue and the background
+	// services (used by the dead-letter command).
+	public void configEndpoints(String controller_api_url, boolean useTls, String httpAuth,
+			String indexServiceApiUrl) {
 		this.controller_api_url = controller_api_url;
 		this.indexServiceApiUrl = indexServiceApiUrl;
 		this.useTls = useTls;
+		OutboundHttpClient.configure(this);
 
 		if (httpAuth != null && !httpAuth.isEmpty()) {
 			String[] httpAuthParam = httpAuth.split(":");
@@ -96,23 +227,6 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2Parser>
 						"Failed to load HTTP Basic Auth username and password. Please set it in the config.properties");
 			}
 		}
-
-		// Set up QueueFile
-		if (queueFile == null) {
-			File file = new File(qFileName);
-			queueFile = new QueueFile.Builder(file).build();
-		}
-
-		// After QueueFile is set up, we start background service.
-		if (timerTask == null)
-			timerTask = new QueueTaskTimer(this);
-
-		if (timer == null)
-			timer = new Timer(true);
-		else
-			timer.cancel();
-
-		timer.scheduleAtFixedRate(timerTask, 20 * 1000, 10 * 1000);
 	}
 
 	public boolean canProcess(Message theMessage) {
@@ -149,11 +263,51 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2Parser>
 		// 		throw e;
 		// 	}
 		// }
-			
-		ErrorCode error = mapMyMessage(theMessage);
-		if (error != ErrorCode.NOERROR) {
-			// Create an exception.
-			throw new HL7Exception(error.toString());
+
+		MessageContext context = MessageContext.of(theMessage);
+		if (deduplicator != null) {
+			MessageDeduplicator.Claim claim = deduplicator.claim(context);
+			if (claim == MessageDeduplicator.Claim.DUPLICATE) {
+				LOGGER.info("Duplicate message " + context.getControlId() + " from " + context.getSender()
+						+ ". ACKed without processing.");
+				try {
+					return theMessage.generateACK();
+				} catch (IOException e) {
+					throw new HL7Exception(e);
+				}
+			}
+			if (claim == MessageDeduplicator.Claim.IN_PROGRESS) {
+				// The sender tries again later, and gets the ACK of the copy in progress.
+				throw new HL7Exception("Message " + context.getControlId() + " from " + context.getSender()
+						+ " is already being processed");
+			}
+		}
+
+		boolean processed = false;
+		try {
+			if (journal != null) {
+				// ACK-fast mode. Once the message is on disk, it will be mapped and delivered
+				// by the replay service.
+				try {
+					journal.append(theMessage.encode().getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					throw new HL7Exception(e);
+				}
+			} else {
+				ErrorCode error = mapMyMessage(theMessage);
+				if (error != ErrorCode.NOERROR) {
+					// Create an exception.
+					throw new HL7Exception(error.toString());
+				}
+			}
+			processed = true;
+		} finally {
+			if (deduplicator != null) {
+				if (processed)
+					deduplicator.record(context);
+				else
+					deduplicator.release(context);
+			}
 		}
 
 		try {
@@ -305,36 +459,67 @@ public abstract class HL7v2ReceiverApplication<v extends BaseHL7v2Parser>
 //	}
 //	
 
-	public int process_q() {
-		String jsonString = "";
-		int ret = 0;
-		if (queueFile.isEmpty())
-			return ret;
-		boolean success = true;
+	// Put data at the tail of the queue. Used when delivery to the controller fails.
+	// routingKey picks the shard. Use destination and patient identifier so that
+	// data for the same patient is delivered in order. context is the HL7 message
+	// the data was mapped from.
+	public void enqueue(String routingKey, MessageContext context, JSONObject data) throws IOException {
+		QueueRecord record = QueueRecord.of(context.getSender(), context.getControlId(), System.currentTimeMillis(),
+				payloadCodec, data);
+		queue.add(routingKey, record.toBytes());
+	}
+
+	// As above, for data that is already JSON text. The text is stored as it is if the
+	// queue codec is json.
+	public void enqueue(String routingKey, MessageContext context, JSONObject data, byte[] jsonText)
+			throws IOException {
+		byte[] payload = payloadCodec == PayloadCodecs.JSON ? jsonText : payloadCodec.encode(data);
+		QueueRecord record = new QueueRecord(context.getSender(), context.getControlId(), System.currentTimeMillis(),
+				payloadCodec, payload);
+		queue.add(routingKey, record.toBytes());
+	}
+
+	// Take a queue record out of the queue for good. It can be reprocessed later
+	// with the dead-letter command.
+	public void deadLetter(QueueRecord record, String reason) {
+		String payload = new String(record.getPayload(), StandardCharsets.UTF_8);
+		if (deadLetters == null) {
+			LOGGER.error("Dropped (" + reason + "):" + payload);
+			return;
+		}
+
 		try {
-			byte[] data = queueFile.peek();
-			queueFile.remove();
-			jsonString = new String(data, StandardCharsets.UTF_8);
-			System.out.println("JSON object from queue(" + queueFile.size() + "):" + jsonString);
-			JSONObject ecrJson = new JSONObject(jsonString);
-			sendData(ecrJson);
-		} catch (JSONException e) {
-			success = false;
-			// We have ill-formed JSON. Remove it from queue.
-			LOGGER.error("Failed to process JSON data in Queue: " + e.getMessage() + "\nJSON data:" + jsonString);
-			e.printStackTrace();
-		} catch (Exception e) {
-			success = false;
-			e.printStackTrace();
+			deadLetters.add(record, reason);
+			LOGGER.error("Moved to dead letters (" + reason + "), sender " + record.getSender() + ", control id "
+					+ record.getControlId());
+		} catch (IOException e) {
+			LOGGER.error("Failed to write dead letter. Dropped (" + reason + "):" + payload, e);
 		}
+	}
+
+	public int queueSize() {
+		return queue == null ? 0 : queue.size();
+	}
 
-		if (success) {
-			ret = queueFile.size();
-		} else {
-			ret = -1;
+	// Send one queued record. Throws DeliveryFailedException if the delivery failed, or
+	// any other RuntimeException if the record could not be sent. The record is not
+	// queued again by the sender. The drainer nacks it, or moves it to the dead letters.
+	// Ill-formed records go to the dead letters here.
+	public void process_q(QueueRecord record) {
+		JSONObject ecrJson;
+		try {
+			ecrJson = record.toJson();
+		} catch (IOException e) {
+			// We have ill-formed JSON. Remove it from queue.
+			LOGGER.error("Failed to process JSON data in Queue: " + e.getMessage() + "\nJSON data:"
+					+ new String(record.getPayload(), StandardCharsets.UTF_8));
+			deadLetter(record, e.getMessage());
+			return;
 		}
 
-		return ret;
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("JSON object from queue(" + queueSize() + "):" + ecrJson.toString());
+		sendData(ecrJson);
 	}
 
 	public boolean authorize(String theUriPath, String theUsername, String thePassword) {
@@ -1,7 +1,20 @@
 package edu.gatech.i3l.hl7.v2.elr_receiver;
 
-import java.nio.charset.StandardCharsets;
-import java.sql.Timestamp;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -9,20 +22,17 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Message;
-import ca.uhn.hl7v2.model.v231.group.ORU_R01_ORCOBRNTEOBXNTECTI;
-import ca.uhn.hl7v2.model.v231.group.ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI;
-import ca.uhn.hl7v2.model.v251.group.ORU_R01_ORDER_OBSERVATION;
-import ca.uhn.hl7v2.model.v251.group.ORU_R01_PATIENT_RESULT;
 import ca.uhn.hl7v2.util.Terser;
 import edu.gatech.i3l.hl7.v2.parser.ecr.BaseHL7v2ECRParser;
 import edu.gatech.i3l.hl7.v2.parser.ecr.HL7v231ECRParser;
 import edu.gatech.i3l.hl7.v2.parser.ecr.HL7v251ECRParser;
+import edu.gatech.i3l.hl7.v2.parser.ecr.OruTraversal;
 
 /*
  * HL7v2 Message Receiver Application for ELR
@@ -34,9 +44,49 @@ import edu.gatech.i3l.hl7.v2.parser.ecr.HL7v251ECRParser;
  */
 
 public class HL7v2ReceiverECRApplication<v extends BaseHL7v2ECRParser> extends HL7v2ReceiverApplication<v> {
+	static final int DEFAULT_PATIENT_THREADS = 8;
+
+	// Null unless ecrBatchMode is set.
+	private EcrBatchSubmitter batchSubmitter = null;
+	private EcrIdAllocator idAllocator = null;
+	// Null maps the patient results of a message one after the other.
+	private volatile ExecutorService patientPool = null;
+
 	// Logger setup
 	final static Logger LOGGER = LoggerFactory.getLogger(HL7v2ReceiverECRApplication.class.getName());
 		
+	@Override
+	public void configEndpoints(String controller_api_url, boolean useTls, String httpAuth,
+			String indexServiceApiUrl) {
+		super.configEndpoints(controller_api_url, useTls, httpAuth, indexServiceApiUrl);
+
+		if (batchSubmitter != null)
+			batchSubmitter.stop();
+		batchSubmitter = EcrBatchSubmitter.fromConfig(this);
+
+		if (idAllocator == null)
+			idAllocator = EcrIdAllocator.fromConfig(this);
+
+		// Patient results of one message are mapped and sent on up to ecrPatientThreads
+		// threads. When they are all busy and the queue is full, the HL7 connection thread
+		// maps the next one itself.
+		if (patientPool != null)
+			patientPool.shutdown();
+		int patientThreads = getConfigInt("ecrPatientThreads", DEFAULT_PATIENT_THREADS);
+		if (patientThreads > 1) {
+			patientPool = new ThreadPoolExecutor(patientThreads, patientThreads, 60L, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(patientThreads * 4),
+					new QueueDrainService.DaemonThreadFactory("ecr-patient"), new RejectedExecutionHandler() {
+						// Also after shutdown, so that no task of a message is dropped.
+						public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+							task.run();
+						}
+					});
+		} else {
+			patientPool = null;
+		}
+	}
+
 //	public static JSONObject parseJSONFile(String filename) throws JSONException, IOException {
 //        String content = new String(Files.readAllBytes(Paths.get(filename)));
 //        return new JSONObject(content);
@@ -93,205 +143,368 @@ public class HL7v2ReceiverECRApplication<v extends BaseHL7v2ECRParser> extends H
 		// see http://hl7-definition.caristix.com:9010/Default.aspx?version=HL7%20v2.5.1&triggerEvent=ORU_R01
 		//
 		// There can be multiple Patient Results. We send ECR per patient.
+		//
+		// The patient results are mapped, on the patient pool when the message has more
+		// than one, and then their ECRs are sent the same way. Mapping stops at the first
+		// mapping error, and then no ECR of the message is sent. See ack() for the ACK.
+		final MessageContext context = MessageContext.of(msg);
 					
-		int newECRs = 0;
-		int totalRepPatientResult;
-		if (getMyParser().getMyVersion().equalsIgnoreCase("2.3.1"))
-			totalRepPatientResult = ((ca.uhn.hl7v2.model.v231.message.ORU_R01)msg).getPIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTIReps();
-		else
-			totalRepPatientResult = ((ca.uhn.hl7v2.model.v251.message.ORU_R01)msg).getPATIENT_RESULTReps();
+		// The parser and its version traversal are picked once for the message.
+		final v parser = getMyParser();
+		final OruTraversal oru = parser.getOruTraversal();
+		
+		int totalRepPatientResult = oru.getPatientResultReps(msg);
+		ExecutorService pool = totalRepPatientResult > 1 ? patientPool : null;
+		List<JSONObject> ecrs = new ArrayList<JSONObject>(totalRepPatientResult);
+		List<Future<ErrorCode>> mappings = new ArrayList<Future<ErrorCode>>(totalRepPatientResult);
 			
 		for (int i=0; i<totalRepPatientResult; i++) {
+			// The message itself is only read on this thread. A task only reads (and
+			// HAPI fills in) its own patient result group.
+			final Object patient_result = oru.getPatientResult(msg, i);
+			
 			// Create a new empty ECR JSON.
-			JSONObject ecr_json = new JSONObject();
+			final JSONObject ecr_json = new JSONObject();
 			
 			// Set sending application.
-			int res = getMyParser().map_provider_from_appfac ((Object) msg, ecr_json);
+			int res = parser.map_provider_from_appfac ((Object) msg, ecr_json);
 			if (res != 0) {
+				cancel(mappings);
 				return ErrorCode.MSH;
 			}
 
-			// Patient specific information
-			Object patient;
-			if (getMyParser().getMyVersion().equalsIgnoreCase("2.3.1")) {
-				ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI patient_result = ((ca.uhn.hl7v2.model.v231.message.ORU_R01)msg).getPIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI(i);
-				patient = patient_result.getPIDPD1NK1NTEPV1PV2();
-			} else {
-				ORU_R01_PATIENT_RESULT patient_result = ((ca.uhn.hl7v2.model.v251.message.ORU_R01)msg).getPATIENT_RESULT(i);
-				patient = patient_result.getPATIENT();
+			ecrs.add(ecr_json);
+			mappings.add(run(pool, new Callable<ErrorCode>() {
+				public ErrorCode call() {
+					return mapPatientResult(parser, oru, patient_result, ecr_json);
+				}
+			}));
+		}
+		
+		List<ErrorCode> results;
+		try {
+			results = results(mappings);
+			ErrorCode ack = ack(results);
+			if (isMappingError(ack)) {
+				// Nothing is sent. The message is rejected, and all of it comes again.
+				return ack;
 			}
 			
-			int result = getMyParser().map_patient (patient, ecr_json);
-			if (result == 0) {
-				newECRs++;
-			} else {
-				// return ErrorCode.PID;
-				continue;
+			List<Future<ErrorCode>> sends = new ArrayList<Future<ErrorCode>>(results.size());
+			for (int i=0; i<results.size(); i++) {
+				if (results.get(i) != ErrorCode.NOERROR)
+					continue;
+				final JSONObject ecr_json = ecrs.get(i);
+				sends.add(run(pool, new Callable<ErrorCode>() {
+					public ErrorCode call() {
+						try {
+							sendEcrs(Collections.singletonList(ecr_json), context, true);
+						} catch (Exception e) {
+							e.printStackTrace();
+							return ErrorCode.INTERNAL;
+						}
+						return ErrorCode.NOERROR;
+					}
+				}));
 			}
 			
-			// We should have the patient populated.
-			JSONObject patient_json;
-			if (ecr_json.isNull("Patient")) {
-				// This means the HL7v2 message has no patient demographic information.
-				// This shouldn't happen. But, anything can happen in the real world. So,
-				// we don't stop here. We are moving on.
-				patient_json = new JSONObject();
-				ecr_json.put("Patient", patient_json);
-			} else {
-				patient_json = ecr_json.getJSONObject("Patient");
+			// Patients that were mapped get the result of their send.
+			List<ErrorCode> sent = results(sends);
+			for (int i=0, n=0; i<results.size(); i++) {
+				if (results.get(i) == ErrorCode.NOERROR)
+					results.set(i, sent.get(n++));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return ErrorCode.INTERNAL;
+		}
+		
+		return ack(results);
+	}
+	
+	// On the pool, or right here if there is none.
+	private static Future<ErrorCode> run(ExecutorService pool, Callable<ErrorCode> task) {
+		if (pool != null)
+			return pool.submit(task);
+		FutureTask<ErrorCode> result = new FutureTask<ErrorCode>(task);
+		result.run();
+		return result;
+	}
+	
+	// The results of the tasks in order, up to the first mapping error. The tasks after
+	// it are cancelled. If a task threw, the others are cancelled and it is thrown here.
+	private static List<ErrorCode> results(List<Future<ErrorCode>> tasks) throws InterruptedException {
+		List<ErrorCode> results = new ArrayList<ErrorCode>(tasks.size());
+		for (Future<ErrorCode> task : tasks) {
+			ErrorCode error;
+			try {
+				error = task.get();
+			} catch (InterruptedException e) {
+				cancel(tasks);
+				throw e;
+			} catch (ExecutionException e) {
+				// As if it had been thrown here.
+				cancel(tasks);
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+			results.add(error);
+			if (isMappingError(error)) {
+				cancel(tasks);
+				break;
+			}
+		}
+		return results;
+	}
+	
+	// ORDER_OBSERVATION, LAB_RESULTS and the like. PID is not, as a patient that cannot
+	// be mapped is left out.
+	static boolean isMappingError(ErrorCode error) {
+		return error != ErrorCode.NOERROR && error != ErrorCode.PID && error != ErrorCode.INTERNAL;
+	}
+	
+	// The ACK for the results of the patients, in message order: the first mapping
+	// error, else PID if no patient could be mapped, else INTERNAL if an ECR could not
+	// be delivered (it is queued), else NOERROR.
+	static ErrorCode ack(List<ErrorCode> results) {
+		int newECRs = 0;
+		boolean undelivered = false;
+		for (ErrorCode error : results) {
+			if (isMappingError(error))
+				return error;
+			if (error == ErrorCode.NOERROR) {
+				newECRs++;
+			} else if (error == ErrorCode.INTERNAL) {
+				newECRs++;
+				undelivered = true;
 			}
+		}
+		
+		if (newECRs == 0) {
+			return ErrorCode.PID;
+		}
+		
+		if (undelivered) {
+			return ErrorCode.INTERNAL;
+		}
+		
+		return ErrorCode.NOERROR;
+	}
+	
+	// Running tasks are interrupted. They have not sent anything that is not queued.
+	private static void cancel(List<Future<ErrorCode>> tasks) {
+		for (Future<ErrorCode> task : tasks) {
+			task.cancel(true);
+		}
+	}
+	
+	// One patient result into ecr_json. PID if the patient could not be mapped.
+	private ErrorCode mapPatientResult(v parser, OruTraversal oru, Object patient_result, JSONObject ecr_json) {
+		// Patient specific information
+		Object patient = oru.getPatient(patient_result);
+		
+		int result = parser.map_patient (patient, ecr_json);
+		if (result != 0) {
+			// No ECR for this patient. PID only if no patient in the message could be mapped.
+			return ErrorCode.PID;
+		}
+		
+		// We should have the patient populated.
+		JSONObject patient_json;
+		if (ecr_json.isNull("Patient")) {
+			// This means the HL7v2 message has no patient demographic information.
+			// This shouldn't happen. But, anything can happen in the real world. So,
+			// we don't stop here. We are moving on.
+			patient_json = new JSONObject();
+			ecr_json.put("Patient", patient_json);
+		} else {
+			patient_json = ecr_json.getJSONObject("Patient");
+		}
 
-			// ORC/OBR Parsing
-			JSONArray laborders_json = new JSONArray();
-			
-			// This is a new JSON Array object. Put it in the patient section.
-			patient_json.put("Lab_Order_Code", laborders_json);
+		// ORC/OBR Parsing
+		JSONArray laborders_json = new JSONArray();
+		
+		// This is a new JSON Array object. Put it in the patient section.
+		patient_json.put("Lab_Order_Code", laborders_json);
 
-			int totalOrderObs;
-			if (getMyParser().getMyVersion().equalsIgnoreCase("2.3.1")) {
-				ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI patient_result = ((ca.uhn.hl7v2.model.v231.message.ORU_R01)msg).getPIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI(i);
-				totalOrderObs = patient_result.getORCOBRNTEOBXNTECTIReps();
-			} else {
-				ORU_R01_PATIENT_RESULT patient_result = ((ca.uhn.hl7v2.model.v251.message.ORU_R01)msg).getPATIENT_RESULT(i);
-				totalOrderObs = patient_result.getORDER_OBSERVATIONReps();
-			}
-			for (int j=0; j<totalOrderObs; j++) {
-				Object orderObs;
-				if (getMyParser().getMyVersion().equalsIgnoreCase("2.3.1")) {
-					ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI patient_result = ((ca.uhn.hl7v2.model.v231.message.ORU_R01)msg).getPIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI(i);
-					orderObs = patient_result.getORCOBRNTEOBXNTECTI(j);
-				} else {
-					ORU_R01_PATIENT_RESULT patient_result = ((ca.uhn.hl7v2.model.v251.message.ORU_R01)msg).getPATIENT_RESULT(i);
-					orderObs = patient_result.getORDER_OBSERVATION(j);
-				}
+		int totalOrderObs = oru.getOrderObservationReps(patient_result);
+		for (int j=0; j<totalOrderObs; j++) {
+			Object orderObs = oru.getOrderObservation(patient_result, j);
 
-				JSONObject laborder_json = getMyParser().map_order_observation (orderObs);
-				if (laborder_json == null) {
-					return ErrorCode.ORDER_OBSERVATION;
+			JSONObject laborder_json = parser.map_order_observation (orderObs);
+			if (laborder_json == null) {
+				return ErrorCode.ORDER_OBSERVATION;
+			}
+			laborders_json.put(laborder_json);
+			
+			// We add lab results to lab order.
+			JSONArray labresults_json = new JSONArray();
+			laborder_json.put("Laboratory_Results", labresults_json);
+			
+			int totalObservations = oru.getObservationReps(orderObs);
+			for (int k=0; k<totalObservations; k++) {
+				Object obsResult = oru.getObservation(orderObs, k);
+				JSONObject labresult_json = parser.map_lab_result (obsResult);
+				if (labresult_json == null) {
+					return ErrorCode.LAB_RESULTS;
 				}
-				laborders_json.put(laborder_json);
-				
-				// We add lab results to lab order.
-				JSONArray labresults_json = new JSONArray();
-				laborder_json.put("Laboratory_Results", labresults_json);
-				
-				int totalObservations;
-				if (getMyParser().getMyVersion().equalsIgnoreCase("2.3.1")) {
-					totalObservations = ((ORU_R01_ORCOBRNTEOBXNTECTI)orderObs).getOBXNTEReps();
+				labresults_json.put(labresult_json);
+			}
+			
+			// For each order, we have provider, facility, order date and reason information.
+			// We put this information in the high level.
+			//
+			// Provider and Facility at Top ECR level.
+			// Order Date and Reason at Patient level.
+			//
+			// Provider and Facility: 
+			// We are in the Order Loop. So, we will come back. However, 
+			// ECR allows only one provider and facility. So, this can be overwritten
+			// by next order if provider info exists.
+			if (!laborder_json.isNull("Provider")) {
+				JSONObject provider_json = laborder_json.getJSONObject("Provider");
+				if (provider_json != null) 
+					parser.add_provider (provider_json, ecr_json);
+			}				
+			
+			if (!laborder_json.isNull("Facility")) {
+				JSONObject facility_json = laborder_json.getJSONObject("Facility");
+				if (facility_json != null) ecr_json.put("Facility", facility_json);
+			}
+			
+			// Order Date and Reason. 
+			// We have Visit DateTime in ECR. We will put order date as a visit date
+			// as the order usually made when a patient visits a clinic.
+			if (!laborder_json.isNull("DateTime")) {
+				String orderDate_json = laborder_json.getString("DateTime");
+				if (orderDate_json != null) patient_json.put("Visit_DateTime", orderDate_json);
+			}
+			
+			// We have reasons in lab order. We put this in the trigger code.
+			if (!laborder_json.isNull("Reasons")) {
+				JSONArray reasons_json = laborder_json.getJSONArray("Reasons");
+				JSONArray triggercode_json;
+				if (patient_json.isNull("Tigger_Code")) {
+					triggercode_json = new JSONArray();
+					patient_json.put("Trigger_Code", triggercode_json);
 				} else {
-					totalObservations = ((ORU_R01_ORDER_OBSERVATION)orderObs).getOBSERVATIONReps();
-				}
-				for (int k=0; k<totalObservations; k++) {
-					Object obsResult;
-					if (getMyParser().getMyVersion().equalsIgnoreCase("2.3.1")) {
-						obsResult = ((ORU_R01_ORCOBRNTEOBXNTECTI)orderObs).getOBXNTE(k).getOBX();
-					} else {
-						obsResult = ((ORU_R01_ORDER_OBSERVATION)orderObs).getOBSERVATION(k).getOBX();						
-					}
-					JSONObject labresult_json = getMyParser().map_lab_result (obsResult);
-					if (labresult_json == null) {
-						return ErrorCode.LAB_RESULTS;
-					}
-					labresults_json.put(labresult_json);
-				}
-				
-				// For each order, we have provider, facility, order date and reason information.
-				// We put this information in the high level.
-				//
-				// Provider and Facility at Top ECR level.
-				// Order Date and Reason at Patient level.
-				//
-				// Provider and Facility: 
-				// We are in the Order Loop. So, we will come back. However, 
-				// ECR allows only one provider and facility. So, this can be overwritten
-				// by next order if provider info exists.
-				if (!laborder_json.isNull("Provider")) {
-					JSONObject provider_json = laborder_json.getJSONObject("Provider");
-					if (provider_json != null) 
-						getMyParser().add_provider (provider_json, ecr_json);
-				}				
-				
-				if (!laborder_json.isNull("Facility")) {
-					JSONObject facility_json = laborder_json.getJSONObject("Facility");
-					if (facility_json != null) ecr_json.put("Facility", facility_json);
+					triggercode_json = patient_json.getJSONArray("Trigger_Code");
 				}
-				
-				// Order Date and Reason. 
-				// We have Visit DateTime in ECR. We will put order date as a visit date
-				// as the order usually made when a patient visits a clinic.
-				if (!laborder_json.isNull("DateTime")) {
-					String orderDate_json = laborder_json.getString("DateTime");
-					if (orderDate_json != null) patient_json.put("Visit_DateTime", orderDate_json);
-				}
-				
-				// We have reasons in lab order. We put this in the trigger code.
-				if (!laborder_json.isNull("Reasons")) {
-					JSONArray reasons_json = laborder_json.getJSONArray("Reasons");
-					JSONArray triggercode_json;
-					if (patient_json.isNull("Tigger_Code")) {
-						triggercode_json = new JSONArray();
-						patient_json.put("Trigger_Code", triggercode_json);
-					} else {
-						triggercode_json = patient_json.getJSONArray("Trigger_Code");
-					}
-					if (reasons_json != null) {
-						for (int c=0; c<reasons_json.length(); c++) {
-							triggercode_json.put(reasons_json.get(c));
-						}
+				if (reasons_json != null) {
+					for (int c=0; c<reasons_json.length(); c++) {
+						triggercode_json.put(reasons_json.get(c));
 					}
 				}
 			}
-			
-			try {
-				sendEcr (ecr_json);
-			} catch (Exception e) {
-				e.printStackTrace();
-				return ErrorCode.INTERNAL;
-			}
-		}		
-		
-		if (newECRs == 0) {
-			return ErrorCode.PID;
 		}
 		
 		return ErrorCode.NOERROR;
 	}
 	
-	private void sendEcr(JSONObject ecrJson) 
+	// queueOnFailure is false when the ECR comes from the queue. The queue
+	// drainer keeps it in the queue until it is delivered.
+	//
+	// Every ECR is tried, one POST each or, in batch mode, through the batch
+	// submitter. A failed ECR is queued, and the first failure is thrown at the end.
+	private void sendEcrs(List<JSONObject> ecrJsons, MessageContext context, boolean queueOnFailure) 
 		throws Exception {
 
 //		System.out.println("ECR Report submitted:"+ecrJson.toString());
 //		return;
 		
-//Todo: Deal with this later. Just add ID for now.
-		
-		Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-		Long id_num = (Long) (timestamp.getTime()/10000);
-		ecrJson.put("id", id_num.toString());
-		
-		LOGGER.debug("Sending to "+getControllerApiUrl()+": "+ecrJson.toString());
-		Client client = Client.create();
-		WebResource webResource = client.resource(getControllerApiUrl());
+		List<EcrDocument> ecrs = new ArrayList<EcrDocument>(ecrJsons.size());
+		List<Future<BatchSubmitter.Outcome>> outcomes = new ArrayList<Future<BatchSubmitter.Outcome>>(
+				ecrJsons.size());
+		for (JSONObject ecrJson : ecrJsons) {
+			// An ECR from the queue keeps the id it was given the first time.
+			if (ecrJson.isNull("id"))
+				ecrJson.put("id", Long.toString(idAllocator.next()));
+			
+			// Serialized once. The logs, the request and the queue all use these bytes.
+			EcrDocument ecr = EcrDocument.of(ecrJson);
+			ecrs.add(ecr);
+			if (batchSubmitter != null)
+				outcomes.add(batchSubmitter.submit(ecr));
+			else
+				outcomes.add(CompletableFuture.completedFuture(postToController(ecr)));
+		}
+
+		DeliveryFailedException failure = null;
+		for (int i = 0; i < ecrs.size(); i++) {
+			BatchSubmitter.Outcome outcome;
+			try {
+				outcome = batchSubmitter == null ? outcomes.get(i).get()
+						: outcomes.get(i).get(batchSubmitter.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				LOGGER.error("No outcome from the ECR batch in " + batchSubmitter.getTimeoutMillis() + " ms");
+				outcome = new BatchSubmitter.Outcome(-1, "Timed out");
+			}
+			try {
+				delivered(ecrs.get(i), outcome, context, queueOnFailure);
+			} catch (DeliveryFailedException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private BatchSubmitter.Outcome postToController(EcrDocument ecr) {
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Sending to "+getControllerApiUrl()+": "+ecr.getText());
+		WebResource webResource = OutboundHttpClient.get().resource(getControllerApiUrl());
 		
-		ClientResponse response = webResource.type("application/json").post(ClientResponse.class, ecrJson.toString());
-		if (response.getStatus() != 201 && response.getStatus() != 200) {
+		int status;
+		try {
+			ClientResponse response = webResource.type("application/json").post(ClientResponse.class, ecr.getBytes());
+			status = response.getStatus();
+		} catch (ClientHandlerException e) {
+			// Could not connect. Same as any other failure. Queue it.
+			LOGGER.error("Failed to connect to PHCR controller ("+getControllerApiUrl()+"): "+e.getMessage());
+			status = -1;
+		}
+		return new BatchSubmitter.Outcome(status, null);
+	}
+
+	private void delivered(EcrDocument ecr, BatchSubmitter.Outcome outcome, MessageContext context,
+			boolean queueOnFailure) throws IOException {
+		int status = outcome.getStatus();
+		if (status != 201 && status != 200) {
 			// Failed to write ECR. We should put this in the queue and retry.
-			LOGGER.error("Failed to talk to PHCR controller ("+getControllerApiUrl()+") for ECR Resport:\n"+ecrJson.toString());
-			System.out.println("Failed to talk to PHCR controller ("+getControllerApiUrl()+"):"+ecrJson.toString());
-			getQueueFile().add(ecrJson.toString().getBytes());
-			throw new RuntimeException("Failed: HTTP error code : "+response.getStatus());
-		} else {
-			LOGGER.info("ECR Report submitted:"+ecrJson.toString());
-			System.out.println("ECR Report submitted:"+ecrJson.toString());
+			LOGGER.error("Failed to talk to PHCR controller ("+getControllerApiUrl()+") for ECR Resport:\n"+ecr.getText());
+			if (queueOnFailure)
+				enqueue(getQueueRoutingKey(ecr.getJson()), context, ecr.getJson(), ecr.getBytes());
+			throw new DeliveryFailedException("Failed: HTTP error code : "+status, status);
+		} else if (LOGGER.isInfoEnabled()) {
+			LOGGER.info("ECR Report submitted:"+ecr.getText());
 		}
 	}
 
+	// Queue shard routing key: destination and patient identifier.
+	private String getQueueRoutingKey(JSONObject ecrJson) {
+		String patientId = "";
+		JSONObject patient_json = ecrJson.optJSONObject("Patient");
+		if (patient_json != null) {
+			JSONArray ids_json = patient_json.optJSONArray("ID");
+			if (ids_json != null && ids_json.length() > 0) {
+				JSONObject id_json = ids_json.optJSONObject(0);
+				if (id_json != null)
+					patientId = id_json.optString("value", "");
+			}
+		}
+		
+		return getControllerApiUrl() + "|" + patientId;
+	}
+
 	public void sendData(JSONObject jsonData) {
 		try {
-			sendEcr(jsonData);
+			sendEcrs(Collections.singletonList(jsonData), MessageContext.NONE, false);
+		} catch (RuntimeException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
+			throw new RuntimeException("Failed to send ECR: " + e.getMessage(), e);
 		}
-		
 	}
 }
@@ -1,48 +1,39 @@
 package edu.gatech.i3l.hl7.v2.elr_receiver;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.time.Instant;
-import java.util.Base64;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.ws.rs.core.MediaType;
 
-import org.hl7.fhir.dstu3.model.Bundle;
-import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
-import org.hl7.fhir.dstu3.model.Bundle.BundleEntryResponseComponent;
-import org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender;
-import org.hl7.fhir.dstu3.model.HumanName;
-import org.hl7.fhir.dstu3.model.Identifier;
-import org.hl7.fhir.dstu3.model.MessageHeader;
-import org.hl7.fhir.dstu3.model.MessageHeader.MessageDestinationComponent;
-import org.hl7.fhir.dstu3.model.Patient;
-import org.hl7.fhir.dstu3.model.Resource;
-import org.hl7.fhir.dstu3.model.ResourceType;
-import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.core.header.FormDataContentDisposition;
+import com.sun.jersey.multipart.FormDataBodyPart;
 import com.sun.jersey.multipart.FormDataMultiPart;
-import com.sun.jersey.multipart.file.StreamDataBodyPart;
-import com.sun.jersey.multipart.impl.MultiPartWriter;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.util.Terser;
 import edu.gatech.i3l.hl7.v2.parser.fhir.BaseHL7v2FHIRParser;
+import edu.gatech.i3l.hl7.v2.parser.fhir.HL7v23FhirMappingParser;
 import edu.gatech.i3l.hl7.v2.parser.fhir.HL7v23FhirR4Parser;
 import edu.gatech.i3l.hl7.v2.parser.fhir.HL7v23FhirStu3Parser;
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingEngine;
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingSpec;
 
 /*
  * HL7v2 Message Receiver Application for ELR
@@ -54,16 +45,81 @@ import edu.gatech.i3l.hl7.v2.parser.fhir.HL7v23FhirStu3Parser;
  */
 
 public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends HL7v2ReceiverApplication<v> {
-	private FhirContext ctx = null;
-	static long expireSeconds = 0L;
-	static String accessToken = null;
-	static String tokenType = null;
+	private DeliveryLane indexLane = null;
+	private DeliveryLane openMdiLane = null;
+	private FhirBatchSubmitter batchSubmitter = null;
+	private IndexRegistrationService indexService = null;
+	private OpenMdiTokenManager tokenManager = null;
+	// Null for the hand written parser.
+	private MappingEngine mappingEngine = null;
 
 	// Logger setup
 	final static Logger LOGGER = LoggerFactory.getLogger(HL7v2ReceiverFHIRApplication.class.getName());
 
 	public HL7v2ReceiverFHIRApplication() {
-		ctx = FhirContext.forR4();
+		// R4 for the bundles we map. STU3 for the FHIR controller responses read for
+		// index registration.
+		FhirSerializationService.get().warmUp(FhirVersionEnum.R4);
+		FhirSerializationService.get().warmUp(FhirVersionEnum.DSTU3);
+	}
+
+	// config() calls this too, so the lanes are there for the dead-letter tool as well.
+	@Override
+	public void configEndpoints(String controller_api_url, boolean useTls, String httpAuth,
+			String indexServiceApiUrl) {
+		configLanes();
+		super.configEndpoints(controller_api_url, useTls, httpAuth, indexServiceApiUrl);
+		FhirRequestEntity.configure(this);
+
+		if (batchSubmitter != null)
+			batchSubmitter.stop();
+		batchSubmitter = FhirBatchSubmitter.fromConfig(this);
+
+		if (indexService != null)
+			indexService.stop();
+		String indexServiceApiUrlEnv = System.getenv("PATIENT_INDEX_SERVER");
+		if (indexServiceApiUrlEnv != null)
+			indexService = IndexRegistrationService.fromConfig(this, indexServiceApiUrlEnv, indexLane);
+
+		if (tokenManager != null)
+			tokenManager.stop();
+		tokenManager = OpenMdiTokenManager.fromConfig(this);
+		String authUrl = System.getenv("OPENMDI_AUTH_API_URL");
+		if (authUrl != null && !authUrl.isEmpty())
+			tokenManager.prefetch(authUrl, System.getenv("OPENMDI_AUTH_API_CLIENT_ID"),
+					System.getenv("OPENMDI_AUTH_API_CLIENT_SECRET"));
+	}
+
+	@Override
+	public void config(String controller_api_url, boolean useTls, String qFileName, String ecr_template_filename,
+			String httpAuth, String indexServiceApiUrl) throws Exception {
+		super.config(controller_api_url, useTls, qFileName, ecr_template_filename, httpAuth, indexServiceApiUrl);
+
+		// FHIR mappings from ToxicologyMappingToFHIR.tsv (or fhirMappingSpec) instead of the
+		// hand written parser. Compiled here, so a bad spec stops the start up.
+		String mappingSpec = getConfigProperties().getProperty("fhirMappingSpec", "").trim();
+		if (!mappingSpec.isEmpty())
+			MappingEngine.setSpec(MappingSpec.load(new File(mappingSpec)));
+		if ("spec".equalsIgnoreCase(getConfigProperties().getProperty("fhirMappingEngine", "").trim()))
+			mappingEngine = MappingEngine.get(FhirSerializationService.get().getContext(FhirVersionEnum.R4));
+		else
+			mappingEngine = null;
+	}
+
+	// Index registration batches are required. OpenMDI upload is shed when it falls behind.
+	private void configLanes() {
+		if (indexLane == null)
+			indexLane = DeliveryLane.fromConfig(this, "Index", false);
+		if (openMdiLane == null)
+			openMdiLane = DeliveryLane.fromConfig(this, "OpenMdi", true);
+	}
+
+	public DeliveryLane getIndexLane() {
+		return indexLane;
+	}
+
+	public DeliveryLane getOpenMdiLane() {
+		return openMdiLane;
 	}
 
 	@Override
@@ -85,7 +141,10 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		if (theMessage.getVersion().equalsIgnoreCase("2.3") == true) {
 			LOGGER.info("Message Received with v2.3. Setting a parser for FHIR STU3");
 //			setMyParser((v) new HL7v23FhirStu3Parser());
-			setMyParser((v) new HL7v23FhirR4Parser());
+			if (mappingEngine != null)
+				setMyParser((v) new HL7v23FhirMappingParser(mappingEngine));
+			else
+				setMyParser((v) new HL7v23FhirR4Parser());
 		} else {
 			LOGGER.info("Message Received, but is not v2.3. Received message version is " + theMessage.getVersion());
 			return false;
@@ -128,12 +187,13 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 			return ErrorCode.INTERNAL;
 		}
 
+		MessageContext context = MessageContext.of(msg);
+		List<FhirBundleEnvelope> envelopes = new ArrayList<FhirBundleEnvelope>(bundles.size());
+		for (IBaseBundle bundle : bundles) {
+			envelopes.add(FhirBundleEnvelope.of(bundle));
+		}
 		try {
-			for (IBaseBundle bundle : bundles) {
-				String fhirJson = ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
-				JSONObject fhirJsonObject = new JSONObject(fhirJson);
-				sendFhir(fhirJsonObject);
-			}
+			sendFhir(envelopes, context);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return ErrorCode.INTERNAL;
@@ -142,9 +202,10 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		return ErrorCode.NOERROR;
 	}
 
-	private void sendFhirToOpenMdi(JSONObject fhirJson, String meOffice) {
+	// Runs on the OpenMDI lane.
+	private void sendFhirToOpenMdi(FhirBundleEnvelope envelope, String meOffice) {
 		ClientResponse response;
-		Client client;
+		OutboundHttpClient client = OutboundHttpClient.get();
 		WebResource webResource;
 
 		String authUrl = System.getenv("OPENMDI_AUTH_API_URL");
@@ -159,42 +220,9 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 		String meOfficeMDI = meOffice.replaceAll(" ", "_").replaceAll("/", "_");
 
 		dataUrl = dataUrl.replace("{orgName}", meOfficeMDI);
-		client = Client.create();
-
-		// First, check if we have valid not expired token.
-		long currentSeconds = Instant.now().getEpochSecond();
-		if (expireSeconds == 0L || expireSeconds < currentSeconds || accessToken == null) {
-			// renew access token
-			byte[] auth = (openMdiClienId + ":" + openMdiClientSecret).getBytes(StandardCharsets.UTF_8);
-			String encoded = Base64.getEncoder().encodeToString(auth);
-
-			webResource = client.resource(authUrl);
-			response = webResource.type(MediaType.APPLICATION_FORM_URLENCODED).accept(MediaType.APPLICATION_JSON)
-					.header("Cache-Control", "no-cache").header("Authorization", "Basic " + encoded)
-					.post(ClientResponse.class, "grant_type=client_credentials&scope=openmdi");
-
-			if (response.getStatus() != 200 && response.getStatus() != 201) {
-				LOGGER.error("Failed to obtain token from OpenMDI for this credential");
-				return;
-			}
 
-			String responseEntity = response.getEntity(String.class);
-			JSONObject responseJson = new JSONObject(responseEntity);
-			accessToken = responseJson.getString("access_token");
-			if (accessToken == null || accessToken.isEmpty()) {
-				LOGGER.error("Access token received fro OpenMDI is nll or empty");
-				return;
-			}
-
-			tokenType = responseJson.getString("token_type");
-			if (tokenType == null || tokenType.isEmpty()) {
-				tokenType = "Bearer";
-			}
-
-			// update expireSeconds
-			int expiresIn = responseJson.getInt("expires_in");
-			expireSeconds = currentSeconds + expiresIn - 1;
-		}
+		// The token is normally fetched ahead of time by the token manager.
+		OpenMdiTokenManager.Token token = tokenManager.getToken(authUrl, openMdiClienId, openMdiClientSecret);
 
 //		LinkedMultiValueMap<String, Object> map = new LinkedMultiValueMap<>();
 //		InputStream inputStream = new ByteArrayInputStream(fhirJson.toString().getBytes());
@@ -238,36 +266,36 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 //		}
 
 		// We should have access token now.
-		
-		ClientConfig cc = new DefaultClientConfig();
-		cc.getClasses().add(MultiPartWriter.class);
-		client = Client.create(cc);
-		
 		webResource = client.resource(dataUrl);
 		FormDataMultiPart multipartEntity = new FormDataMultiPart();
 
-		StreamDataBodyPart bodyPart = new StreamDataBodyPart();
-		bodyPart.setName("asset");
-		bodyPart.setFilename("tempStream.json");
-		InputStream inputStream = new ByteArrayInputStream(fhirJson.toString().getBytes());
-		bodyPart.setStreamEntity(inputStream);
+		// The bundle is written straight into the multipart body.
+		FormDataBodyPart bodyPart = new FormDataBodyPart(
+				FormDataContentDisposition.name("asset").fileName("tempStream.json").build(),
+				FhirRequestEntity.of(envelope, false), new MediaType("application", "fhir+json"));
 //		FormDataBodyPart bodyPart = new FormDataBodyPart("asset", fhirJson.toString(),
 //		FileDataBodyPart bodyPart = new FileDataBodyPart("asset", new File("temp.json"),
 //				new MediaType("application", "fhir+json"));
 
-		bodyPart.setMediaType(new MediaType("application", "fhir+json"));
 		multipartEntity.bodyPart(bodyPart);
 //		ContentDisposition cd = bodyPart.getContentDisposition();
 
 //		byte[] data = fhirJson.toString().getBytes();
 //		multipartEntity.bodyPart(new FormDataBodyPart("asset", data, MediaType.APPLICATION_OCTET_STREAM_TYPE));
 
-		response = webResource.type(MediaType.MULTIPART_FORM_DATA_TYPE).accept(MediaType.APPLICATION_JSON)
-				.header("Authorization", tokenType + " " + accessToken).post(ClientResponse.class, multipartEntity);
+		try {
+			response = webResource.type(MediaType.MULTIPART_FORM_DATA_TYPE).accept(MediaType.APPLICATION_JSON)
+					.header("Authorization", token.getAuthorization()).post(ClientResponse.class, multipartEntity);
+		} catch (ClientHandlerException e) {
+			throw new DeliveryFailedException("Failed to connect to OpenMDI: " + e.getMessage(), -1);
+		}
 
+		if (response.getStatus() == 401)
+			tokenManager.invalidate(authUrl, openMdiClienId, token);
 		if (response.getStatus() != 200 && response.getStatus() != 201) {
 			LOGGER.error("POSTING FHIR data to " + webResource.toString() + " failed");
 			LOGGER.error(response.getStatusInfo().getReasonPhrase());
+			throw new DeliveryFailedException("POSTING FHIR data to OpenMDI failed", response.getStatus());
 		} else {
 			LOGGER.debug("FHIR Data Submitted to OpenMDI\n" + response.getEntity(String.class));
 		}
@@ -283,161 +311,130 @@ public class HL7v2ReceiverFHIRApplication<v extends BaseHL7v2FHIRParser> extends
 //		}
 	}
 
-	private void sendFhir(JSONObject fhirJsonObject) throws Exception {
-
-		Client client = Client.create();
-		WebResource webResource = client.resource(getControllerApiUrl());
-		IParser p = FhirContext.forR4().newJsonParser();
-
-		String meOffice;
-		if (getMyParser() == null || getMyParser().getReceivingFacilityName() == null) {
-			// Get meOffice from destination in FHIR.
-			Bundle bundleMessage = p.parseResource(Bundle.class, fhirJsonObject.toString());
-			List<BundleEntryComponent> messageEntryList = bundleMessage.getEntry();
-			BundleEntryComponent messageHeaderEntry = messageEntryList.get(0);
-			Resource messageHeader = messageHeaderEntry.getResource();
-			if (messageHeader.getResourceType() != ResourceType.MessageHeader) {
-				// This is a bug... we should have a header.
-				LOGGER.error("Message Bundler withoug MessageHeader. Message ignored");
-				return;
-			}
-			List<MessageDestinationComponent> destinations = ((MessageHeader) messageHeader).getDestination();
-			if (destinations.size() > 0) {
-				meOffice = destinations.get(0).getName();
-				if (meOffice == null || meOffice.isEmpty()) {
-					meOffice = destinations.get(0).getEndpoint();
+	private void sendFhir(List<FhirBundleEnvelope> envelopes, MessageContext context) throws Exception {
+		sendFhir(envelopes, context, true);
+	}
+
+	// queueOnFailure is false when the message comes from the queue. The queue
+	// drainer keeps it in the queue until it is delivered.
+	//
+	// Only the POST to the FHIR controller is done here, one bundle at a time or,
+	// in batch mode, through the batch submitter. Index registration and OpenMDI
+	// upload are done in the background and share the envelope, so the routing facts
+	// are taken from it once.
+	//
+	// Every bundle is tried. A failed bundle is queued, and the first failure is
+	// thrown at the end.
+	private void sendFhir(List<FhirBundleEnvelope> envelopes, MessageContext context, boolean queueOnFailure)
+			throws Exception {
+
+		List<FhirBundleEnvelope> sent = new ArrayList<FhirBundleEnvelope>(envelopes.size());
+		List<String> offices = new ArrayList<String>(envelopes.size());
+		List<Future<BatchSubmitter.Outcome>> outcomes = new ArrayList<Future<BatchSubmitter.Outcome>>(
+				envelopes.size());
+		for (FhirBundleEnvelope envelope : envelopes) {
+			String meOffice;
+			if (getMyParser() == null || getMyParser().getReceivingFacilityName() == null) {
+				// Get meOffice from destination in FHIR.
+				if (!envelope.hasMessageHeader()) {
+					// This is a bug... we should have a header.
+					LOGGER.error("Message Bundler withoug MessageHeader. Message ignored");
+					continue;
 				}
+				meOffice = envelope.getDestination();
 			} else {
-				meOffice = "NOT_SPECIFIED";
+				meOffice = getMyParser().getReceivingFacilityName();
 			}
-		} else {
-			meOffice = getMyParser().getReceivingFacilityName();
+
+			sent.add(envelope);
+			offices.add(meOffice);
+			if (batchSubmitter != null)
+				outcomes.add(batchSubmitter.submit(envelope));
+			else
+				outcomes.add(CompletableFuture.completedFuture(postToController(envelope)));
+		}
+
+		DeliveryFailedException failure = null;
+		for (int i = 0; i < sent.size(); i++) {
+			BatchSubmitter.Outcome outcome;
+			try {
+				outcome = batchSubmitter == null ? outcomes.get(i).get()
+						: outcomes.get(i).get(batchSubmitter.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				LOGGER.error("No outcome from the FHIR batch in " + batchSubmitter.getTimeoutMillis() + " ms");
+				outcome = new BatchSubmitter.Outcome(-1, "Timed out");
+			}
+			try {
+				delivered(sent.get(i), offices.get(i), outcome, context, queueOnFailure);
+			} catch (DeliveryFailedException e) {
+				if (failure == null)
+					failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	private BatchSubmitter.Outcome postToController(FhirBundleEnvelope envelope) {
+		WebResource webResource = OutboundHttpClient.get().resource(getControllerApiUrl());
+
+		int status;
+		String response = null;
+		try {
+			ClientResponse clientResponse = FhirRequestEntity.of(envelope).post(webResource);
+			status = clientResponse.getStatus();
+			response = clientResponse.getEntity(String.class);
+		} catch (ClientHandlerException e) {
+			// Could not connect. Same as any other failure. Queue it.
+			LOGGER.error("Failed to connect to FHIR Controller: " + e.getMessage());
+			status = -1;
 		}
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("FHIR Message submitted:" + envelope.getJson());
 
-		ClientResponse response = webResource.type("application/fhir+json").post(ClientResponse.class,
-				fhirJsonObject.toString());
-		LOGGER.info("FHIR Message submitted:" + fhirJsonObject.toString());
+		return new BatchSubmitter.Outcome(status, response);
+	}
 
-		if (response.getStatus() != 201 && response.getStatus() != 200) {
+	private void delivered(final FhirBundleEnvelope envelope, final String meOffice,
+			BatchSubmitter.Outcome outcome, MessageContext context, boolean queueOnFailure) throws IOException {
+		int status = outcome.getStatus();
+		if (status != 201 && status != 200) {
 			// Failed to write ECR. We should put this in the queue and retry.
-			LOGGER.error("Failed to talk to FHIR Controller for Message:\n" + fhirJsonObject.toString());
-			System.out.println("Failed to talk to FHIR controller:" + fhirJsonObject.toString());
-			getQueueFile().add(fhirJsonObject.toString().getBytes());
-			throw new RuntimeException("Failed: HTTP error code : " + response.getStatus());
-		} else {
-			String indexServiceApiUrl = getIndexServiceApiUrl();
-			String indexServiceApiUrlEnv = System.getenv("PATIENT_INDEX_SERVER");
-			if (indexServiceApiUrlEnv == null)
-				return;
-			else
-				indexServiceApiUrl = indexServiceApiUrlEnv;
+			LOGGER.error("Failed to talk to FHIR Controller for Message:\n" + envelope.getJson());
+			if (queueOnFailure)
+				enqueue(getQueueRoutingKey(envelope, meOffice), context, envelope.toJsonObject());
+			throw new DeliveryFailedException("Failed: HTTP error code : " + status, status);
+		}
 
-			String resp = response.getEntity(String.class);
-			Bundle bundleResponse = p.parseResource(Bundle.class, resp);
-			if (bundleResponse == null) {
-				throw new RuntimeException("Failed: FHIR response error : " + resp);
-			} else {
-				List<BundleEntryComponent> entryList = bundleResponse.getEntry();
-				for (BundleEntryComponent entry : entryList) {
-					// We just check Patient id from location in response.
-					BundleEntryResponseComponent entryResponse = entry.getResponse();
-					if (entryResponse != null && !entryResponse.isEmpty()) {
-						String location = entryResponse.getLocation();
-						if (location != null && !location.isEmpty()) {
-							if (location.contains("Patient")) {
-								String[] path = location.split("/");
-								String id = path[path.length - 1];
-
-								Bundle messageFhir = p.parseResource(Bundle.class, fhirJsonObject.toString());
-								List<BundleEntryComponent> messageEntryList = messageFhir.getEntry();
-								boolean done = false;
-
-								for (BundleEntryComponent messageEntry : messageEntryList) {
-									Resource resource = messageEntry.getResource();
-									if (resource != null && !resource.isEmpty()) {
-										if (resource.getResourceType() == ResourceType.Patient) {
-											Identifier identifier = ((Patient) resource).getIdentifierFirstRep();
-											String caseNumber = null;
-											if (identifier != null && !identifier.isEmpty()) {
-												caseNumber = identifier.getValue();
-												System.out.println("Patient ID = " + id + ", caseNumber:" + caseNumber);
-												if (caseNumber != null && !caseNumber.isEmpty()) {
-													StringType firstName = new StringType();
-													String lastName = new String();
-													HumanName name = ((Patient) resource).getNameFirstRep();
-													if (name != null && !name.isEmpty()) {
-														List<StringType> given = name.getGiven();
-														if (!given.isEmpty()) {
-															firstName = given.get(0);
-														}
-														lastName = name.getFamily();
-													}
-													AdministrativeGender genderFhir = ((Patient) resource).getGender();
-													String gender = "";
-													if (genderFhir != null) {
-														gender = genderFhir.toString();
-													}
-
-													// construct index info.
-													String indexInfo = "{\n" + "  \"firstName\": \""
-															+ firstName.getValue() + "\",\n" + "  \"gender\": \""
-															+ gender + "\",\n" + "  \"lastName\": \"" + lastName
-															+ "\",\n" + "  \"listOfFhirSources\": [\n" + "    {\n"
-															+ "      \"fhirPatientId\": \"" + id + "\",\n"
-															+ "      \"fhirServerUrl\": \""
-															+ getControllerApiUrl().replace("/$process-message", "")
-															+ "\",\n" + "      \"fhirVersion\": \"STU3\",\n"
-															+ "      \"type\": \"LAB\"\n" + "    }\n" + "  ],\n"
-															+ "  \"meCaseNumber\": \"" + caseNumber + "\",\n"
-															+ "  \"meOffice\": \"" + meOffice + "\"\n" + "}";
-													LOGGER.info("Index register:" + indexInfo);
-													webResource = client.resource(indexServiceApiUrl + "/manage");
-													String user = System.getenv("INDEX_SERVER_USER");
-													if (user == null)
-														user = "decedent";
-													String pw = System.getenv("INDEX_SERVER_PASSWORD");
-													if (pw == null)
-														pw = "password";
-													byte[] auth = (user + ":" + pw).getBytes(StandardCharsets.UTF_8);
-													String encoded = Base64.getEncoder().encodeToString(auth);
-													response = webResource.type("application/json")
-															.header("Authorization", "Basic " + encoded)
-															.post(ClientResponse.class, indexInfo);
-													if (response.getStatus() != 200 && response.getStatus() != 201) {
-														LOGGER.error("Index Service Registration Failed for "
-																+ indexServiceApiUrl + "/manage with "
-																+ response.getStatus());
-													} else {
-														LOGGER.info("Decedent Index submitted to: " + indexServiceApiUrl
-																+ "/manage");
-													}
-												}
-												done = true;
-												break;
-											}
-										}
-									}
-								}
-								if (done)
-									break;
-							}
-						}
-					}
-				}
+		// Index registration and OpenMDI upload are done only with an index server.
+		if (indexService == null)
+			return;
+		indexService.submit(outcome.getBody(), envelope, meOffice);
+
+		// FHIR data submitted to our internal FHIR server.
+		// Now, we submit this to OpenMDI if requred.
+		openMdiLane.submit("OpenMDI upload for " + meOffice, new DeliveryLane.Task() {
+			public void deliver() {
+				sendFhirToOpenMdi(envelope, meOffice);
 			}
+		});
+	}
 
-			// FHIR data submitted to our internal FHIR server.
-			// Now, we submit this to OpenMDI if requred.
-			sendFhirToOpenMdi(fhirJsonObject, meOffice);
-		}
+	// Queue shard routing key: destination (controller and ME office) and patient
+	// identifier.
+	private String getQueueRoutingKey(FhirBundleEnvelope envelope, String meOffice) {
+		return getControllerApiUrl() + "|" + meOffice + "|" + envelope.getCaseNumber();
 	}
 
 	public void sendData(JSONObject jsonData) {
 		try {
-			sendFhir(jsonData);
+			// The parsers map to R4, so that is what the queue holds.
+			sendFhir(Collections.singletonList(FhirBundleEnvelope.fromJson(jsonData.toString(), FhirVersionEnum.R4)),
+					MessageContext.NONE, false);
+		} catch (RuntimeException e) {
+			throw e;
 		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new RuntimeException("Failed to send FHIR data: " + e.getMessage(), e);
 		}
 	}
 }
@@ -6,5 +6,8 @@ import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.protocol.ReceivingApplication;
 
 public interface IHL7v2ReceiverApplication extends ReceivingApplication<Message> {
+	// Throws DeliveryFailedException if the controller did not accept the data. Any
+	// other exception means the data could not be sent at all (eg. it is ill-formed).
+	// Either way it was not delivered.
 	public void sendData(JSONObject jsonData);
 }
@@ -0,0 +1,375 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.dstu3.model.Bundle.BundleEntryResponseComponent;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+
+/*
+ * Registers decedents with the decedent index service, in the background.
+ *
+ * submit() only puts the controller response and the patient facts on a bounded queue,
+ * so the lab ACK does not wait for the index service. If the queue is full, the
+ * registration is dropped, logged and counted (getDropped()). A collector
+ * thread takes up to batchSize of them (waiting at most lingerMillis for more), finds the
+ * new Patient id in each response, and drops the ones already registered or being
+ * registered. A registration is identified by ME office, case number and FHIR Patient
+ * id. The last cacheSize of them are remembered, least recently seen dropped first.
+ *
+ * The batch is sent on the index delivery lane, which retries transient failures.
+ * With indexBatchPath set, the batch is one POST of a JSON array to that path. Otherwise
+ * each registration is a POST to /manage as before (over the shared keep-alive
+ * connection), and a retry sends only the ones not registered yet.
+ */
+public class IndexRegistrationService {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(IndexRegistrationService.class.getName());
+
+	static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	static final int DEFAULT_BATCH_SIZE = 20;
+	static final long DEFAULT_LINGER_MILLIS = 200L;
+	static final int DEFAULT_CACHE_SIZE = 10000;
+
+	// Only what the registration needs, not the bundle.
+	private static class Request {
+		final String response;
+		final String meOffice;
+		final String caseNumber;
+		final String firstName;
+		final String lastName;
+		final String gender;
+
+		Request(String response, String meOffice, String caseNumber, String firstName, String lastName,
+				String gender) {
+			this.response = response;
+			this.meOffice = meOffice;
+			this.caseNumber = caseNumber;
+			this.firstName = firstName;
+			this.lastName = lastName;
+			this.gender = gender;
+		}
+	}
+
+	private static class Registration {
+		final String key;
+		final JSONObject document;
+		// Marked as being registered by us. Guarded by the service.
+		boolean claimed = false;
+
+		Registration(String key, JSONObject document) {
+			this.key = key;
+			this.document = document;
+		}
+	}
+
+	private final String indexServiceApiUrl;
+	private final String fhirServerUrl;
+	private final String batchPath;
+	private final String authorization;
+	private final DeliveryLane lane;
+	private final int batchSize;
+	private final long lingerMillis;
+	private final int cacheSize;
+
+	private final BlockingQueue<Request> requests;
+	// Registrations known to the index service (true) or being sent (false), least
+	// recently seen first.
+	private final LinkedHashMap<String, Boolean> registered = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+	private final Thread collector;
+	private volatile boolean running = true;
+
+	// Metrics
+	private final AtomicLong submitted = new AtomicLong(0L);
+	private final AtomicLong skipped = new AtomicLong(0L);
+	private final AtomicLong sent = new AtomicLong(0L);
+	private final AtomicLong dropped = new AtomicLong(0L);
+
+	public IndexRegistrationService(String indexServiceApiUrl, String fhirServerUrl, String batchPath,
+			DeliveryLane lane, int queueCapacity, int batchSize, long lingerMillis, int cacheSize) {
+		this.indexServiceApiUrl = indexServiceApiUrl;
+		this.fhirServerUrl = fhirServerUrl;
+		this.batchPath = batchPath == null || batchPath.isEmpty() ? null : batchPath;
+		this.lane = lane;
+		this.batchSize = Math.max(1, batchSize);
+		this.lingerMillis = Math.max(0L, lingerMillis);
+		this.cacheSize = Math.max(1, cacheSize);
+		this.requests = new ArrayBlockingQueue<Request>(Math.max(1, queueCapacity));
+
+		String user = System.getenv("INDEX_SERVER_USER");
+		if (user == null)
+			user = "decedent";
+		String pw = System.getenv("INDEX_SERVER_PASSWORD");
+		if (pw == null)
+			pw = "password";
+		byte[] auth = (user + ":" + pw).getBytes(StandardCharsets.UTF_8);
+		authorization = "Basic " + Base64.getEncoder().encodeToString(auth);
+
+		collector = new QueueDrainService.DaemonThreadFactory("index-registration").newThread(new Runnable() {
+			public void run() {
+				collect();
+			}
+		});
+		collector.start();
+	}
+
+	public static IndexRegistrationService fromConfig(HL7v2ReceiverApplication<?> app, String indexServiceApiUrl,
+			DeliveryLane lane) {
+		return new IndexRegistrationService(indexServiceApiUrl,
+				app.getControllerApiUrl().replace("/$process-message", ""),
+				app.getConfigProperties().getProperty("indexBatchPath", "").trim(), lane,
+				app.getConfigInt("indexQueueCapacity", DEFAULT_QUEUE_CAPACITY),
+				app.getConfigInt("indexBatchSize", DEFAULT_BATCH_SIZE),
+				app.getConfigLong("indexBatchLingerMillis", DEFAULT_LINGER_MILLIS),
+				app.getConfigInt("indexCacheSize", DEFAULT_CACHE_SIZE));
+	}
+
+	// response is what the FHIR controller returned for the bundle. Never blocks. If the
+	// queue is full, the registration is dropped and logged.
+	public void submit(String response, FhirBundleEnvelope envelope, String meOffice) {
+		submitted.incrementAndGet();
+		String caseNumber = envelope.getCaseNumber();
+		if (caseNumber.isEmpty() || response == null)
+			return;
+
+		Request request = new Request(response, meOffice, caseNumber, envelope.getFirstName(),
+				envelope.getLastName(), envelope.getGender());
+		if (!requests.offer(request)) {
+			long count = dropped.incrementAndGet();
+			LOGGER.error("Index registration queue is full. Dropped registration of case " + caseNumber + " for "
+					+ meOffice + " (" + count + " so far)");
+		}
+	}
+
+	private void collect() {
+		List<Request> batch = new ArrayList<Request>(batchSize);
+		while (running) {
+			try {
+				batch.add(requests.take());
+				long deadline = System.currentTimeMillis() + lingerMillis;
+				while (batch.size() < batchSize) {
+					long left = deadline - System.currentTimeMillis();
+					Request request = left > 0 ? requests.poll(left, TimeUnit.MILLISECONDS) : requests.poll();
+					if (request == null)
+						break;
+					batch.add(request);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			final List<Registration> registrations = new ArrayList<Registration>(batch.size());
+			for (Request request : batch) {
+				try {
+					Registration registration = toRegistration(request);
+					if (registration == null)
+						continue;
+					if (!claim(registration)) {
+						skipped.incrementAndGet();
+						continue;
+					}
+					registrations.add(registration);
+				} catch (RuntimeException e) {
+					LOGGER.error("Failed to read FHIR response for index registration: " + request.response, e);
+				}
+			}
+			batch.clear();
+
+			if (!registrations.isEmpty()) {
+				boolean queued = lane.submit("index registration of " + registrations.size(), new DeliveryLane.Task() {
+					public void deliver() {
+						send(registrations);
+					}
+				});
+				// Shed by the lane. Let them go, so a later registration of the same patient is sent.
+				if (!queued)
+					release(registrations);
+			}
+		}
+	}
+
+	// Null if the response has no Patient.
+	private Registration toRegistration(Request request) {
+		String caseNumber = request.caseNumber;
+
+		Bundle bundleResponse = FhirSerializationService.get().parse(Bundle.class, request.response);
+		if (bundleResponse == null)
+			throw new RuntimeException("Failed: FHIR response error : " + request.response);
+
+		for (BundleEntryComponent entry : bundleResponse.getEntry()) {
+			// We just check Patient id from location in response.
+			BundleEntryResponseComponent entryResponse = entry.getResponse();
+			if (entryResponse == null || entryResponse.isEmpty())
+				continue;
+			String location = entryResponse.getLocation();
+			if (location == null || location.isEmpty() || !location.contains("Patient"))
+				continue;
+
+			String[] path = location.split("/");
+			String id = path[path.length - 1];
+			LOGGER.debug("Patient ID = " + id + ", caseNumber:" + caseNumber);
+
+			JSONObject source = new JSONObject();
+			source.put("fhirPatientId", id);
+			source.put("fhirServerUrl", fhirServerUrl);
+			source.put("fhirVersion", "STU3");
+			source.put("type", "LAB");
+
+			JSONObject document = new JSONObject();
+			document.put("firstName", request.firstName == null ? "" : request.firstName);
+			document.put("gender", request.gender);
+			document.put("lastName", request.lastName == null ? "" : request.lastName);
+			document.put("listOfFhirSources", new JSONArray().put(source));
+			document.put("meCaseNumber", caseNumber);
+			document.put("meOffice", request.meOffice);
+
+			return new Registration(request.meOffice + "\u0000" + caseNumber + "\u0000" + id, document);
+		}
+		return null;
+	}
+
+	// Runs on the index lane. Registrations are removed from the list as they are sent,
+	// so a retry sends only what is left. They are let go while a retry waits, so the
+	// retry skips the ones another batch registered or is registering by then.
+	private void send(List<Registration> registrations) {
+		synchronized (this) {
+			Iterator<Registration> iterator = registrations.iterator();
+			while (iterator.hasNext()) {
+				Registration registration = iterator.next();
+				if (!registration.claimed && !claim(registration)) {
+					skipped.incrementAndGet();
+					iterator.remove();
+				}
+			}
+		}
+
+		try {
+			post(registrations);
+		} catch (RuntimeException e) {
+			release(registrations);
+			throw e;
+		}
+	}
+
+	private void post(List<Registration> registrations) {
+		if (batchPath != null) {
+			JSONArray documents = new JSONArray();
+			for (Registration registration : registrations) {
+				documents.put(registration.document);
+			}
+			post(indexServiceApiUrl + batchPath, documents.toString(), registrations.size());
+			markRegistered(registrations);
+			registrations.clear();
+			return;
+		}
+
+		Iterator<Registration> iterator = registrations.iterator();
+		while (iterator.hasNext()) {
+			Registration registration = iterator.next();
+			post(indexServiceApiUrl + "/manage", registration.document.toString(), 1);
+			markRegistered(Collections.singletonList(registration));
+			iterator.remove();
+		}
+	}
+
+	private void post(String url, String body, int count) {
+		LOGGER.info("Index register (" + count + "):" + body);
+		int status;
+		try {
+			ClientResponse response = OutboundHttpClient.get().resource(url).type("application/json")
+					.header("Authorization", authorization).post(ClientResponse.class, body);
+			status = response.getStatus();
+		} catch (ClientHandlerException e) {
+			status = -1;
+		}
+		if (status != 200 && status != 201) {
+			LOGGER.error("Index Service Registration Failed for " + url + " with " + status);
+			throw new DeliveryFailedException("Index Service Registration Failed with " + status, status);
+		}
+		sent.addAndGet(count);
+		LOGGER.info("Decedent Index submitted to: " + url);
+	}
+
+	// Mark the registration as being sent. False if it is registered or being sent
+	// already.
+	private synchronized boolean claim(Registration registration) {
+		if (registered.get(registration.key) != null)
+			return false;
+		registered.put(registration.key, Boolean.FALSE);
+		registration.claimed = true;
+		trim();
+		return true;
+	}
+
+	private synchronized void release(List<Registration> registrations) {
+		for (Registration registration : registrations) {
+			if (registration.claimed && Boolean.FALSE.equals(registered.get(registration.key)))
+				registered.remove(registration.key);
+			registration.claimed = false;
+		}
+	}
+
+	private synchronized void markRegistered(List<Registration> registrations) {
+		for (Registration registration : registrations) {
+			registered.put(registration.key, Boolean.TRUE);
+			registration.claimed = false;
+		}
+		trim();
+	}
+
+	private void trim() {
+		Iterator<String> oldest = registered.keySet().iterator();
+		while (registered.size() > cacheSize) {
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+	public int getBacklog() {
+		return requests.size();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	// Already registered, so not sent again.
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public void stop() {
+		running = false;
+		collector.interrupt();
+	}
+
+	public String toString() {
+		return "Index registration: backlog " + getBacklog() + ", submitted " + getSubmitted() + ", sent "
+				+ getSent() + ", already registered " + getSkipped() + ", dropped " + getDropped();
+	}
+}
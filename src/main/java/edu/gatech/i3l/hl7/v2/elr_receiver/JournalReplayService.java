@@ -0,0 +1,129 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import edu.gatech.i3l.hl7.v2.elr_receiver.HL7v2ReceiverApplication.ErrorCode;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.IngressJournal;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.IngressJournal.Record;
+
+/*
+ * Background service for the ACK-fast mode.
+ *
+ * processMessage() only writes inbound messages to the ingress journal and ACKs. This
+ * service reads them back in arrival order, maps and delivers them as processMessage()
+ * would otherwise do, and moves the journal checkpoint forward. Failed deliveries go to
+ * the persistent queue as usual.
+ *
+ * The sender already has its ACK, so a message that can not be parsed or mapped can not
+ * be rejected any more. It is logged and skipped.
+ *
+ * If the journal can not be read or checkpointed, replay starts again from the
+ * checkpoint after a back off (RETRY_MILLIS, doubled up to MAX_RETRY_MILLIS). A message
+ * that was replayed but not checkpointed is replayed again.
+ */
+public class JournalReplayService {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(JournalReplayService.class.getName());
+
+	static final long DEFAULT_IDLE_MILLIS = 50L;
+	static final long RETRY_MILLIS = 1000L;
+	static final long MAX_RETRY_MILLIS = 60 * 1000L;
+
+	private final HL7v2ReceiverApplication<?> myApp;
+	private final IngressJournal journal;
+	private final long idleMillis;
+	private final PipeParser parser = PipeParser.getInstanceWithNoValidation();
+
+	private ExecutorService worker = null;
+	private volatile boolean running = false;
+
+	public JournalReplayService(HL7v2ReceiverApplication<?> app, IngressJournal journal, long idleMillis) {
+		this.myApp = app;
+		this.journal = journal;
+		this.idleMillis = Math.max(1L, idleMillis);
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+
+		running = true;
+		worker = Executors.newSingleThreadExecutor(new QueueDrainService.DaemonThreadFactory("journal-replay"));
+		worker.execute(new Runnable() {
+			public void run() {
+				replayLoop();
+			}
+		});
+
+		LOGGER.info("Journal replay service started. " + journal.getBacklogBytes() + " bytes to replay.");
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (worker != null) {
+			worker.shutdownNow();
+			worker = null;
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void replayLoop() {
+		long retryMillis = RETRY_MILLIS;
+		while (running && !Thread.currentThread().isInterrupted()) {
+			try {
+				Record record = journal.next();
+				if (record == null) {
+					Thread.sleep(idleMillis);
+					continue;
+				}
+
+				replay(record);
+				journal.checkpoint(record.getNextOffset());
+				retryMillis = RETRY_MILLIS;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				// Journal I/O failure. Try again from the checkpoint rather than skipping what we
+				// could not read.
+				LOGGER.error("Journal replay failed at offset " + journal.getCheckpointOffset() + ". Retrying in "
+						+ retryMillis + " ms.", e);
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+				}
+				retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+				journal.rewind();
+			}
+		}
+	}
+
+	private void replay(Record record) {
+		String rawMessage = new String(record.getData(), StandardCharsets.UTF_8);
+		try {
+			Message message = parser.parse(rawMessage);
+			if (!myApp.canProcess(message)) {
+				LOGGER.error("Journaled message at offset " + record.getOffset() + " can not be processed. Skipped.");
+				return;
+			}
+
+			ErrorCode error = myApp.mapMyMessage(message);
+			if (error != ErrorCode.NOERROR) {
+				LOGGER.error("Journaled message at offset " + record.getOffset() + " failed to map (" + error
+						+ "). Skipped.\n" + rawMessage);
+			}
+		} catch (Exception e) {
+			LOGGER.error("Journaled message at offset " + record.getOffset() + " failed. Skipped.\n" + rawMessage, e);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.util.Terser;
+
+/*
+ * Facts about the inbound HL7 message that travel with the data mapped from it:
+ * sending facility (MSH-4) and message control id (MSH-10).
+ */
+public class MessageContext {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(MessageContext.class.getName());
+
+	public static final MessageContext NONE = new MessageContext("", "");
+
+	private final String sender;
+	private final String controlId;
+
+	public MessageContext(String sender, String controlId) {
+		this.sender = sender == null ? "" : sender;
+		this.controlId = controlId == null ? "" : controlId;
+	}
+
+	public static MessageContext of(Message msg) {
+		Terser t = new Terser(msg);
+		try {
+			return new MessageContext(t.get("/MSH-4-1"), t.get("/MSH-10"));
+		} catch (HL7Exception e) {
+			LOGGER.warn("Failed to read MSH-4/MSH-10: " + e.getMessage());
+			return NONE;
+		}
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getControlId() {
+		return controlId;
+	}
+}
@@ -0,0 +1,289 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Remembers which messages (sending facility + MSH-10) were already processed, so that
+ * a resend can be ACKed without mapping and delivering it again.
+ *
+ * Keys are kept as 64-bit fingerprints for windowMillis, in two structures:
+ *
+ * - Bloom filters, one per generation. A new generation starts every
+ *   windowMillis / (GENERATIONS - 1) and reuses (clears) the oldest filter, so a key
+ *   stays in a filter for at least windowMillis. Most messages are new and the filters
+ *   say so without touching the table.
+ * - An exact table of the most recent maxEntries fingerprints. A message is a duplicate
+ *   only if it is found here. A false positive from the filters never drops a message.
+ *   When the table is full, the oldest keys are forgotten first.
+ *
+ * claim() checks a key and marks it in progress in one step, so that of two copies of
+ * a message that come in at the same time, only one is processed. The key is recorded
+ * with record() once the message is processed, or let go with release() if it fails.
+ *
+ * With a file, recorded keys are appended to it and loaded again on start up, so resends
+ * after a restart are caught too. The file is rewritten from the table when it gets
+ * twice as big as the table.
+ */
+public class MessageDeduplicator {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(MessageDeduplicator.class.getName());
+
+	static final long DEFAULT_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+	static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	static final int GENERATIONS = 4;
+	static final int BITS_PER_KEY = 10;
+	static final int HASHES = 5;
+
+	private final long windowMillis;
+	private final int maxEntries;
+	private final File file;
+
+	private final long[][] filters = new long[GENERATIONS][];
+	private final int filterBits;
+	private int currentGeneration = 0;
+	private long generationStart;
+
+	// fingerprint -> time recorded, oldest first.
+	private final LinkedHashMap<Long, Long> recent = new LinkedHashMap<Long, Long>();
+	// Claimed and not recorded or released yet.
+	private final HashSet<Long> inProgress = new HashSet<Long>();
+
+	private DataOutputStream journal = null;
+	private int journalEntries = 0;
+
+	private long duplicates = 0L;
+
+	public MessageDeduplicator(long windowMillis, int maxEntries, File file) {
+		this.windowMillis = Math.max(1000L, windowMillis);
+		this.maxEntries = Math.max(1, maxEntries);
+		this.file = file;
+
+		// Sized for the keys of one generation.
+		long bits = Math.max(64L, (long) this.maxEntries * BITS_PER_KEY / (GENERATIONS - 1));
+		this.filterBits = (int) Math.min(bits, Integer.MAX_VALUE - 63L);
+		for (int i = 0; i < GENERATIONS; i++) {
+			filters[i] = new long[(filterBits + 63) / 64];
+		}
+		generationStart = System.currentTimeMillis();
+
+		if (file != null) {
+			load();
+			rewrite();
+		}
+	}
+
+	public static enum Claim {
+		// Not seen before. Process it, then record() or release() it.
+		NEW,
+		// Already processed.
+		DUPLICATE,
+		// Another copy is being processed right now.
+		IN_PROGRESS
+	}
+
+	public synchronized Claim claim(MessageContext context) {
+		if (context.getControlId().isEmpty())
+			return Claim.NEW;
+
+		long now = System.currentTimeMillis();
+		rotate(now);
+
+		long fingerprint = fingerprint(context);
+		if (inProgress.contains(fingerprint))
+			return Claim.IN_PROGRESS;
+
+		if (mightContain(fingerprint)) {
+			Long recorded = recent.get(fingerprint);
+			if (recorded != null && now - recorded <= windowMillis) {
+				duplicates++;
+				return Claim.DUPLICATE;
+			}
+		}
+
+		inProgress.add(fingerprint);
+		return Claim.NEW;
+	}
+
+	// Call after the claimed message is processed (or durably accepted).
+	public synchronized void record(MessageContext context) {
+		if (context.getControlId().isEmpty())
+			return;
+
+		long now = System.currentTimeMillis();
+		rotate(now);
+		inProgress.remove(fingerprint(context));
+		put(fingerprint(context), now);
+
+		if (journal != null) {
+			try {
+				journal.writeLong(fingerprint(context));
+				journal.writeLong(now);
+				journal.flush();
+				if (++journalEntries > 2 * maxEntries)
+					rewrite();
+			} catch (IOException e) {
+				LOGGER.error("Failed to write dedup file " + file + ". Keys are kept in memory only.", e);
+				closeJournal();
+			}
+		}
+	}
+
+	// The claimed message was not processed. A resend will be processed.
+	public synchronized void release(MessageContext context) {
+		if (!context.getControlId().isEmpty())
+			inProgress.remove(fingerprint(context));
+	}
+
+	public synchronized long getDuplicateCount() {
+		return duplicates;
+	}
+
+	public synchronized int size() {
+		return recent.size();
+	}
+
+	private void put(long fingerprint, long time) {
+		recent.remove(fingerprint);
+		recent.put(fingerprint, time);
+		while (recent.size() > maxEntries) {
+			Iterator<Long> oldest = recent.keySet().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+
+		long[] filter = filters[currentGeneration];
+		long h1 = fingerprint;
+		long h2 = (fingerprint >>> 32) | (fingerprint << 32);
+		for (int i = 0; i < HASHES; i++) {
+			int bit = (int) Math.floorMod(h1 + i * h2, (long) filterBits);
+			filter[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	private boolean mightContain(long fingerprint) {
+		long h1 = fingerprint;
+		long h2 = (fingerprint >>> 32) | (fingerprint << 32);
+		for (long[] filter : filters) {
+			boolean all = true;
+			for (int i = 0; i < HASHES && all; i++) {
+				int bit = (int) Math.floorMod(h1 + i * h2, (long) filterBits);
+				all = (filter[bit >>> 6] & (1L << bit)) != 0;
+			}
+			if (all)
+				return true;
+		}
+		return false;
+	}
+
+	// Start new generations as time goes by, and forget keys that are out of the window.
+	private void rotate(long now) {
+		long slice = windowMillis / (GENERATIONS - 1);
+		int steps = 0;
+		while (now - generationStart >= slice && steps < GENERATIONS) {
+			currentGeneration = (currentGeneration + 1) % GENERATIONS;
+			Arrays.fill(filters[currentGeneration], 0L);
+			generationStart += slice;
+			steps++;
+		}
+		if (now - generationStart >= slice)
+			generationStart = now;
+
+		Iterator<Map.Entry<Long, Long>> iterator = recent.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next().getValue() <= windowMillis)
+				break;
+			iterator.remove();
+		}
+	}
+
+	static long fingerprint(MessageContext context) {
+		// 64-bit FNV-1a of sender, separator and control id.
+		long hash = 0xcbf29ce484222325L;
+		byte[] bytes = (context.getSender() + "\u0000" + context.getControlId()).getBytes(StandardCharsets.UTF_8);
+		for (byte b : bytes) {
+			hash ^= (b & 0xFF);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private void load() {
+		if (!file.exists())
+			return;
+
+		long now = System.currentTimeMillis();
+		int loaded = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				long fingerprint = in.readLong();
+				long time = in.readLong();
+				if (now - time <= windowMillis) {
+					put(fingerprint, time);
+					loaded++;
+				}
+			}
+		} catch (EOFException e) {
+			// End of file. A partly written last key is dropped.
+		} catch (IOException e) {
+			LOGGER.error("Failed to read dedup file " + file, e);
+		}
+		LOGGER.info("Loaded " + loaded + " recent message keys from " + file);
+	}
+
+	// Write the table to a new file and continue appending to it.
+	private void rewrite() {
+		closeJournal();
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			for (Map.Entry<Long, Long> entry : recent.entrySet()) {
+				out.writeLong(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.close();
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Can not rename " + temp + " to " + file);
+			}
+
+			journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			journalEntries = recent.size();
+		} catch (IOException e) {
+			LOGGER.error("Failed to write dedup file " + file + ". Keys are kept in memory only.", e);
+		}
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				// Nothing more we can do.
+			}
+			journal = null;
+		}
+	}
+
+	public synchronized void close() {
+		closeJournal();
+	}
+}
@@ -0,0 +1,306 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+
+/*
+ * OpenMDI access tokens (client credentials grant), one per auth URL and client id.
+ *
+ * Tokens are fetched on a background thread. After each fetch the next one is scheduled
+ * refreshMarginSeconds before the token expires (half way through its life for short
+ * lived tokens), so uploads find a valid token already there. A failed fetch is tried
+ * again after retrySeconds.
+ *
+ * Only one fetch per client runs at a time. A thread that asks while one is running
+ * waits for that one (at most waitMillis) instead of sending its own. That only happens
+ * before the first token arrives, or after the old one expired or was rejected.
+ */
+public class OpenMdiTokenManager {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(OpenMdiTokenManager.class.getName());
+
+	static final long DEFAULT_REFRESH_MARGIN_SECONDS = 60L;
+	static final long DEFAULT_RETRY_SECONDS = 10L;
+	static final long DEFAULT_WAIT_MILLIS = 10000L;
+	// If the token response has no expires_in.
+	static final long DEFAULT_EXPIRES_SECONDS = 300L;
+
+	public static class Token {
+		private final String type;
+		private final String value;
+		private final long expiresAt;
+
+		Token(String type, String value, long expiresAt) {
+			this.type = type;
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		// Authorization header value, eg. "Bearer abc".
+		public String getAuthorization() {
+			return type + " " + value;
+		}
+
+		// Epoch millis.
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		public boolean isValid() {
+			return System.currentTimeMillis() < expiresAt;
+		}
+	}
+
+	private static class Client {
+		final String authUrl;
+		final String clientId;
+		final String basicAuthorization;
+
+		volatile Token token = null;
+		// Guarded by this.
+		CompletableFuture<Token> fetching = null;
+		ScheduledFuture<?> nextFetch = null;
+
+		Client(String authUrl, String clientId, String clientSecret) {
+			this.authUrl = authUrl;
+			this.clientId = clientId;
+			byte[] auth = (clientId + ":" + clientSecret).getBytes(StandardCharsets.UTF_8);
+			this.basicAuthorization = "Basic " + Base64.getEncoder().encodeToString(auth);
+		}
+	}
+
+	private final long refreshMarginMillis;
+	private final long retryMillis;
+	private final long waitMillis;
+
+	private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	private final ScheduledExecutorService fetcher = Executors.newSingleThreadScheduledExecutor(
+			new QueueDrainService.DaemonThreadFactory("openmdi-token"));
+	private volatile boolean running = true;
+
+	// Metrics
+	private final AtomicLong fetched = new AtomicLong(0L);
+	private final AtomicLong failed = new AtomicLong(0L);
+	private final AtomicLong waited = new AtomicLong(0L);
+
+	public OpenMdiTokenManager(long refreshMarginSeconds, long retrySeconds, long waitMillis) {
+		this.refreshMarginMillis = TimeUnit.SECONDS.toMillis(Math.max(0L, refreshMarginSeconds));
+		this.retryMillis = TimeUnit.SECONDS.toMillis(Math.max(1L, retrySeconds));
+		this.waitMillis = Math.max(0L, waitMillis);
+	}
+
+	public static OpenMdiTokenManager fromConfig(HL7v2ReceiverApplication<?> app) {
+		return new OpenMdiTokenManager(
+				app.getConfigLong("openMdiTokenRefreshMarginSeconds", DEFAULT_REFRESH_MARGIN_SECONDS),
+				app.getConfigLong("openMdiTokenRetrySeconds", DEFAULT_RETRY_SECONDS),
+				app.getConfigLong("openMdiTokenWaitMillis", DEFAULT_WAIT_MILLIS));
+	}
+
+	// Start fetching the token now, so the first upload does not wait for it.
+	public void prefetch(String authUrl, String clientId, String clientSecret) {
+		fetch(client(authUrl, clientId, clientSecret));
+	}
+
+	// A valid token for the client. Throws a transient DeliveryFailedException if there
+	// is none within waitMillis, so the caller's lane tries again later.
+	public Token getToken(String authUrl, String clientId, String clientSecret) {
+		Client client = client(authUrl, clientId, clientSecret);
+		Token token = client.token;
+		if (token != null && token.isValid())
+			return token;
+
+		waited.incrementAndGet();
+		try {
+			return fetch(client).get(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new DeliveryFailedException("No OpenMDI token for " + clientId + " yet", -1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DeliveryFailedException("Interrupted waiting for OpenMDI token", -1);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof DeliveryFailedException)
+				throw (DeliveryFailedException) e.getCause();
+			throw new DeliveryFailedException("Failed to obtain token from OpenMDI: " + e.getCause(), -1);
+		}
+	}
+
+	// OpenMDI did not accept the token. A new one is fetched, unless another thread
+	// already did that.
+	public void invalidate(String authUrl, String clientId, Token rejected) {
+		Client client = clients.get(key(authUrl, clientId));
+		if (client == null)
+			return;
+		synchronized (client) {
+			if (client.token != rejected)
+				return;
+			client.token = null;
+		}
+		LOGGER.warn("OpenMDI rejected the token of " + clientId + ". Fetching a new one");
+		fetch(client);
+	}
+
+	private Client client(String authUrl, String clientId, String clientSecret) {
+		String key = key(authUrl, clientId);
+		Client client = clients.get(key);
+		if (client == null) {
+			Client created = new Client(authUrl, clientId, clientSecret);
+			client = clients.putIfAbsent(key, created);
+			if (client == null)
+				client = created;
+		}
+		return client;
+	}
+
+	private static String key(String authUrl, String clientId) {
+		return authUrl + "\u0000" + clientId;
+	}
+
+	// The running fetch of the client, or a new one.
+	private CompletableFuture<Token> fetch(final Client client) {
+		synchronized (client) {
+			if (client.fetching != null)
+				return client.fetching;
+			final CompletableFuture<Token> future = new CompletableFuture<Token>();
+			if (!running) {
+				future.completeExceptionally(new DeliveryFailedException("OpenMDI token manager stopped", -1));
+				return future;
+			}
+			client.fetching = future;
+			if (client.nextFetch != null) {
+				client.nextFetch.cancel(false);
+				client.nextFetch = null;
+			}
+			fetcher.execute(new Runnable() {
+				public void run() {
+					complete(client, future);
+				}
+			});
+			return future;
+		}
+	}
+
+	// Runs on the fetcher thread.
+	private void complete(final Client client, CompletableFuture<Token> future) {
+		Token token = null;
+		RuntimeException failure = null;
+		try {
+			token = requestToken(client);
+			fetched.incrementAndGet();
+		} catch (RuntimeException e) {
+			failure = e;
+			failed.incrementAndGet();
+			LOGGER.error("Failed to obtain token from OpenMDI for " + client.clientId + ": " + e.getMessage());
+		}
+
+		synchronized (client) {
+			client.fetching = null;
+			if (token != null)
+				client.token = token;
+			if (running) {
+				client.nextFetch = fetcher.schedule(new Runnable() {
+					public void run() {
+						fetch(client);
+					}
+				}, token != null ? refreshDelay(token) : retryMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		if (token != null)
+			future.complete(token);
+		else
+			future.completeExceptionally(failure);
+	}
+
+	private long refreshDelay(Token token) {
+		long lifetime = Math.max(0L, token.getExpiresAt() - System.currentTimeMillis());
+		if (lifetime <= 2 * refreshMarginMillis)
+			return Math.max(1000L, lifetime / 2);
+		return lifetime - refreshMarginMillis;
+	}
+
+	private Token requestToken(Client client) {
+		long now = System.currentTimeMillis();
+		ClientResponse response;
+		try {
+			response = OutboundHttpClient.get().resource(client.authUrl).type(MediaType.APPLICATION_FORM_URLENCODED)
+					.accept(MediaType.APPLICATION_JSON).header("Cache-Control", "no-cache")
+					.header("Authorization", client.basicAuthorization)
+					.post(ClientResponse.class, "grant_type=client_credentials&scope=openmdi");
+		} catch (ClientHandlerException e) {
+			throw new DeliveryFailedException("Failed to connect to OpenMDI auth: " + e.getMessage(), -1);
+		}
+
+		if (response.getStatus() != 200 && response.getStatus() != 201)
+			throw new DeliveryFailedException("OpenMDI auth failed with " + response.getStatus(), response.getStatus());
+
+		JSONObject responseJson;
+		try {
+			responseJson = new JSONObject(response.getEntity(String.class));
+		} catch (JSONException e) {
+			throw new DeliveryFailedException("OpenMDI auth returned no JSON: " + e.getMessage(), 502);
+		}
+
+		String accessToken = responseJson.optString("access_token", "");
+		if (accessToken.isEmpty())
+			throw new DeliveryFailedException("Access token received from OpenMDI is null or empty", 502);
+
+		String tokenType = responseJson.optString("token_type", "");
+		if (tokenType.isEmpty())
+			tokenType = "Bearer";
+
+		long expiresIn = responseJson.optLong("expires_in", DEFAULT_EXPIRES_SECONDS);
+		// A second early, for the time the request takes to get there.
+		long expiresAt = now + TimeUnit.SECONDS.toMillis(expiresIn - 1);
+
+		LOGGER.debug("OpenMDI token for " + client.clientId + " expires in " + expiresIn + " seconds");
+		return new Token(tokenType, accessToken, expiresAt);
+	}
+
+	public long getFetched() {
+		return fetched.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	// Times an upload had no valid token and had to wait for one.
+	public long getWaited() {
+		return waited.get();
+	}
+
+	public void stop() {
+		running = false;
+		for (Client client : clients.values()) {
+			synchronized (client) {
+				if (client.nextFetch != null)
+					client.nextFetch.cancel(false);
+			}
+		}
+		fetcher.shutdownNow();
+	}
+
+	public String toString() {
+		return "OpenMDI tokens: " + clients.size() + " client(s), fetched " + getFetched() + ", failed "
+				+ getFailed() + ", uploads waited " + getWaited();
+	}
+}
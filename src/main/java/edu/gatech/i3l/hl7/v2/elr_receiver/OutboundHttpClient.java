@@ -0,0 +1,268 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.filter.ClientFilter;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
+import com.sun.jersey.multipart.impl.MultiPartWriter;
+
+/*
+ * One Jersey client for all outbound calls (controllers, index service, OpenMDI).
+ *
+ * Requests go through the Apache HttpClient 4 handler with a pooled connection manager
+ * of its own (up to maxConnectionsPerHost kept-alive connections per host), so nothing
+ * else in the JVM that uses HttpURLConnection is affected. The client is created once,
+ * so a POST no longer pays for client set up, and the TCP/TLS connection is reused.
+ *
+ * At most maxConnectionsPerHost requests are in flight to one host. Other callers wait
+ * for a permit. The response body is read before the permit is released, so the
+ * connection is back in the pool by then and responses do not need to be closed by the
+ * caller. With httpKeepAlive=false, each request asks for its connection to be closed.
+ *
+ * HTTP/2 is not available with the Jersey 1 client. httpVersion=2 is logged and ignored.
+ *
+ * Request bodies are sent chunked (httpChunkedEncodingSize), so a streamed body is not
+ * collected in memory before it is sent.
+ *
+ * Settings in config.properties: httpMaxConnectionsPerHost, httpConnectTimeoutMillis,
+ * httpReadTimeoutMillis, httpChunkedEncodingSize, httpKeepAlive, httpVersion and
+ * httpReportIntervalMillis.
+ */
+public class OutboundHttpClient {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(OutboundHttpClient.class.getName());
+
+	static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+	static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+	static final int DEFAULT_READ_TIMEOUT_MILLIS = 60 * 1000;
+	static final long DEFAULT_REPORT_INTERVAL_MILLIS = 60 * 1000L;
+	static final int DEFAULT_CHUNKED_ENCODING_SIZE = 16 * 1024;
+
+	private static OutboundHttpClient instance = null;
+
+	private final Client client;
+	private final ThreadSafeClientConnManager connections;
+	private final int maxConnectionsPerHost;
+	private final boolean keepAlive;
+	private final Map<String, HostPool> hosts = new ConcurrentHashMap<String, HostPool>();
+	private ScheduledExecutorService reporter = null;
+
+	public OutboundHttpClient(int maxConnectionsPerHost, int connectTimeoutMillis, int readTimeoutMillis) {
+		this(maxConnectionsPerHost, connectTimeoutMillis, readTimeoutMillis, DEFAULT_CHUNKED_ENCODING_SIZE, true);
+	}
+
+	// chunkedEncodingSize 0 sends bodies with a Content-Length, which makes the handler
+	// hold the whole body in memory first.
+	public OutboundHttpClient(int maxConnectionsPerHost, int connectTimeoutMillis, int readTimeoutMillis,
+			int chunkedEncodingSize, boolean keepAlive) {
+		this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+		this.keepAlive = keepAlive;
+
+		// The host limit filter keeps requests per host under the pool size, so a
+		// request never waits for a connection inside the handler.
+		connections = new ThreadSafeClientConnManager();
+		connections.setDefaultMaxPerRoute(this.maxConnectionsPerHost);
+		// Controllers, index service, OpenMDI and its token endpoint.
+		connections.setMaxTotal(4 * this.maxConnectionsPerHost);
+
+		ClientConfig cc = new DefaultApacheHttpClient4Config();
+		cc.getClasses().add(MultiPartWriter.class);
+		cc.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, connections);
+		cc.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, connectTimeoutMillis);
+		cc.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, readTimeoutMillis);
+		if (chunkedEncodingSize > 0)
+			cc.getProperties().put(ClientConfig.PROPERTY_CHUNKED_ENCODING_SIZE, chunkedEncodingSize);
+		else
+			cc.getProperties().put(ApacheHttpClient4Config.PROPERTY_ENABLE_BUFFERING, Boolean.TRUE);
+		client = ApacheHttpClient4.create(cc);
+		client.addFilter(new HostLimitFilter());
+	}
+
+	// Set up the shared client from config.properties. Must be called before the first
+	// request, which sets up the shared client with the defaults.
+	public static synchronized OutboundHttpClient configure(HL7v2ReceiverApplication<?> app) {
+		if (instance != null)
+			return instance;
+
+		int maxConnections = app.getConfigInt("httpMaxConnectionsPerHost", DEFAULT_MAX_CONNECTIONS_PER_HOST);
+		boolean keepAlive = "true"
+				.equalsIgnoreCase(app.getConfigProperties().getProperty("httpKeepAlive", "true").trim());
+
+		String version = app.getConfigProperties().getProperty("httpVersion", "1.1").trim();
+		if (version.equals("2") || version.equalsIgnoreCase("HTTP/2")) {
+			LOGGER.warn("httpVersion=" + version + " is not supported by the HTTP client. Using HTTP/1.1"
+					+ (keepAlive ? " with keep-alive." : "."));
+		}
+
+		instance = new OutboundHttpClient(maxConnections,
+				app.getConfigInt("httpConnectTimeoutMillis", DEFAULT_CONNECT_TIMEOUT_MILLIS),
+				app.getConfigInt("httpReadTimeoutMillis", DEFAULT_READ_TIMEOUT_MILLIS),
+				app.getConfigInt("httpChunkedEncodingSize", DEFAULT_CHUNKED_ENCODING_SIZE), keepAlive);
+		instance.startReport(app.getConfigLong("httpReportIntervalMillis", DEFAULT_REPORT_INTERVAL_MILLIS));
+
+		return instance;
+	}
+
+	// The shared client. Uses the defaults if configure() was not called.
+	public static synchronized OutboundHttpClient get() {
+		if (instance == null) {
+			instance = new OutboundHttpClient(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_CONNECT_TIMEOUT_MILLIS,
+					DEFAULT_READ_TIMEOUT_MILLIS);
+		}
+		return instance;
+	}
+
+	public WebResource resource(String url) {
+		return client.resource(url);
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	// Requests in flight to the host ("host:port").
+	public int getInUse(String host) {
+		HostPool pool = hosts.get(host);
+		return pool == null ? 0 : maxConnectionsPerHost - pool.permits.availablePermits();
+	}
+
+	public String getMetrics() {
+		StringBuilder metrics = new StringBuilder();
+		for (Map.Entry<String, HostPool> entry : hosts.entrySet()) {
+			if (metrics.length() > 0)
+				metrics.append("; ");
+			metrics.append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return metrics.toString();
+	}
+
+	private void startReport(long intervalMillis) {
+		if (intervalMillis <= 0)
+			return;
+
+		reporter = Executors.newSingleThreadScheduledExecutor(new QueueDrainService.DaemonThreadFactory("http-report"));
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				for (Map.Entry<String, HostPool> entry : hosts.entrySet()) {
+					if (entry.getValue().hadTraffic())
+						LOGGER.info("HTTP " + entry.getKey() + ": " + entry.getValue());
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void close() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+		client.destroy();
+		connections.shutdown();
+	}
+
+	private HostPool pool(URI uri) {
+		int port = uri.getPort();
+		if (port < 0)
+			port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+		String host = uri.getHost() + ":" + port;
+
+		HostPool pool = hosts.get(host);
+		if (pool == null) {
+			synchronized (hosts) {
+				pool = hosts.get(host);
+				if (pool == null) {
+					pool = new HostPool(maxConnectionsPerHost);
+					hosts.put(host, pool);
+				}
+			}
+		}
+		return pool;
+	}
+
+	private class HostLimitFilter extends ClientFilter {
+		@Override
+		public ClientResponse handle(ClientRequest request) throws ClientHandlerException {
+			HostPool pool = pool(request.getURI());
+			if (!keepAlive)
+				request.getHeaders().putSingle("Connection", "close");
+
+			long start = System.nanoTime();
+			try {
+				pool.permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ClientHandlerException(e);
+			}
+			pool.acquired(System.nanoTime() - start);
+
+			try {
+				ClientResponse response = getNext().handle(request);
+				response.bufferEntity();
+				return response;
+			} finally {
+				pool.permits.release();
+			}
+		}
+	}
+
+	private static class HostPool {
+		final Semaphore permits;
+		final int size;
+
+		final AtomicLong requests = new AtomicLong(0L);
+		final AtomicLong waited = new AtomicLong(0L);
+		final AtomicLong waitNanos = new AtomicLong(0L);
+		final AtomicLong maxWaitNanos = new AtomicLong(0L);
+		long reportedRequests = 0L;
+
+		HostPool(int size) {
+			this.size = size;
+			this.permits = new Semaphore(size, true);
+		}
+
+		void acquired(long nanos) {
+			requests.incrementAndGet();
+			// Anything under a tenth of a millisecond did not have to wait.
+			if (nanos > 100 * 1000L) {
+				waited.incrementAndGet();
+				waitNanos.addAndGet(nanos);
+				long max = maxWaitNanos.get();
+				while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos))
+					max = maxWaitNanos.get();
+			}
+		}
+
+		synchronized boolean hadTraffic() {
+			long count = requests.get();
+			boolean traffic = count != reportedRequests;
+			reportedRequests = count;
+			return traffic;
+		}
+
+		public String toString() {
+			long count = waited.get();
+			return String.format("%d/%d in use, %d requests, %d waited (avg %.1f ms, max %.1f ms)",
+					size - permits.availablePermits(), size, requests.get(), count,
+					count == 0 ? 0.0 : waitNanos.get() / 1e6 / count, maxWaitNanos.get() / 1e6);
+		}
+	}
+}
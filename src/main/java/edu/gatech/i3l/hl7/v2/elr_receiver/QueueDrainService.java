@@ -0,0 +1,383 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.LeasedQueue;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.LeasedQueue.Lease;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.PayloadCodecs;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.QueueRecord;
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.QueueRecordCodec;
+
+/*
+ * Background service that drains the persistent queue.
+ *
+ * A fixed number of workers lease batches from the head of each queue shard and deliver
+ * them back-to-back for as long as the destination accepts them. Delivered entries are
+ * acked. Entries that fail are nacked and stay in place. When a delivery fails, all the
+ * workers back off together. The back off doubles on every consecutive failure (up to
+ * maxBackoffMillis) and is cleared on the first success.
+ *
+ * An entry the controller rejects (not just unreachable or overloaded, see
+ * DeliveryFailedException.isTransient), or that fails to send with any other exception,
+ * maxAttempts times is moved to the dead letters, so that it does not hold up the entries
+ * behind it. Attempts are counted per process. Entries or records that can not be
+ * decoded are moved to the dead letters as they are, right away.
+ *
+ * Drain rate (entries/sec, smoothed) and estimated time to empty are logged every
+ * reportIntervalMillis while there is something in the queue. The rate counts queue
+ * entries taken off the queue, not records, as the queue size does: with group commit
+ * one entry holds several records.
+ */
+public class QueueDrainService {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(QueueDrainService.class.getName());
+
+	static final int DEFAULT_WORKERS = 2;
+	static final int DEFAULT_BATCH_SIZE = 50;
+	static final long DEFAULT_MIN_BACKOFF_MILLIS = 1000L;
+	static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000L;
+	static final long DEFAULT_IDLE_MILLIS = 1000L;
+	static final long DEFAULT_REPORT_INTERVAL_MILLIS = 60 * 1000L;
+	static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	// Weight of the latest sample in the smoothed drain rate.
+	private static final double RATE_ALPHA = 0.3;
+
+	private final HL7v2ReceiverApplication<?> myApp;
+	private final int workers;
+	private final int batchSize;
+	private final long minBackoffMillis;
+	private final long maxBackoffMillis;
+	private final long idleMillis;
+	private final long reportIntervalMillis;
+	private final int maxAttempts;
+
+	private int activeWorkers = 0;
+	private ExecutorService workerPool = null;
+	private ScheduledExecutorService reporter = null;
+	private volatile boolean running = false;
+
+	// Shared back off state. backoffUntil is an absolute time in millis.
+	private final AtomicLong backoffUntil = new AtomicLong(0L);
+	private final AtomicLong currentBackoff = new AtomicLong(0L);
+
+	// Metrics
+	private final AtomicLong totalDrained = new AtomicLong(0L);
+	private final AtomicLong totalAcked = new AtomicLong(0L);
+	private final AtomicLong totalFailed = new AtomicLong(0L);
+	private final AtomicLong totalDeadLettered = new AtomicLong(0L);
+	private long lastReportAcked = 0L;
+	private long lastReportTime = 0L;
+	private volatile double drainRate = 0.0;
+
+	public QueueDrainService(HL7v2ReceiverApplication<?> app, int workers, int batchSize, long minBackoffMillis,
+			long maxBackoffMillis) {
+		this(app, workers, batchSize, minBackoffMillis, maxBackoffMillis, DEFAULT_IDLE_MILLIS,
+				DEFAULT_REPORT_INTERVAL_MILLIS, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	public QueueDrainService(HL7v2ReceiverApplication<?> app, int workers, int batchSize, long minBackoffMillis,
+			long maxBackoffMillis, long idleMillis, long reportIntervalMillis, int maxAttempts) {
+		this.myApp = app;
+		this.workers = Math.max(1, workers);
+		this.batchSize = Math.max(1, batchSize);
+		this.minBackoffMillis = Math.max(1L, minBackoffMillis);
+		this.maxBackoffMillis = Math.max(this.minBackoffMillis, maxBackoffMillis);
+		this.idleMillis = Math.max(1L, idleMillis);
+		this.reportIntervalMillis = reportIntervalMillis;
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	public synchronized void start(long initialDelayMillis) {
+		if (running)
+			return;
+
+		running = true;
+		backoffUntil.set(System.currentTimeMillis() + initialDelayMillis);
+
+		// No point in having more workers than shards.
+		activeWorkers = Math.min(workers, myApp.getQueue().getShards().size());
+		workerPool = Executors.newFixedThreadPool(activeWorkers, new DaemonThreadFactory("queue-drain"));
+		for (int i = 0; i < activeWorkers; i++) {
+			final int worker = i;
+			workerPool.execute(new Runnable() {
+				public void run() {
+					drainLoop(worker);
+				}
+			});
+		}
+
+		if (reportIntervalMillis > 0) {
+			lastReportTime = System.currentTimeMillis();
+			reporter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("queue-drain-report"));
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					report();
+				}
+			}, reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+
+		LOGGER.info("Queue drain service started with " + activeWorkers + " worker(s), batch size " + batchSize);
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (workerPool != null) {
+			workerPool.shutdownNow();
+			workerPool = null;
+		}
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public long getTotalDrained() {
+		return totalDrained.get();
+	}
+
+	public long getTotalFailed() {
+		return totalFailed.get();
+	}
+
+	public long getTotalDeadLettered() {
+		return totalDeadLettered.get();
+	}
+
+	// Smoothed number of queue entries taken off the queue per second.
+	public double getDrainRate() {
+		return drainRate;
+	}
+
+	// Estimated seconds until the queue is empty at the current drain rate. Both the
+	// size and the rate are in queue entries.
+	// Returns -1 if we are not draining (rate is zero) and the queue is not empty.
+	public long getEstimatedSecondsToEmpty() {
+		int size = myApp.queueSize();
+		if (size == 0)
+			return 0L;
+		double rate = drainRate;
+		if (rate <= 0.0)
+			return -1L;
+		return (long) Math.ceil(size / rate);
+	}
+
+	// Each worker owns the shards whose number modulo the worker count is its own
+	// number. A shard is drained by one worker only, so entries in a shard are
+	// delivered in order.
+	private void drainLoop(int worker) {
+		List<LeasedQueue> shards = myApp.getQueue().getShards();
+		List<LeasedQueue> myShards = new ArrayList<LeasedQueue>();
+		for (int s = worker; s < shards.size(); s += activeWorkers) {
+			myShards.add(shards.get(s));
+		}
+
+		while (running && !Thread.currentThread().isInterrupted()) {
+			try {
+				long wait = backoffUntil.get() - System.currentTimeMillis();
+				if (wait > 0) {
+					Thread.sleep(wait);
+					continue;
+				}
+
+				boolean drainedAny = false;
+				for (LeasedQueue shard : myShards) {
+					List<Lease> batch = shard.take(batchSize);
+					if (batch.isEmpty())
+						continue;
+
+					drainedAny = true;
+					if (!deliver(shard, batch))
+						break;
+				}
+
+				if (!drainedAny)
+					Thread.sleep(idleMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				LOGGER.error("Queue drain worker failed", e);
+				onFailure();
+			}
+		}
+	}
+
+	// Returns false if a delivery failed and we are backing off.
+	private boolean deliver(LeasedQueue shard, List<Lease> batch) throws IOException {
+		for (int i = 0; i < batch.size(); i++) {
+			Lease lease = batch.get(i);
+			int delivered = lease.getDelivered();
+			try {
+				delivered = deliver(lease);
+			} catch (Exception e) {
+				// Not the destination (that is a DeliveryFailedException in process_q).
+				// Put the entries back, so that none of them waits for its lease to expire.
+				LOGGER.error("Failed to deliver queue entry " + lease.getSeq(), e);
+				shard.nack(lease, delivered);
+				for (int j = i + 1; j < batch.size(); j++) {
+					shard.nack(batch.get(j));
+				}
+				onFailure();
+				return false;
+			}
+
+			if (delivered < 0) {
+				shard.ack(lease);
+				totalAcked.incrementAndGet();
+				onSuccess();
+			} else {
+				totalFailed.incrementAndGet();
+				// Part of the entry may have gone through. The entry stays where it is,
+				// so the records behind it keep their order, and the next lease starts
+				// after the delivered ones.
+				shard.nack(lease, delivered);
+
+				// Release the ones we have not tried yet. They stay where they are
+				// in the queue and are retried after the back off.
+				for (int j = i + 1; j < batch.size(); j++) {
+					shard.nack(batch.get(j));
+				}
+				onFailure();
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// Send the records of one entry. Returns -1 if they are all settled (delivered or
+	// moved to the dead letters), or else the number of records at the start of the
+	// entry that are. Entries and records that can not be decoded go to the dead
+	// letters as they are.
+	private int deliver(Lease lease) {
+		// A group commit puts several records in one entry.
+		List<byte[]> records;
+		try {
+			records = QueueRecordCodec.decode(lease.getData());
+		} catch (IOException e) {
+			myApp.deadLetter(undecodable(lease.getData()), "Queue entry can not be decoded: " + e.getMessage());
+			totalDeadLettered.incrementAndGet();
+			return -1;
+		}
+
+		int delivered = Math.min(lease.getDelivered(), records.size());
+		int start = delivered;
+		try {
+			while (delivered < records.size()) {
+				QueueRecord record;
+				try {
+					record = QueueRecord.fromBytes(records.get(delivered));
+				} catch (IOException e) {
+					myApp.deadLetter(undecodable(records.get(delivered)),
+							"Queue record can not be decoded: " + e.getMessage());
+					totalDeadLettered.incrementAndGet();
+					delivered++;
+					continue;
+				}
+
+				try {
+					myApp.process_q(record);
+				} catch (DeliveryFailedException e) {
+					if (e.isTransient() || lease.getAttempt() < maxAttempts)
+						return delivered;
+
+					myApp.deadLetter(record, "Rejected " + lease.getAttempt() + " times: " + e.getMessage());
+					totalDeadLettered.incrementAndGet();
+				} catch (RuntimeException e) {
+					// Not sent at all. Retried like a rejection, then dead-lettered.
+					LOGGER.error("Failed to send queue record from " + record.getSender() + ", control id "
+							+ record.getControlId(), e);
+					if (lease.getAttempt() < maxAttempts)
+						return delivered;
+
+					myApp.deadLetter(record, "Failed " + lease.getAttempt() + " times: " + e);
+					totalDeadLettered.incrementAndGet();
+				}
+				delivered++;
+			}
+		} finally {
+			totalDrained.addAndGet(delivered - start);
+		}
+		return -1;
+	}
+
+	// The bytes as they are, so that they can be looked at (or fixed and reprocessed).
+	private static QueueRecord undecodable(byte[] data) {
+		return new QueueRecord("", "", 0L, PayloadCodecs.JSON, data);
+	}
+
+	private void onSuccess() {
+		if (currentBackoff.get() != 0L) {
+			currentBackoff.set(0L);
+			LOGGER.info("Destination is accepting again. Queue drain resumed at full speed.");
+		}
+	}
+
+	private void onFailure() {
+		long previous = currentBackoff.get();
+		long next = previous == 0L ? minBackoffMillis : Math.min(maxBackoffMillis, previous * 2);
+		if (currentBackoff.compareAndSet(previous, next)) {
+			// A little jitter so that we do not hit the destination in lock step
+			// with other receivers sharing it.
+			long jitter = ThreadLocalRandom.current().nextLong(next / 10 + 1);
+			backoffUntil.set(System.currentTimeMillis() + next + jitter);
+			LOGGER.warn("Queue delivery failed. Backing off for " + (next + jitter) + " ms");
+		}
+	}
+
+	private synchronized void report() {
+		long now = System.currentTimeMillis();
+		long acked = totalAcked.get();
+		double seconds = (now - lastReportTime) / 1000.0;
+		if (seconds <= 0.0)
+			return;
+
+		double rate = (acked - lastReportAcked) / seconds;
+		drainRate = RATE_ALPHA * rate + (1.0 - RATE_ALPHA) * drainRate;
+		lastReportAcked = acked;
+		lastReportTime = now;
+
+		int size = myApp.queueSize();
+		if (size == 0 && rate == 0.0)
+			return;
+
+		long secondsToEmpty = getEstimatedSecondsToEmpty();
+		LOGGER.info(String.format(
+				"Queue drain: %d entries queued, %.2f entries/sec, time to empty %s, drained %d records, "
+						+ "failed %d, dead letters %d",
+				size, drainRate, secondsToEmpty < 0 ? "unknown" : secondsToEmpty + " sec", totalDrained.get(),
+				totalFailed.get(), totalDeadLettered.get()));
+	}
+
+	static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
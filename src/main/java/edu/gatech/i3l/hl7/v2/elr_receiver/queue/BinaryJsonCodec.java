@@ -0,0 +1,245 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Compact binary form of a JSON object.
+ *
+ * Every value starts with a type byte. Integers are zig-zag varints, strings and
+ * container sizes are prefixed with a varint length. Object keys are written in full the
+ * first time they appear and as a varint index after that, so the keys that repeat all
+ * over a FHIR bundle (system, code, display, reference, ...) cost a byte or two each.
+ *
+ *   key: varint 0, then the key as a string (added to the key table)
+ *        varint n > 0, the key at n - 1 in the key table
+ *
+ * Numbers come back as the same types org.json gives when parsing the text (Integer,
+ * Long, Double). BigInteger and BigDecimal keep their text form.
+ */
+public class BinaryJsonCodec implements PayloadCodec {
+	static final int T_NULL = 0;
+	static final int T_FALSE = 1;
+	static final int T_TRUE = 2;
+	static final int T_INTEGER = 3;
+	static final int T_DOUBLE = 4;
+	static final int T_STRING = 5;
+	static final int T_OBJECT = 6;
+	static final int T_ARRAY = 7;
+	static final int T_BIG_INTEGER = 8;
+	static final int T_BIG_DECIMAL = 9;
+
+	public byte getId() {
+		return 1;
+	}
+
+	public String getName() {
+		return "binary";
+	}
+
+	public byte[] encode(JSONObject json) throws IOException {
+		Writer writer = new Writer();
+		writer.writeValue(json);
+		return writer.out.toByteArray();
+	}
+
+	public JSONObject decode(byte[] data) throws IOException {
+		Reader reader = new Reader(data);
+		Object value = reader.readValue();
+		if (!(value instanceof JSONObject))
+			throw new IOException("Binary JSON payload is not an object");
+		if (reader.position != data.length)
+			throw new IOException("Binary JSON payload has " + (data.length - reader.position) + " extra bytes");
+		return (JSONObject) value;
+	}
+
+	private static class Writer {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		final Map<String, Integer> keys = new HashMap<String, Integer>();
+
+		void writeValue(Object value) {
+			if (value == null || value == JSONObject.NULL) {
+				out.write(T_NULL);
+			} else if (value instanceof Boolean) {
+				out.write((Boolean) value ? T_TRUE : T_FALSE);
+			} else if (value instanceof Integer || value instanceof Long || value instanceof Short
+					|| value instanceof Byte) {
+				out.write(T_INTEGER);
+				long n = ((Number) value).longValue();
+				writeVarint((n << 1) ^ (n >> 63));
+			} else if (value instanceof Double || value instanceof Float) {
+				out.write(T_DOUBLE);
+				long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+				for (int shift = 56; shift >= 0; shift -= 8) {
+					out.write((int) (bits >>> shift));
+				}
+			} else if (value instanceof BigInteger) {
+				out.write(T_BIG_INTEGER);
+				writeString(value.toString());
+			} else if (value instanceof BigDecimal) {
+				out.write(T_BIG_DECIMAL);
+				writeString(value.toString());
+			} else if (value instanceof JSONObject) {
+				JSONObject object = (JSONObject) value;
+				out.write(T_OBJECT);
+				writeVarint(object.length());
+				for (String key : object.keySet()) {
+					writeKey(key);
+					writeValue(object.opt(key));
+				}
+			} else if (value instanceof JSONArray) {
+				JSONArray array = (JSONArray) value;
+				out.write(T_ARRAY);
+				writeVarint(array.length());
+				for (int i = 0; i < array.length(); i++) {
+					writeValue(array.opt(i));
+				}
+			} else {
+				// Strings, and anything else org.json would write with toString().
+				out.write(T_STRING);
+				writeString(value.toString());
+			}
+		}
+
+		void writeKey(String key) {
+			Integer index = keys.get(key);
+			if (index != null) {
+				writeVarint(index + 1);
+			} else {
+				writeVarint(0);
+				writeString(key);
+				keys.put(key, keys.size());
+			}
+		}
+
+		void writeString(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+
+		void writeVarint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+	}
+
+	private static class Reader {
+		final byte[] data;
+		int position = 0;
+		final List<String> keys = new ArrayList<String>();
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		Object readValue() throws IOException {
+			int type = readByte();
+			switch (type) {
+			case T_NULL:
+				return JSONObject.NULL;
+			case T_FALSE:
+				return Boolean.FALSE;
+			case T_TRUE:
+				return Boolean.TRUE;
+			case T_INTEGER: {
+				long raw = readVarint();
+				long n = (raw >>> 1) ^ -(raw & 1);
+				if (n == (int) n)
+					return Integer.valueOf((int) n);
+				return Long.valueOf(n);
+			}
+			case T_DOUBLE: {
+				long bits = 0L;
+				for (int i = 0; i < 8; i++) {
+					bits = (bits << 8) | (readByte() & 0xFF);
+				}
+				return Double.longBitsToDouble(bits);
+			}
+			case T_STRING:
+				return readString();
+			case T_BIG_INTEGER:
+				return new BigInteger(readString());
+			case T_BIG_DECIMAL:
+				return new BigDecimal(readString());
+			case T_OBJECT: {
+				int count = readLength();
+				JSONObject object = new JSONObject();
+				for (int i = 0; i < count; i++) {
+					String key = readKey();
+					object.put(key, readValue());
+				}
+				return object;
+			}
+			case T_ARRAY: {
+				int count = readLength();
+				JSONArray array = new JSONArray();
+				for (int i = 0; i < count; i++) {
+					array.put(readValue());
+				}
+				return array;
+			}
+			default:
+				throw new IOException("Unknown binary JSON type " + type + " at " + (position - 1));
+			}
+		}
+
+		String readKey() throws IOException {
+			int index = readLength();
+			if (index == 0) {
+				String key = readString();
+				keys.add(key);
+				return key;
+			}
+			if (index > keys.size())
+				throw new IOException("Binary JSON key index " + index + " out of range");
+			return keys.get(index - 1);
+		}
+
+		String readString() throws IOException {
+			int length = readLength();
+			if (position + length > data.length)
+				throw new IOException("Binary JSON string runs past the end");
+			String value = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+
+		int readLength() throws IOException {
+			long value = readVarint();
+			if (value < 0 || value > Integer.MAX_VALUE)
+				throw new IOException("Binary JSON length out of range");
+			return (int) value;
+		}
+
+		long readVarint() throws IOException {
+			long value = 0L;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("Binary JSON varint too long");
+		}
+
+		int readByte() throws IOException {
+			if (position >= data.length)
+				throw new IOException("Binary JSON payload ends early");
+			return data[position++] & 0xFF;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Queue entries that could not be delivered and were taken out of the queue.
+ *
+ * Two files next to the queue files:
+ *   <baseFileName>.dat  payloads, appended one after the other
+ *   <baseFileName>.idx  one text line per event, tab separated
+ *
+ *   D <id> <length> <time> <sender> <control id> <reason>   a dead letter (id is its offset in .dat)
+ *   R <id> <time>                                           the dead letter was reprocessed
+ *
+ * The index is small and is kept in memory. Appends take a file lock, so the dead-letter
+ * command can run while the receiver is running. New index lines written by the other
+ * process are picked up on the next select().
+ */
+public class DeadLetterStore implements Closeable {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(DeadLetterStore.class.getName());
+
+	public static class Entry {
+		private final long id;
+		private final int length;
+		private final long time;
+		private final String sender;
+		private final String controlId;
+		private final String reason;
+		private long reprocessedAt = 0L;
+
+		Entry(long id, int length, long time, String sender, String controlId, String reason) {
+			this.id = id;
+			this.length = length;
+			this.time = time;
+			this.sender = sender;
+			this.controlId = controlId;
+			this.reason = reason;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		public String getSender() {
+			return sender;
+		}
+
+		public String getControlId() {
+			return controlId;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+
+		public boolean isReprocessed() {
+			return reprocessedAt != 0L;
+		}
+
+		public long getReprocessedAt() {
+			return reprocessedAt;
+		}
+	}
+
+	// Selection of dead letters. Null (or 0 for times) matches everything.
+	public static class Filter {
+		public String sender = null;
+		public String controlId = null;
+		public String reasonContains = null;
+		public long fromTime = 0L;
+		public long toTime = 0L;
+		public boolean includeReprocessed = false;
+
+		boolean matches(Entry entry) {
+			if (!includeReprocessed && entry.isReprocessed())
+				return false;
+			if (sender != null && !sender.equals(entry.getSender()))
+				return false;
+			if (controlId != null && !controlId.equals(entry.getControlId()))
+				return false;
+			if (reasonContains != null && !entry.getReason().contains(reasonContains))
+				return false;
+			if (fromTime != 0L && entry.getTime() < fromTime)
+				return false;
+			if (toTime != 0L && entry.getTime() >= toTime)
+				return false;
+			return true;
+		}
+	}
+
+	private final RandomAccessFile dataFile;
+	private final RandomAccessFile indexFile;
+	private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+	private long indexReadPosition = 0L;
+
+	public DeadLetterStore(String baseFileName) throws IOException {
+		dataFile = new RandomAccessFile(new File(baseFileName + ".dat"), "rw");
+		indexFile = new RandomAccessFile(new File(baseFileName + ".idx"), "rw");
+		refresh();
+
+		int pending = 0;
+		for (Entry entry : entries.values()) {
+			if (!entry.isReprocessed())
+				pending++;
+		}
+		if (pending > 0)
+			LOGGER.warn(pending + " dead letter(s) waiting to be reprocessed in " + baseFileName);
+	}
+
+	public synchronized Entry add(QueueRecord record, String reason) throws IOException {
+		long time = System.currentTimeMillis();
+		byte[] payload = record.getPayload();
+
+		FileLock lock = dataFile.getChannel().lock();
+		try {
+			long id = dataFile.length();
+			dataFile.seek(id);
+			dataFile.write(payload);
+			dataFile.getChannel().force(false);
+
+			appendIndex("D\t" + id + "\t" + payload.length + "\t" + time + "\t" + clean(record.getSender()) + "\t"
+					+ clean(record.getControlId()) + "\t" + clean(reason));
+			return entries.get(id);
+		} finally {
+			lock.release();
+		}
+	}
+
+	public synchronized void markReprocessed(Entry entry) throws IOException {
+		FileLock lock = dataFile.getChannel().lock();
+		try {
+			appendIndex("R\t" + entry.getId() + "\t" + System.currentTimeMillis());
+		} finally {
+			lock.release();
+		}
+	}
+
+	// Called with the file lock held. Reads lines other processes wrote before ours,
+	// then appends ours.
+	private void appendIndex(String line) throws IOException {
+		refresh();
+		byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+		FileChannel channel = indexFile.getChannel();
+		channel.write(ByteBuffer.wrap(bytes), channel.size());
+		channel.force(false);
+		refresh();
+	}
+
+	public synchronized List<Entry> select(Filter filter) throws IOException {
+		refresh();
+		List<Entry> selected = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (filter.matches(entry))
+				selected.add(entry);
+		}
+		return Collections.unmodifiableList(selected);
+	}
+
+	public synchronized byte[] read(Entry entry) throws IOException {
+		byte[] payload = new byte[entry.length];
+		dataFile.seek(entry.getId());
+		dataFile.readFully(payload);
+		return payload;
+	}
+
+	public synchronized int size() throws IOException {
+		refresh();
+		return entries.size();
+	}
+
+	private void refresh() throws IOException {
+		long length = indexFile.length();
+		if (length <= indexReadPosition)
+			return;
+
+		byte[] bytes = new byte[(int) (length - indexReadPosition)];
+		indexFile.seek(indexReadPosition);
+		indexFile.readFully(bytes);
+
+		// Only complete lines. A line being written by the other process is read next time.
+		int end = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == '\n') {
+				parseLine(new String(bytes, end, i - end, StandardCharsets.UTF_8));
+				end = i + 1;
+			}
+		}
+		indexReadPosition += end;
+	}
+
+	private void parseLine(String line) {
+		String[] fields = line.split("\t", -1);
+		try {
+			if ("D".equals(fields[0]) && fields.length >= 7) {
+				long id = Long.parseLong(fields[1]);
+				entries.put(id, new Entry(id, Integer.parseInt(fields[2]), Long.parseLong(fields[3]), fields[4],
+						fields[5], fields[6]));
+			} else if ("R".equals(fields[0]) && fields.length >= 3) {
+				Entry entry = entries.get(Long.parseLong(fields[1]));
+				if (entry != null)
+					entry.reprocessedAt = Long.parseLong(fields[2]);
+			} else {
+				LOGGER.error("Invalid dead-letter index line: " + line);
+			}
+		} catch (NumberFormatException e) {
+			LOGGER.error("Invalid dead-letter index line: " + line);
+		}
+	}
+
+	private static String clean(String value) {
+		if (value == null)
+			return "";
+		return value.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+	}
+
+	public synchronized void close() throws IOException {
+		dataFile.close();
+		indexFile.close();
+	}
+}
@@ -0,0 +1,150 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Group commit in front of a LeasedQueue.
+ *
+ * QueueFile opens its file in synchronous ("rwd") mode, so every add() pays for its
+ * own disk syncs. Here, concurrent appends are collected and written as one QueueFile
+ * entry, so the whole group shares a single durable write.
+ *
+ * There is no writer thread. The first caller that finds no commit in progress becomes
+ * the leader. While other appenders are on their way in, it waits for them, for up to
+ * windowMillis or until maxBatch are pending. Then it writes everything that is pending
+ * and wakes the others up. A lone appender does not wait at all, and the appends that
+ * come in while a commit is being written form the next group. Every append() returns
+ * only after its data is on disk, so callers keep the same guarantee as a direct
+ * QueueFile.add().
+ *
+ * With compress, each group is deflated as one block (see QueueRecordCodec).
+ */
+public class GroupCommitWriter {
+	public static final long DEFAULT_WINDOW_MILLIS = 2L;
+	public static final int DEFAULT_MAX_BATCH = 256;
+
+	private final LeasedQueue queue;
+	private final long windowNanos;
+	private final int maxBatch;
+	private final boolean compress;
+
+	private final Object lock = new Object();
+	private List<Pending> pending = new ArrayList<Pending>();
+	private boolean committing = false;
+	// Appenders that have not made it into pending yet.
+	private final AtomicInteger arriving = new AtomicInteger(0);
+
+	private final AtomicLong commits = new AtomicLong(0L);
+	private final AtomicLong records = new AtomicLong(0L);
+
+	private static class Pending {
+		final byte[] data;
+		boolean done = false;
+		IOException failure = null;
+
+		Pending(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	public GroupCommitWriter(LeasedQueue queue, long windowMillis, int maxBatch) {
+		this(queue, windowMillis, maxBatch, false);
+	}
+
+	public GroupCommitWriter(LeasedQueue queue, long windowMillis, int maxBatch, boolean compress) {
+		this.queue = queue;
+		this.compress = compress;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, windowMillis));
+		this.maxBatch = Math.max(1, maxBatch);
+	}
+
+	public void append(byte[] data) throws IOException {
+		Pending mine = new Pending(data);
+		boolean interrupted = false;
+
+		arriving.incrementAndGet();
+		synchronized (lock) {
+			pending.add(mine);
+			arriving.decrementAndGet();
+			if (committing)
+				lock.notifyAll();
+		}
+
+		while (true) {
+			List<Pending> batch;
+			synchronized (lock) {
+				while (!mine.done && committing) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						// We can not leave before our data is written.
+						interrupted = true;
+					}
+				}
+				if (mine.done)
+					break;
+
+				// Lead this group.
+				committing = true;
+				long deadline = System.nanoTime() + windowNanos;
+				while (pending.size() < maxBatch && arriving.get() > 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0)
+						break;
+					try {
+						TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+					} catch (InterruptedException e) {
+						interrupted = true;
+						break;
+					}
+				}
+				batch = pending;
+				pending = new ArrayList<Pending>();
+			}
+
+			commit(batch);
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (mine.failure != null)
+			throw mine.failure;
+	}
+
+	private void commit(List<Pending> batch) {
+		IOException failure = null;
+		try {
+			List<byte[]> data = new ArrayList<byte[]>(batch.size());
+			for (Pending p : batch) {
+				data.add(p.data);
+			}
+			queue.add(QueueRecordCodec.encode(data, compress));
+			commits.incrementAndGet();
+			records.addAndGet(batch.size());
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		synchronized (lock) {
+			for (Pending p : batch) {
+				p.failure = failure;
+				p.done = true;
+			}
+			committing = false;
+			lock.notifyAll();
+		}
+	}
+
+	public long getCommitCount() {
+		return commits.get();
+	}
+
+	public long getRecordCount() {
+		return records.get();
+	}
+}
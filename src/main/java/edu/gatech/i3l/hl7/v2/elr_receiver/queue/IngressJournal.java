@@ -0,0 +1,327 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Append-only, memory-mapped journal of raw inbound messages.
+ *
+ * The journal is a sequence of segment files in one directory. Each segment is named by
+ * the journal offset of its first byte (ingress-<offset>.log) and holds records:
+ *
+ *   length (int) | crc32 (int) | data
+ *
+ * A length of 0 means nothing has been written after this point. A length of -1 means
+ * the rest of the segment is unused and the next record is in the next segment.
+ *
+ * append() returns once the record is forced to disk. Appends that happen while another
+ * thread is forcing are covered by the next force, so concurrent callers share the cost.
+ *
+ * A single consumer reads records with next() starting at the checkpoint, and calls
+ * checkpoint() once a record is fully handled. Segments that are entirely before the
+ * checkpoint are deleted. After a restart, reading resumes at the last checkpoint, so a
+ * record may be handled twice but is never lost.
+ */
+public class IngressJournal implements Closeable {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(IngressJournal.class.getName());
+
+	public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	static final String SEGMENT_PREFIX = "ingress-";
+	static final String SEGMENT_SUFFIX = ".log";
+	static final String CHECKPOINT_FILE = "ingress.checkpoint";
+	static final int HEADER_BYTES = 8;
+	static final int END_OF_SEGMENT = -1;
+
+	public static class Record {
+		private final long offset;
+		private final long nextOffset;
+		private final byte[] data;
+
+		Record(long offset, long nextOffset, byte[] data) {
+			this.offset = offset;
+			this.nextOffset = nextOffset;
+			this.data = data;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getNextOffset() {
+			return nextOffset;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+
+	private static class Segment {
+		final long baseOffset;
+		final File file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(long baseOffset, File file, int size) throws IOException {
+			this.baseOffset = baseOffset;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			if (raf.length() < size)
+				raf.setLength(size);
+			this.channel = raf.getChannel();
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+
+		long endOffset() {
+			return baseOffset + buffer.capacity();
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	private final File directory;
+	private final int segmentBytes;
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	// Writer state (guarded by this).
+	private Segment writeSegment;
+	private int writePosition;
+
+	// Durability watermark (guarded by forceLock).
+	private final Object forceLock = new Object();
+	private long forcedOffset;
+
+	// Reader state (single consumer).
+	private long readOffset;
+	private long checkpointOffset;
+	private final RandomAccessFile checkpointFile;
+
+	public IngressJournal(File directory, int segmentBytes) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Can not create journal directory " + directory);
+
+		File[] files = directory.listFiles();
+		List<Long> bases = new ArrayList<Long>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					bases.add(Long.parseLong(
+							name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				}
+			}
+		}
+		Long[] sorted = bases.toArray(new Long[bases.size()]);
+		Arrays.sort(sorted);
+		for (Long base : sorted) {
+			segments.add(new Segment(base, segmentFile(base), 0));
+		}
+
+		checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+		checkpointOffset = checkpointFile.length() >= 8 ? checkpointFile.readLong() : 0L;
+
+		if (segments.isEmpty()) {
+			writeSegment = newSegment(Math.max(checkpointOffset, 0L), segmentBytes);
+			writePosition = 0;
+		} else {
+			writeSegment = segments.get(segments.size() - 1);
+			writePosition = recover(writeSegment);
+		}
+		forcedOffset = writeSegment.baseOffset + writePosition;
+
+		if (checkpointOffset < segments.get(0).baseOffset)
+			checkpointOffset = segments.get(0).baseOffset;
+		readOffset = checkpointOffset;
+
+		LOGGER.info("Ingress journal opened in " + directory + ". " + (forcedOffset - checkpointOffset)
+				+ " bytes waiting to be processed.");
+	}
+
+	private File segmentFile(long baseOffset) {
+		return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, baseOffset, SEGMENT_SUFFIX));
+	}
+
+	private Segment newSegment(long baseOffset, int size) throws IOException {
+		Segment segment = new Segment(baseOffset, segmentFile(baseOffset), size);
+		segments.add(segment);
+		return segment;
+	}
+
+	// Find the end of valid data in the last segment. A torn record at the tail
+	// (crash during append) is cleared.
+	private int recover(Segment segment) {
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int position = 0;
+		while (position + HEADER_BYTES <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length == 0 || length == END_OF_SEGMENT)
+				break;
+			if (length < 0 || position + HEADER_BYTES + length > buffer.capacity()
+					|| buffer.getInt(position + 4) != checksum(buffer, position + HEADER_BYTES, length)) {
+				LOGGER.warn("Discarding torn record at the end of " + segment.file.getName());
+				for (int i = position; i < buffer.capacity(); i++) {
+					buffer.put(i, (byte) 0);
+				}
+				segment.buffer.force();
+				break;
+			}
+			position += HEADER_BYTES + length;
+		}
+		return position;
+	}
+
+	private static int checksum(ByteBuffer buffer, int position, int length) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < length; i++) {
+			crc.update(buffer.get(position + i));
+		}
+		return (int) crc.getValue();
+	}
+
+	// Returns the journal offset right after the record, once it is on disk.
+	public long append(byte[] data) throws IOException {
+		long end;
+		synchronized (this) {
+			int needed = HEADER_BYTES + data.length;
+			if (writePosition + needed > writeSegment.buffer.capacity()) {
+				roll(needed);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, 0, data.length);
+
+			ByteBuffer buffer = writeSegment.buffer.duplicate();
+			buffer.position(writePosition + 4);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(data);
+			// Length goes last. A reader never sees a record with a length but no data.
+			buffer.putInt(writePosition, data.length);
+			writePosition += needed;
+			end = writeSegment.baseOffset + writePosition;
+		}
+
+		synchronized (forceLock) {
+			if (forcedOffset < end) {
+				Segment segment;
+				long target;
+				synchronized (this) {
+					segment = writeSegment;
+					target = writeSegment.baseOffset + writePosition;
+				}
+				segment.buffer.force();
+				forcedOffset = target;
+			}
+		}
+
+		return end;
+	}
+
+	// Called with the lock held.
+	private void roll(int needed) throws IOException {
+		if (writePosition + 4 <= writeSegment.buffer.capacity()) {
+			writeSegment.buffer.putInt(writePosition, END_OF_SEGMENT);
+		}
+		// Everything in the old segment must be on disk before anything in the new one.
+		writeSegment.buffer.force();
+
+		writeSegment = newSegment(writeSegment.endOffset(), Math.max(segmentBytes, needed + 4));
+		writePosition = 0;
+	}
+
+	// Next record after the last one read, or null if there is none yet.
+	public Record next() throws IOException {
+		Segment segment;
+		int position;
+		synchronized (this) {
+			long end = writeSegment.baseOffset + writePosition;
+			if (readOffset >= end)
+				return null;
+
+			segment = segmentFor(readOffset);
+			position = (int) (readOffset - segment.baseOffset);
+			if (position + HEADER_BYTES > segment.buffer.capacity()
+					|| segment.buffer.getInt(position) == END_OF_SEGMENT) {
+				readOffset = segment.endOffset();
+				return next();
+			}
+		}
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		int length = buffer.getInt(position);
+		byte[] data = new byte[length];
+		buffer.position(position + HEADER_BYTES);
+		buffer.get(data);
+
+		long offset = readOffset;
+		readOffset = segment.baseOffset + position + HEADER_BYTES + length;
+		return new Record(offset, readOffset, data);
+	}
+
+	// Reading starts again at the checkpoint, eg. after a failed read.
+	public synchronized void rewind() {
+		readOffset = checkpointOffset;
+	}
+
+	private Segment segmentFor(long offset) throws IOException {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			if (segment.baseOffset <= offset)
+				return segment;
+		}
+		throw new IOException("Journal offset " + offset + " is not in any segment");
+	}
+
+	// Everything before offset is handled. Deletes segments that are no longer needed.
+	public void checkpoint(long offset) throws IOException {
+		checkpointFile.seek(0);
+		checkpointFile.writeLong(offset);
+		checkpointFile.getChannel().force(false);
+		checkpointOffset = offset;
+
+		synchronized (this) {
+			while (segments.size() > 1 && segments.get(0).endOffset() <= offset) {
+				Segment done = segments.remove(0);
+				done.close();
+				if (!done.file.delete()) {
+					LOGGER.warn("Failed to delete journal segment " + done.file);
+				}
+			}
+		}
+	}
+
+	public long getCheckpointOffset() {
+		return checkpointOffset;
+	}
+
+	// Bytes appended but not checkpointed yet.
+	public synchronized long getBacklogBytes() {
+		return writeSegment.baseOffset + writePosition - checkpointOffset;
+	}
+
+	public synchronized void close() throws IOException {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			segment.close();
+		}
+		checkpointFile.close();
+	}
+}
@@ -0,0 +1,261 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.squareup.tape2.QueueFile;
+
+/*
+ * Persistent queue with lease/ack consumer semantics on top of tape2 QueueFile.
+ *
+ * take() leases entries from the head of the queue without removing them. The consumer
+ * must ack() each entry once it is delivered or nack() it to make it available again.
+ * Leases that are neither acked nor nacked within leaseMillis expire and the entries
+ * become available to other consumers.
+ *
+ * QueueFile can only remove from the head. Acked entries are removed when every entry
+ * in front of them is also acked. Until then they are only marked in memory. So, if the
+ * process dies, nothing is lost: entries that were in flight (or acked out of order)
+ * are delivered again on the next start.
+ *
+ * Entries are identified by a sequence number. The head entry of the file has sequence
+ * number headSeq, the next one headSeq + 1, and so on. Sequence numbers are valid only
+ * for the life of this object.
+ *
+ * The data of the entries that are not acked is kept in memory for the front of the
+ * queue (the window, up to readAhead entries plus the ones in flight). take() starts at
+ * a cursor past the entries in front that are all in flight or acked, so it does not
+ * look at them again. Entries added while the window holds the whole queue go into it
+ * as well, so the file is read only when a backlog is more than readAhead entries long.
+ */
+public class LeasedQueue implements Closeable {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(LeasedQueue.class.getName());
+
+	public static final long DEFAULT_LEASE_MILLIS = 10 * 60 * 1000L;
+	public static final int DEFAULT_READ_AHEAD = 256;
+
+	private final QueueFile queueFile;
+	private final long leaseMillis;
+	private final int readAhead;
+
+	private long headSeq = 0L;
+	private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+	private final TreeSet<Long> acked = new TreeSet<Long>();
+	private final Map<Long, Integer> attempts = new HashMap<Long, Integer>();
+	// Records at the start of an entry that were delivered (see nack(Lease, int)).
+	private final Map<Long, Integer> progress = new HashMap<Long, Integer>();
+
+	// Data of the entries from headSeq to loadedEnd that are not acked.
+	private final TreeMap<Long, byte[]> loaded = new TreeMap<Long, byte[]>();
+	private long loadedEnd = 0L;
+	// Every entry in front of it is in flight or acked.
+	private long cursor = 0L;
+
+	public static class Lease {
+		private final long seq;
+		private final byte[] data;
+		private final long expiresAt;
+		private final int attempt;
+		private final int delivered;
+
+		Lease(long seq, byte[] data, long expiresAt, int attempt, int delivered) {
+			this.seq = seq;
+			this.data = data;
+			this.expiresAt = expiresAt;
+			this.attempt = attempt;
+			this.delivered = delivered;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		// 1 for the first delivery attempt in this process.
+		public int getAttempt() {
+			return attempt;
+		}
+
+		// Records at the start of the entry that went through on an earlier lease.
+		public int getDelivered() {
+			return delivered;
+		}
+	}
+
+	public LeasedQueue(File file, long leaseMillis) throws IOException {
+		this(new QueueFile.Builder(file).build(), leaseMillis);
+	}
+
+	public LeasedQueue(QueueFile queueFile, long leaseMillis) {
+		this(queueFile, leaseMillis, DEFAULT_READ_AHEAD);
+	}
+
+	public LeasedQueue(QueueFile queueFile, long leaseMillis, int readAhead) {
+		this.queueFile = queueFile;
+		this.leaseMillis = leaseMillis;
+		this.readAhead = Math.max(1, readAhead);
+	}
+
+	public QueueFile getQueueFile() {
+		return queueFile;
+	}
+
+	public synchronized void add(byte[] data) throws IOException {
+		boolean window = loadedEnd == headSeq + queueFile.size() && loaded.size() < readAhead;
+		queueFile.add(data);
+		if (window)
+			loaded.put(loadedEnd++, data);
+	}
+
+	// Lease up to max entries that are neither in flight nor acked, in queue order.
+	public synchronized List<Lease> take(int max) throws IOException {
+		List<Lease> taken = new ArrayList<Lease>();
+		if (max <= 0 || queueFile.isEmpty())
+			return taken;
+
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		// Leases and acks are never on the same entry (see ack()).
+		if (leases.size() + acked.size() >= queueFile.size())
+			return taken;
+
+		while (taken.size() < max) {
+			for (Map.Entry<Long, byte[]> entry : loaded.tailMap(cursor, true).entrySet()) {
+				if (taken.size() >= max)
+					break;
+				long seq = entry.getKey();
+				cursor = seq + 1;
+				if (leases.containsKey(seq))
+					continue;
+
+				Integer previous = attempts.get(seq);
+				int attempt = previous == null ? 1 : previous + 1;
+				attempts.put(seq, attempt);
+
+				Integer delivered = progress.get(seq);
+				Lease lease = new Lease(seq, entry.getValue(), now + leaseMillis, attempt,
+						delivered == null ? 0 : delivered);
+				leases.put(seq, lease);
+				taken.add(lease);
+			}
+			if (taken.size() >= max || loadedEnd >= headSeq + queueFile.size())
+				break;
+			load(Math.max(readAhead, max - taken.size()));
+		}
+
+		return taken;
+	}
+
+	// Read the next entries past the window from the file.
+	private void load(int count) throws IOException {
+		long skip = loadedEnd - headSeq;
+		Iterator<byte[]> iterator = queueFile.iterator();
+		for (long i = 0; i < skip && iterator.hasNext(); i++) {
+			iterator.next();
+		}
+		for (int i = 0; i < count && iterator.hasNext(); i++) {
+			loaded.put(loadedEnd++, iterator.next());
+		}
+	}
+
+	// Delivered (or dropped). The entry will never be handed out again.
+	public synchronized void ack(Lease lease) throws IOException {
+		long seq = lease.getSeq();
+		if (seq < headSeq || acked.contains(seq))
+			return;
+
+		if (leases.get(seq) != lease) {
+			// Our lease expired and the entry may have been handed to someone else.
+			// It is delivered anyway, so mark it done. The other lease is dropped, and
+			// its ack or nack will be ignored.
+			LOGGER.warn("Queue entry " + seq + " acked after its lease expired");
+		}
+		leases.remove(seq);
+		loaded.remove(seq);
+		acked.add(seq);
+		attempts.remove(seq);
+		progress.remove(seq);
+
+		// Remove the acked entries at the head of the file.
+		int removable = 0;
+		while (!acked.isEmpty() && acked.first() == headSeq + removable) {
+			acked.pollFirst();
+			removable++;
+		}
+		if (removable > 0) {
+			queueFile.remove(removable);
+			headSeq += removable;
+			cursor = Math.max(cursor, headSeq);
+		}
+	}
+
+	// Not delivered. Make the entry available again at its current position.
+	public synchronized void nack(Lease lease) {
+		nack(lease, lease.getDelivered());
+	}
+
+	// Only the first delivered records of the entry (a group commit, see
+	// GroupCommitWriter) went through. The next lease starts after them, and its
+	// attempts are counted from 1 again, for the record it is stuck on.
+	public synchronized void nack(Lease lease, int delivered) {
+		long seq = lease.getSeq();
+		if (leases.get(seq) != lease)
+			return;
+
+		leases.remove(seq);
+		cursor = Math.min(cursor, seq);
+		if (delivered > lease.getDelivered()) {
+			progress.put(seq, delivered);
+			attempts.remove(seq);
+		}
+	}
+
+	// Number of entries that are not acked yet (including the ones in flight).
+	public synchronized int size() {
+		return queueFile.size() - acked.size();
+	}
+
+	public synchronized int inFlight() {
+		return leases.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return size() == 0;
+	}
+
+	private void expire(long now) {
+		Iterator<Lease> iterator = leases.values().iterator();
+		while (iterator.hasNext()) {
+			Lease lease = iterator.next();
+			if (lease.getExpiresAt() <= now) {
+				LOGGER.warn("Lease on queue entry " + lease.getSeq() + " expired. It will be delivered again.");
+				iterator.remove();
+				cursor = Math.min(cursor, lease.getSeq());
+			}
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		queueFile.close();
+	}
+}
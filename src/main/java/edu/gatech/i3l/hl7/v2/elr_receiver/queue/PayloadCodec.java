@@ -0,0 +1,20 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+
+/*
+ * How the JSON payload of a queue record is stored. The codec id is written in the
+ * record, so records written with any codec can be read back whatever the current
+ * configuration is. Ids must never be reused.
+ */
+public interface PayloadCodec {
+	public byte getId();
+
+	public String getName();
+
+	public byte[] encode(JSONObject json) throws IOException;
+
+	public JSONObject decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,54 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Known payload codecs.
+ *
+ *   json   (0) UTF-8 JSON text. Everything queued before codecs were added.
+ *   binary (1) BinaryJsonCodec.
+ */
+public class PayloadCodecs {
+	public static final PayloadCodec JSON = new PayloadCodec() {
+		public byte getId() {
+			return 0;
+		}
+
+		public String getName() {
+			return "json";
+		}
+
+		public byte[] encode(JSONObject json) {
+			return json.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		public JSONObject decode(byte[] data) throws IOException {
+			try {
+				return new JSONObject(new String(data, StandardCharsets.UTF_8));
+			} catch (JSONException e) {
+				throw new IOException("Ill-formed JSON: " + e.getMessage(), e);
+			}
+		}
+	};
+
+	public static final PayloadCodec BINARY = new BinaryJsonCodec();
+
+	public static PayloadCodec forId(byte id) throws IOException {
+		if (id == JSON.getId())
+			return JSON;
+		if (id == BINARY.getId())
+			return BINARY;
+		throw new IOException("Unknown payload codec " + id);
+	}
+
+	// For config.properties. Unknown names fall back to JSON text.
+	public static PayloadCodec forName(String name) {
+		if (name != null && BINARY.getName().equalsIgnoreCase(name.trim()))
+			return BINARY;
+		return JSON;
+	}
+}
@@ -0,0 +1,120 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+
+/*
+ * One queued payload and where it came from.
+ *
+ *   TAG (1 byte) | VERSION (1 byte) | codec (1 byte) | sender (UTF) | control id (UTF)
+ *       | queued at (long) | payload
+ *
+ * sender and control id are MSH-4 and MSH-10 of the HL7 message the payload was mapped
+ * from. They are kept so that an entry can be traced back to the lab message if it ends
+ * up in the dead-letter store. codec is the PayloadCodec id of the payload.
+ *
+ * Version 1 records have no codec byte and the payload is JSON text. Entries queued
+ * before records were tagged are the JSON text only and are read with an empty sender
+ * and control id.
+ */
+public class QueueRecord {
+	static final byte TAG = (byte) 0xEC;
+	static final byte VERSION_1 = 1;
+	static final byte VERSION = 2;
+
+	private final String sender;
+	private final String controlId;
+	private final long queuedAt;
+	private final PayloadCodec codec;
+	private final byte[] body;
+
+	public QueueRecord(String sender, String controlId, long queuedAt, PayloadCodec codec, byte[] body) {
+		this.sender = sender == null ? "" : sender;
+		this.controlId = controlId == null ? "" : controlId;
+		this.queuedAt = queuedAt;
+		this.codec = codec;
+		this.body = body;
+	}
+
+	public static QueueRecord of(String sender, String controlId, long queuedAt, PayloadCodec codec, JSONObject json)
+			throws IOException {
+		return new QueueRecord(sender, controlId, queuedAt, codec, codec.encode(json));
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getControlId() {
+		return controlId;
+	}
+
+	// 0 if not known.
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+
+	public PayloadCodec getCodec() {
+		return codec;
+	}
+
+	public JSONObject toJson() throws IOException {
+		return codec.decode(body);
+	}
+
+	// JSON text of the payload. If it can not be decoded, the stored bytes as they are.
+	public byte[] getPayload() {
+		if (codec == PayloadCodecs.JSON)
+			return body;
+		try {
+			return toJson().toString().getBytes(StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return body;
+		}
+	}
+
+	public byte[] toBytes() throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length + 64);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeByte(TAG);
+		out.writeByte(VERSION);
+		out.writeByte(codec.getId());
+		out.writeUTF(sender);
+		out.writeUTF(controlId);
+		out.writeLong(queuedAt);
+		out.write(body);
+		out.flush();
+
+		return buffer.toByteArray();
+	}
+
+	public static QueueRecord fromBytes(byte[] data) throws IOException {
+		if (data.length < 2 || data[0] != TAG)
+			return new QueueRecord("", "", 0L, PayloadCodecs.JSON, data);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		in.readByte();
+		byte version = in.readByte();
+		PayloadCodec codec;
+		if (version == VERSION_1)
+			codec = PayloadCodecs.JSON;
+		else if (version == VERSION)
+			codec = PayloadCodecs.forId(in.readByte());
+		else
+			throw new IOException("Unknown queue record version " + version);
+
+		String sender = in.readUTF();
+		String controlId = in.readUTF();
+		long queuedAt = in.readLong();
+		byte[] body = new byte[in.available()];
+		in.readFully(body);
+
+		return new QueueRecord(sender, controlId, queuedAt, codec, body);
+	}
+}
@@ -0,0 +1,161 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Layout of a QueueFile entry.
+ *
+ * An entry written by one producer is the record itself, as it has always been. An entry
+ * written by a group commit holds several records:
+ *
+ *   MAGIC (1 byte) | VERSION_BATCH (1 byte) | count (int) | { length (int) | record } * count
+ *
+ * With compression, the whole block after the header is deflated, so records of a group
+ * commit are compressed together and share one dictionary:
+ *
+ *   MAGIC (1 byte) | VERSION_DEFLATE (1 byte) | block length (int) | deflated block
+ *
+ * where the block is count (int) | { length (int) | record } * count. A block that does
+ * not get smaller is written uncompressed. MAGIC can not be the first byte of JSON text
+ * or of a tagged QueueRecord, so old entries are read as they are.
+ */
+public class QueueRecordCodec {
+	static final byte MAGIC = (byte) 0xEB;
+	static final byte VERSION_BATCH = 1;
+	static final byte VERSION_DEFLATE = 2;
+
+	// Smaller blocks do not compress well enough to be worth it.
+	static final int MIN_COMPRESS_BYTES = 128;
+
+	public static byte[] encode(List<byte[]> records) throws IOException {
+		return encode(records, false);
+	}
+
+	public static byte[] encode(List<byte[]> records, boolean compress) throws IOException {
+		if (!compress && records.size() == 1 && !isFramed(records.get(0)))
+			return records.get(0);
+
+		int length = 4;
+		for (byte[] record : records) {
+			length += 4 + record.length;
+		}
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(length + 2);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeByte(MAGIC);
+		out.writeByte(VERSION_BATCH);
+		out.writeInt(records.size());
+		for (byte[] record : records) {
+			out.writeInt(record.length);
+			out.write(record);
+		}
+		out.flush();
+		byte[] batch = buffer.toByteArray();
+
+		if (compress && length >= MIN_COMPRESS_BYTES) {
+			byte[] deflated = deflate(batch, 2, length);
+			if (deflated != null)
+				return deflated;
+		}
+
+		if (records.size() == 1 && !isFramed(records.get(0)))
+			return records.get(0);
+		return batch;
+	}
+
+	// Deflate batch[offset..] behind a VERSION_DEFLATE header. Null if it does not get smaller.
+	private static byte[] deflate(byte[] batch, int offset, int length) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(batch, offset, length);
+			deflater.finish();
+
+			byte[] out = new byte[6 + length];
+			out[0] = MAGIC;
+			out[1] = VERSION_DEFLATE;
+			out[2] = (byte) (length >>> 24);
+			out[3] = (byte) (length >>> 16);
+			out[4] = (byte) (length >>> 8);
+			out[5] = (byte) length;
+
+			int written = 6;
+			while (!deflater.finished() && written < out.length) {
+				written += deflater.deflate(out, written, out.length - written);
+			}
+			if (!deflater.finished())
+				return null;
+
+			byte[] result = new byte[written];
+			System.arraycopy(out, 0, result, 0, written);
+			return result;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public static List<byte[]> decode(byte[] entry) throws IOException {
+		if (!isFramed(entry))
+			return Collections.singletonList(entry);
+
+		byte version = entry[1];
+		DataInputStream in;
+		if (version == VERSION_BATCH) {
+			in = new DataInputStream(new ByteArrayInputStream(entry, 2, entry.length - 2));
+		} else if (version == VERSION_DEFLATE) {
+			in = new DataInputStream(new ByteArrayInputStream(inflate(entry)));
+		} else {
+			throw new IOException("Unknown queue entry version " + version);
+		}
+
+		int count = in.readInt();
+		List<byte[]> records = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			byte[] record = new byte[in.readInt()];
+			in.readFully(record);
+			records.add(record);
+		}
+
+		return records;
+	}
+
+	private static byte[] inflate(byte[] entry) throws IOException {
+		if (entry.length < 6)
+			throw new IOException("Compressed queue entry too short");
+		int length = ((entry[2] & 0xFF) << 24) | ((entry[3] & 0xFF) << 16) | ((entry[4] & 0xFF) << 8)
+				| (entry[5] & 0xFF);
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(entry, 6, entry.length - 6);
+			byte[] block = new byte[length];
+			int read = 0;
+			while (read < length && !inflater.finished()) {
+				int n = inflater.inflate(block, read, length - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				read += n;
+			}
+			if (read != length)
+				throw new IOException("Compressed queue entry is truncated");
+			return block;
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed queue entry is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	static boolean isFramed(byte[] entry) {
+		return entry.length > 1 && entry[0] == MAGIC;
+	}
+}
@@ -0,0 +1,138 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Persistent queue split into N segment files (shards), each one a LeasedQueue.
+ *
+ * Entries are routed by a hash of a routing key (destination + patient identifier).
+ * Everything for the same patient and destination goes to the same shard and keeps its
+ * order there. Producers writing for different patients and the drain workers (one per
+ * shard at a time) do not contend on the same file or lock.
+ *
+ * Shard files are named <baseFileName>-<shard number>. If the single queue file used by
+ * earlier versions (<baseFileName>) or shard files beyond the configured count still have
+ * entries, they are opened as drain-only shards: nothing new is routed to them.
+ *
+ * Opening a QueueFile only reads its header, and sizes come from the header as well.
+ * So start up does not depend on how big the backlog is.
+ */
+public class ShardedQueue implements Closeable {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(ShardedQueue.class.getName());
+
+	public static final int DEFAULT_SHARDS = 8;
+
+	private final int routedShards;
+	private final List<LeasedQueue> shards;
+	private final List<GroupCommitWriter> writers;
+
+	public ShardedQueue(String baseFileName, int shardCount, long leaseMillis) throws IOException {
+		this(baseFileName, shardCount, leaseMillis, GroupCommitWriter.DEFAULT_WINDOW_MILLIS,
+				GroupCommitWriter.DEFAULT_MAX_BATCH);
+	}
+
+	public ShardedQueue(String baseFileName, int shardCount, long leaseMillis, long groupCommitWindowMillis,
+			int groupCommitMaxBatch) throws IOException {
+		this(baseFileName, shardCount, leaseMillis, groupCommitWindowMillis, groupCommitMaxBatch, false);
+	}
+
+	public ShardedQueue(String baseFileName, int shardCount, long leaseMillis, long groupCommitWindowMillis,
+			int groupCommitMaxBatch, boolean compress) throws IOException {
+		this.routedShards = Math.max(1, shardCount);
+
+		List<LeasedQueue> opened = new ArrayList<LeasedQueue>();
+		List<GroupCommitWriter> shardWriters = new ArrayList<GroupCommitWriter>();
+		for (int i = 0; i < routedShards; i++) {
+			LeasedQueue shard = new LeasedQueue(shardFile(baseFileName, i), leaseMillis);
+			opened.add(shard);
+			shardWriters.add(new GroupCommitWriter(shard, groupCommitWindowMillis, groupCommitMaxBatch, compress));
+		}
+		this.writers = Collections.unmodifiableList(shardWriters);
+
+		// Left-overs from a larger shard count.
+		for (int i = routedShards;; i++) {
+			File file = shardFile(baseFileName, i);
+			if (!file.exists())
+				break;
+			openDrainOnly(file, leaseMillis, opened);
+		}
+
+		// Single queue file from before sharding.
+		File legacy = new File(baseFileName);
+		if (legacy.exists()) {
+			openDrainOnly(legacy, leaseMillis, opened);
+		}
+
+		this.shards = Collections.unmodifiableList(opened);
+
+		LOGGER.info("Queue opened with " + routedShards + " shard(s) and " + (shards.size() - routedShards)
+				+ " drain-only file(s). " + size() + " entries queued.");
+	}
+
+	static File shardFile(String baseFileName, int shard) {
+		return new File(baseFileName + "-" + shard);
+	}
+
+	private static void openDrainOnly(File file, long leaseMillis, List<LeasedQueue> opened) throws IOException {
+		LeasedQueue queue = new LeasedQueue(file, leaseMillis);
+		if (queue.isEmpty()) {
+			queue.close();
+			return;
+		}
+
+		LOGGER.info("Draining " + queue.size() + " entries left in " + file.getName());
+		opened.add(queue);
+	}
+
+	public int shardFor(String routingKey) {
+		int hash = routingKey == null ? 0 : routingKey.hashCode();
+		// Spread the bits. String hash codes of similar keys differ only in the low bits.
+		hash ^= (hash >>> 16);
+		return Math.floorMod(hash * 0x9E3779B9, routedShards);
+	}
+
+	// Returns when the data is on disk. Concurrent adds to the same shard share
+	// one write (see GroupCommitWriter).
+	public void add(String routingKey, byte[] data) throws IOException {
+		writers.get(shardFor(routingKey)).append(data);
+	}
+
+	// All shards including the drain-only ones.
+	public List<LeasedQueue> getShards() {
+		return shards;
+	}
+
+	public int size() {
+		int size = 0;
+		for (LeasedQueue shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public void close() throws IOException {
+		IOException failure = null;
+		for (LeasedQueue shard : shards) {
+			try {
+				shard.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
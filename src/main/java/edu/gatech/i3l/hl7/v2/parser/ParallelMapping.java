@@ -0,0 +1,87 @@
+package edu.gatech.i3l.hl7.v2.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Maps the parts of a message (the RESPONSE groups of an ORU^R01) on a fork/join pool,
+ * for batch messages with many of them. The results come back in the order of the parts.
+ *
+ * Below threshold parts, they are mapped one after the other on the calling thread, as
+ * before, so small messages do not pay for handing work to the pool. A part must only
+ * read its own part of the message. Anything shared (eg. MessageHeader.focus) is done
+ * by the caller on the results.
+ */
+public final class ParallelMapping {
+	public static final int DEFAULT_THRESHOLD = 8;
+
+	public interface Unit<T> {
+		T map(int index);
+	}
+
+	private static volatile int threshold = DEFAULT_THRESHOLD;
+	private static int parallelism = Runtime.getRuntime().availableProcessors();
+	private static ForkJoinPool pool = null;
+
+	// threshold 0 or less maps everything on the calling thread.
+	public static synchronized void configure(int newThreshold, int newParallelism) {
+		threshold = newThreshold;
+		if (newParallelism > 0 && newParallelism != parallelism) {
+			parallelism = newParallelism;
+			if (pool != null)
+				pool.shutdown();
+			pool = null;
+		}
+	}
+
+	private static synchronized ForkJoinPool pool() {
+		if (pool == null)
+			pool = new ForkJoinPool(parallelism);
+		return pool;
+	}
+
+	public static <T> List<T> map(int count, Unit<T> unit) {
+		int limit = threshold;
+		if (limit <= 0 || count < limit) {
+			List<T> results = new ArrayList<T>(count);
+			for (int i = 0; i < count; i++) {
+				results.add(unit.map(i));
+			}
+			return results;
+		}
+
+		Object[] results = new Object[count];
+		pool().invoke(new Range<T>(unit, results, 0, count));
+		@SuppressWarnings("unchecked")
+		List<T> list = (List<T>) Arrays.asList(results);
+		return new ArrayList<T>(list);
+	}
+
+	private static class Range<T> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final Unit<T> unit;
+		final Object[] results;
+		final int from;
+		final int to;
+
+		Range(Unit<T> unit, Object[] results, int from, int to) {
+			this.unit = unit;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from == 1) {
+				results[from] = unit.map(from);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Range<T>(unit, results, from, middle), new Range<T>(unit, results, middle, to));
+		}
+	}
+}
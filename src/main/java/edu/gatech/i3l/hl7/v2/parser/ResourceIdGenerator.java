@@ -0,0 +1,15 @@
+package edu.gatech.i3l.hl7.v2.parser;
+
+/*
+ * Ids for the resources and bundle entries made from an HL7 message.
+ *
+ * scope is the same for all ids of one message (sender and MSH-10), or null if the
+ * message has no control id. position names the part of the message the resource is
+ * made from (eg. "RESPONSE[0]/PID"). Ids are UUID strings, so "urn:uuid:" + id can be
+ * used as a fullUrl.
+ */
+public interface ResourceIdGenerator {
+	public String getName();
+
+	public String newId(String scope, String position);
+}
@@ -0,0 +1,66 @@
+package edu.gatech.i3l.hl7.v2.parser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Known resource id generators.
+ *
+ *   random  A random (version 4) UUID from ThreadLocalRandom. Unlike UUID.randomUUID()
+ *           it does not go through the shared SecureRandom, so parser threads do not
+ *           wait on each other. The default.
+ *   name    A name based (version 3) UUID of scope and position. The same message
+ *           gives the same ids every time it is sent, so a resend maps to the same
+ *           resources. Messages without MSH-10 get random ids.
+ */
+public class ResourceIdGenerators {
+	public static final ResourceIdGenerator RANDOM = new ResourceIdGenerator() {
+		public String getName() {
+			return "random";
+		}
+
+		public String newId(String scope, String position) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long msb = (random.nextLong() & ~0xf000L) | 0x4000L;
+			long lsb = (random.nextLong() & ~(0xc000000000000000L)) | 0x8000000000000000L;
+			return new UUID(msb, lsb).toString();
+		}
+	};
+
+	public static final ResourceIdGenerator NAME_BASED = new ResourceIdGenerator() {
+		public String getName() {
+			return "name";
+		}
+
+		public String newId(String scope, String position) {
+			if (scope == null)
+				return RANDOM.newId(scope, position);
+			return UUID.nameUUIDFromBytes((scope + "|" + position).getBytes(StandardCharsets.UTF_8)).toString();
+		}
+	};
+
+	private static volatile ResourceIdGenerator current = RANDOM;
+
+	public static ResourceIdGenerator get() {
+		return current;
+	}
+
+	public static void set(ResourceIdGenerator generator) {
+		current = generator;
+	}
+
+	// For config.properties. Unknown names fall back to random.
+	public static ResourceIdGenerator forName(String name) {
+		if (name != null && NAME_BASED.getName().equalsIgnoreCase(name.trim()))
+			return NAME_BASED;
+		return RANDOM;
+	}
+
+	// Scope of a message for newId(). Null if there is no message control id.
+	public static String scope(String sender, String messageControlId) {
+		if (messageControlId == null || messageControlId.isEmpty())
+			return null;
+		return (sender == null ? "" : sender) + "|" + messageControlId;
+	}
+}
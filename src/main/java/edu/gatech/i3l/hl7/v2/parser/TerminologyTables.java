@@ -0,0 +1,225 @@
+package edu.gatech.i3l.hl7.v2.parser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Unit, coding system and result status mappings used by the FHIR and ECR parsers.
+ *
+ * The tables are read from a tab separated file (terminology.tsv on the classpath, or
+ * the file set with watch()) into immutable maps. get() returns the current tables. A
+ * parser takes them once per message, so a message is mapped with one set of tables
+ * even if the file is reloaded meanwhile.
+ *
+ * watch() checks the file for changes and swaps in the new tables. If the new file
+ * cannot be read, the old tables stay.
+ */
+public final class TerminologyTables {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(TerminologyTables.class.getName());
+
+	static final String DEFAULT_RESOURCE = "terminology.tsv";
+	public static final long DEFAULT_CHECK_MILLIS = 30000L;
+	// Normalized units kept per tables. Lab units are a short list.
+	static final int MAX_CACHED_UNITS = 1024;
+
+	private static volatile TerminologyTables current = loadDefault();
+	private static ScheduledExecutorService watcher = null;
+
+	private final String source;
+	private final String[] unitFrom;
+	private final String[] unitTo;
+	private final Map<String, String> codingSystems;
+	private final Map<String, String> facilitySystems;
+	private final Map<String, String> resultStatuses;
+	private final ConcurrentHashMap<String, String> units = new ConcurrentHashMap<String, String>();
+
+	private TerminologyTables(String source, List<String[]> unitRules, Map<String, String> codingSystems,
+			Map<String, String> facilitySystems, Map<String, String> resultStatuses) {
+		this.source = source;
+		this.unitFrom = new String[unitRules.size()];
+		this.unitTo = new String[unitRules.size()];
+		for (int i = 0; i < unitRules.size(); i++) {
+			unitFrom[i] = unitRules.get(i)[0];
+			unitTo[i] = unitRules.get(i)[1];
+		}
+		this.codingSystems = Collections.unmodifiableMap(codingSystems);
+		this.facilitySystems = Collections.unmodifiableMap(facilitySystems);
+		this.resultStatuses = Collections.unmodifiableMap(resultStatuses);
+	}
+
+	public static TerminologyTables get() {
+		return current;
+	}
+
+	public static void set(TerminologyTables tables) {
+		current = tables;
+		LOGGER.info("Terminology tables loaded from " + tables.source + ": " + tables);
+	}
+
+	public static TerminologyTables load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(new InputStreamReader(in, StandardCharsets.UTF_8), file.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	public static TerminologyTables load(Reader reader, String source) throws IOException {
+		List<String[]> unitRules = new ArrayList<String[]>();
+		Map<String, String> codingSystems = new HashMap<String, String>();
+		Map<String, String> facilitySystems = new HashMap<String, String>();
+		Map<String, String> resultStatuses = new HashMap<String, String>();
+
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length() - 1);
+			if (line.trim().isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] columns = line.split("\t", -1);
+			if (columns.length != 3 || columns[1].isEmpty())
+				throw new IOException(source + ":" + lineNumber + ": expected table, from and to separated by tabs");
+
+			String table = columns[0].trim();
+			if (table.equals("unit")) {
+				unitRules.add(new String[] { columns[1], columns[2] });
+			} else if (table.equals("coding-system")) {
+				codingSystems.put(columns[1], columns[2]);
+			} else if (table.equals("facility-system")) {
+				facilitySystems.put(columns[1].toUpperCase(Locale.ROOT), columns[2]);
+			} else if (table.equals("result-status")) {
+				resultStatuses.put(columns[1], columns[2]);
+			} else {
+				throw new IOException(source + ":" + lineNumber + ": unknown table " + table);
+			}
+		}
+		return new TerminologyTables(source, unitRules, codingSystems, facilitySystems, resultStatuses);
+	}
+
+	private static TerminologyTables loadDefault() {
+		InputStream in = TerminologyTables.class.getClassLoader().getResourceAsStream(DEFAULT_RESOURCE);
+		if (in == null) {
+			LOGGER.error(DEFAULT_RESOURCE + " not found on the classpath. Terminology tables are empty");
+			return empty();
+		}
+		try {
+			try {
+				return load(new InputStreamReader(in, StandardCharsets.UTF_8), DEFAULT_RESOURCE);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to read " + DEFAULT_RESOURCE + ". Terminology tables are empty", e);
+			return empty();
+		}
+	}
+
+	private static TerminologyTables empty() {
+		return new TerminologyTables("nothing", new ArrayList<String[]>(), new HashMap<String, String>(),
+				new HashMap<String, String>(), new HashMap<String, String>());
+	}
+
+	// Load the tables from file now, then again whenever it changes (checked every
+	// intervalMillis). Replaces an earlier watch.
+	public static synchronized void watch(final File file, long intervalMillis) {
+		if (watcher != null)
+			watcher.shutdownNow();
+
+		final long[] seen = { file.lastModified(), file.length() };
+		try {
+			set(load(file));
+		} catch (IOException e) {
+			LOGGER.error("Failed to read terminology file " + file + ". Keeping " + current.source, e);
+		}
+
+		watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "terminology-watch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = Math.max(1000L, intervalMillis);
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				long modified = file.lastModified();
+				long length = file.length();
+				if (modified == seen[0] && length == seen[1])
+					return;
+				seen[0] = modified;
+				seen[1] = length;
+				try {
+					set(load(file));
+				} catch (IOException e) {
+					LOGGER.error("Failed to reload terminology file " + file + ". Keeping the old tables", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	// OBX-6 unit with the unit rewrites applied. Null stays null.
+	public String normalizeUnit(String unit) {
+		if (unit == null || unitFrom.length == 0)
+			return unit;
+		String normalized = units.get(unit);
+		if (normalized != null)
+			return normalized;
+
+		normalized = unit;
+		for (int i = 0; i < unitFrom.length; i++) {
+			normalized = normalized.replace(unitFrom[i], unitTo[i]);
+		}
+		if (units.size() < MAX_CACHED_UNITS)
+			units.put(unit, normalized);
+		return normalized;
+	}
+
+	// System for a CE-3 coding system name. The name itself if it is not mapped.
+	public String getCodingSystem(String hl7System) {
+		String system = hl7System == null ? null : codingSystems.get(hl7System);
+		return system == null ? hl7System : system;
+	}
+
+	// System for codes from the sending facility that have no CE-3. Null if none.
+	public String getFacilityCodingSystem(String sendingFacility) {
+		if (sendingFacility == null)
+			return null;
+		return facilitySystems.get(sendingFacility.toUpperCase(Locale.ROOT));
+	}
+
+	// FHIR observation status code for OBX-11. Null if it is not mapped.
+	public String getResultStatus(String hl7Status) {
+		return hl7Status == null ? null : resultStatuses.get(hl7Status);
+	}
+
+	public String toString() {
+		return unitFrom.length + " unit rewrites, " + codingSystems.size() + " coding systems, "
+				+ facilitySystems.size() + " facility systems, " + resultStatuses.size() + " result statuses";
+	}
+}
@@ -4,43 +4,16 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import edu.gatech.i3l.hl7.v2.parser.BaseHL7v2Parser;
+import edu.gatech.i3l.hl7.v2.parser.TerminologyTables;
 
 public abstract class BaseHL7v2ECRParser extends BaseHL7v2Parser implements IHL7v2ECRParser {
 	
-	protected int put_CE_to_json (Object element, JSONObject json_obj) {
-		String system, code, display;
-		String altSystem, altCode, altDisplay;
-		int ret = 0;
+	// Each version parser reads its own CE type and passes the components on.
+	protected abstract int put_CE_to_json (Object element, JSONObject json_obj);
 
-		if (myVersion.equalsIgnoreCase("2.3")) {
-			system = ((ca.uhn.hl7v2.model.v23.datatype.CE)element).getNameOfCodingSystem().getValueOrEmpty();
-			code = ((ca.uhn.hl7v2.model.v23.datatype.CE)element).getIdentifier().getValueOrEmpty();
-			display = ((ca.uhn.hl7v2.model.v23.datatype.CE)element).getText().getValueOrEmpty();
-		} else
-		if (myVersion.equalsIgnoreCase("2.3.1")) {
-			system = ((ca.uhn.hl7v2.model.v231.datatype.CE)element).getNameOfCodingSystem().getValueOrEmpty();
-			code = ((ca.uhn.hl7v2.model.v231.datatype.CE)element).getIdentifier().getValueOrEmpty();
-			display = ((ca.uhn.hl7v2.model.v231.datatype.CE)element).getText().getValueOrEmpty();
-		} else {
-			system = ((ca.uhn.hl7v2.model.v251.datatype.CE)element).getNameOfCodingSystem().getValueOrEmpty();
-			code = ((ca.uhn.hl7v2.model.v251.datatype.CE)element).getIdentifier().getValueOrEmpty();
-			display = ((ca.uhn.hl7v2.model.v251.datatype.CE)element).getText().getValueOrEmpty();
-		}
-		
-		if (myVersion.equalsIgnoreCase("2.3")) {
-			altSystem = ((ca.uhn.hl7v2.model.v23.datatype.CE)element).getNameOfAlternateCodingSystem().getValueOrEmpty();
-			altCode = ((ca.uhn.hl7v2.model.v23.datatype.CE)element).getAlternateIdentifier().getValueOrEmpty();
-			altDisplay = ((ca.uhn.hl7v2.model.v23.datatype.CE)element).getAlternateText().getValueOrEmpty();
-		} else
-		if (myVersion.equalsIgnoreCase("2.3.1")) {
-			altSystem = ((ca.uhn.hl7v2.model.v231.datatype.CE)element).getNameOfAlternateCodingSystem().getValueOrEmpty();
-			altCode = ((ca.uhn.hl7v2.model.v231.datatype.CE)element).getAlternateIdentifier().getValueOrEmpty();
-			altDisplay = ((ca.uhn.hl7v2.model.v231.datatype.CE)element).getAlternateText().getValueOrEmpty();
-		} else {
-			altSystem = ((ca.uhn.hl7v2.model.v251.datatype.CE)element).getNameOfAlternateCodingSystem().getValueOrEmpty();
-			altCode = ((ca.uhn.hl7v2.model.v251.datatype.CE)element).getAlternateIdentifier().getValueOrEmpty();
-			altDisplay = ((ca.uhn.hl7v2.model.v251.datatype.CE)element).getAlternateText().getValueOrEmpty();
-		}
+	protected int put_CE_to_json (String system, String code, String display,
+			String altSystem, String altCode, String altDisplay, JSONObject json_obj) {
+		int ret = 0;
 
 		if (
 			(system.isEmpty() && code.isEmpty() && display.isEmpty() )
@@ -51,7 +24,7 @@ public abstract class BaseHL7v2ECRParser extends BaseHL7v2Parser implements IHL7
 			code = altCode;
 			display = altDisplay;
 		}
-		json_obj.put("System", system);
+		json_obj.put("System", TerminologyTables.get().getCodingSystem(system));
 		json_obj.put("Code", code);
 		json_obj.put("Display", display);	
 		return ret;
@@ -72,4 +45,7 @@ public abstract class BaseHL7v2ECRParser extends BaseHL7v2Parser implements IHL7
 	
 	public abstract JSONObject map_patient_visit(Object obj);
 	
+	// Group traversal for this parser's version.
+	public abstract OruTraversal getOruTraversal();
+	
 }
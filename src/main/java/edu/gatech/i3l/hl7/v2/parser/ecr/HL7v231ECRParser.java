@@ -36,6 +36,19 @@ public class HL7v231ECRParser extends BaseHL7v2ECRParser {
 		setMyVersion("2.3.1");
 	}
 
+	@Override
+	public OruTraversal getOruTraversal() {
+		return OruTraversal.V231;
+	}
+
+	@Override
+	protected int put_CE_to_json (Object element, JSONObject json_obj) {
+		CE ce = (CE) element;
+		return put_CE_to_json(ce.getNameOfCodingSystem().getValueOrEmpty(), ce.getIdentifier().getValueOrEmpty(),
+				ce.getText().getValueOrEmpty(), ce.getNameOfAlternateCodingSystem().getValueOrEmpty(),
+				ce.getAlternateIdentifier().getValueOrEmpty(), ce.getAlternateText().getValueOrEmpty(), json_obj);
+	}
+
 	private JSONObject constructPatientIDfromPID34 (CX cxObject, String type) {
 		JSONObject patient_json_id = new JSONObject();
 
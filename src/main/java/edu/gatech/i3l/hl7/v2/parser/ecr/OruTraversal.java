@@ -0,0 +1,96 @@
+package edu.gatech.i3l.hl7.v2.parser.ecr;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v231.group.ORU_R01_ORCOBRNTEOBXNTECTI;
+import ca.uhn.hl7v2.model.v231.group.ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI;
+import ca.uhn.hl7v2.model.v251.group.ORU_R01_ORDER_OBSERVATION;
+import ca.uhn.hl7v2.model.v251.group.ORU_R01_PATIENT_RESULT;
+
+/*
+ * Walks the patient result, order observation and observation groups of an ORU^R01.
+ *
+ * There is one per HL7 version, chosen once with the parser (getOruTraversal()), so
+ * the mapping loops do not check the version for each group. Groups are handed back
+ * as Objects, the way the parsers take them, and are looked up only once each.
+ */
+public abstract class OruTraversal {
+	public static final OruTraversal V231 = new V231Traversal();
+	public static final OruTraversal V251 = new V251Traversal();
+
+	public abstract int getPatientResultReps(Message msg);
+
+	public abstract Object getPatientResult(Message msg, int rep);
+
+	// The patient group, for map_patient.
+	public abstract Object getPatient(Object patientResult);
+
+	public abstract int getOrderObservationReps(Object patientResult);
+
+	// The order observation group, for map_order_observation.
+	public abstract Object getOrderObservation(Object patientResult, int rep);
+
+	public abstract int getObservationReps(Object orderObservation);
+
+	// The OBX segment, for map_lab_result.
+	public abstract Object getObservation(Object orderObservation, int rep);
+
+	private static final class V231Traversal extends OruTraversal {
+		public int getPatientResultReps(Message msg) {
+			return ((ca.uhn.hl7v2.model.v231.message.ORU_R01) msg).getPIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTIReps();
+		}
+
+		public Object getPatientResult(Message msg, int rep) {
+			return ((ca.uhn.hl7v2.model.v231.message.ORU_R01) msg).getPIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI(rep);
+		}
+
+		public Object getPatient(Object patientResult) {
+			return ((ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI) patientResult).getPIDPD1NK1NTEPV1PV2();
+		}
+
+		public int getOrderObservationReps(Object patientResult) {
+			return ((ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI) patientResult).getORCOBRNTEOBXNTECTIReps();
+		}
+
+		public Object getOrderObservation(Object patientResult, int rep) {
+			return ((ORU_R01_PIDPD1NK1NTEPV1PV2ORCOBRNTEOBXNTECTI) patientResult).getORCOBRNTEOBXNTECTI(rep);
+		}
+
+		public int getObservationReps(Object orderObservation) {
+			return ((ORU_R01_ORCOBRNTEOBXNTECTI) orderObservation).getOBXNTEReps();
+		}
+
+		public Object getObservation(Object orderObservation, int rep) {
+			return ((ORU_R01_ORCOBRNTEOBXNTECTI) orderObservation).getOBXNTE(rep).getOBX();
+		}
+	}
+
+	private static final class V251Traversal extends OruTraversal {
+		public int getPatientResultReps(Message msg) {
+			return ((ca.uhn.hl7v2.model.v251.message.ORU_R01) msg).getPATIENT_RESULTReps();
+		}
+
+		public Object getPatientResult(Message msg, int rep) {
+			return ((ca.uhn.hl7v2.model.v251.message.ORU_R01) msg).getPATIENT_RESULT(rep);
+		}
+
+		public Object getPatient(Object patientResult) {
+			return ((ORU_R01_PATIENT_RESULT) patientResult).getPATIENT();
+		}
+
+		public int getOrderObservationReps(Object patientResult) {
+			return ((ORU_R01_PATIENT_RESULT) patientResult).getORDER_OBSERVATIONReps();
+		}
+
+		public Object getOrderObservation(Object patientResult, int rep) {
+			return ((ORU_R01_PATIENT_RESULT) patientResult).getORDER_OBSERVATION(rep);
+		}
+
+		public int getObservationReps(Object orderObservation) {
+			return ((ORU_R01_ORDER_OBSERVATION) orderObservation).getOBSERVATIONReps();
+		}
+
+		public Object getObservation(Object orderObservation, int rep) {
+			return ((ORU_R01_ORDER_OBSERVATION) orderObservation).getOBSERVATION(rep).getOBX();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package edu.gatech.i3l.hl7.v2.parser.fhir;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingContext;
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingEngine;
+
+/*
+ * HL7 v2.3 ORU^R01 to FHIR with the mappings in ToxicologyMappingToFHIR.tsv instead of
+ * hand written code. The FHIR version is the one the engine was compiled for.
+ */
+public class HL7v23FhirMappingParser extends BaseHL7v2FHIRParser {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(HL7v23FhirMappingParser.class.getName());
+
+	private final MappingEngine engine;
+	String receivingFacilityName = null;
+
+	public HL7v23FhirMappingParser(MappingEngine engine) {
+		this.engine = engine;
+		setMyVersion("2.3");
+	}
+
+	public List<IBaseBundle> executeParser(Message msg) {
+		try {
+			MappingContext context = MappingContext.forMessage(msg);
+			receivingFacilityName = context.getReceivingFacilityName();
+			return engine.map(msg, context);
+		} catch (HL7Exception e) {
+			LOGGER.error("Failed to map message to FHIR " + engine.getVersion(), e);
+			return null;
+		}
+	}
+
+	public String getReceivingFacilityName() {
+		return this.receivingFacilityName;
+	}
+}
@@ -3,7 +3,6 @@ package edu.gatech.i3l.hl7.v2.parser.fhir;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.UUID;
 
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -24,6 +23,7 @@ import org.hl7.fhir.dstu3.model.Quantity;
 import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.SimpleQuantity;
 import org.hl7.fhir.dstu3.model.StringType;
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,16 +53,36 @@ import ca.uhn.hl7v2.model.v23.segment.NTE;
 import ca.uhn.hl7v2.model.v23.segment.OBR;
 import ca.uhn.hl7v2.model.v23.segment.OBX;
 
+import edu.gatech.i3l.hl7.v2.parser.ParallelMapping;
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerator;
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerators;
+import edu.gatech.i3l.hl7.v2.parser.TerminologyTables;
+
 public class HL7v23FhirStu3Parser extends BaseHL7v2FHIRParser {
 	MessageHeader messageHeader = null;
 	String sendingFacilityName = null;
 	String receivingFacilityName = null;
+	// Taken once per message. See TerminologyTables.
+	TerminologyTables terminology = TerminologyTables.get();
+	String facilityCodingSystem = null;
+	ResourceIdGenerator ids = ResourceIdGenerators.get();
+	String idScope = null;
 
 	// Logger setup
 	final static Logger LOGGER = LoggerFactory.getLogger(HL7v23FhirStu3Parser.class.getName());
 
 	private void initialize(Message msg) {
-		mapMessageHeader((ca.uhn.hl7v2.model.v23.message.ORU_R01) msg);
+		ca.uhn.hl7v2.model.v23.message.ORU_R01 oruR01Message = (ca.uhn.hl7v2.model.v23.message.ORU_R01) msg;
+		mapMessageHeader(oruR01Message);
+		terminology = TerminologyTables.get();
+		facilityCodingSystem = terminology.getFacilityCodingSystem(getSendingFacilityName());
+
+		// Resource ids are made from sending application and facility, and MSH-10.
+		MSH msh = oruR01Message.getMSH();
+		ids = ResourceIdGenerators.get();
+		idScope = ResourceIdGenerators.scope(
+				getValueOfHD(msh.getMsh3_SendingApplication()) + "^" + getValueOfHD(msh.getMsh4_SendingFacility()),
+				msh.getMsh10_MessageControlID().getValue());
 	}
 
 	public HL7v23FhirStu3Parser() {
@@ -88,64 +108,84 @@ public class HL7v23FhirStu3Parser extends BaseHL7v2FHIRParser {
 	public List<IBaseBundle> executeParser(Message msg) {
 		ca.uhn.hl7v2.model.v23.message.ORU_R01 oruR01Message = (ca.uhn.hl7v2.model.v23.message.ORU_R01) msg;
 		List<IBaseBundle> bundles = new ArrayList<IBaseBundle>();
-		Patient subject = null;
 
 		// First clear up the list.
 		initialize(msg);
 
+		// Each RESPONSE is mapped on its own (in parallel for large batches).
 		int numberOfResponses = oruR01Message.getRESPONSEReps();
+		final ORU_R01_RESPONSE[] responses = new ORU_R01_RESPONSE[numberOfResponses];
 		for (int i = 0; i < numberOfResponses; i++) {
-			Bundle bundle = new Bundle();
-			bundle.setType(Bundle.BundleType.MESSAGE);
-
-			BundleEntryComponent bundleEntryMessageHeader = new BundleEntryComponent();
-			bundleEntryMessageHeader.setResource(messageHeader);
-			bundle.addEntry(bundleEntryMessageHeader);
-
-			List<Patient> returnedPatients = mapPatients(oruR01Message.getRESPONSE(i));
-			// v2.3 says that there should be 1 patient. This library reads as many.
-			// We just use first one if the returnedPatients is not empty.
-			String patientReference = null;
-			if (returnedPatients.size() > 0) {
-				BundleEntryComponent bundleEntryPatient = new BundleEntryComponent();
-				subject = returnedPatients.get(0);
-				bundleEntryPatient.setResource(subject);
-				// TODO: revisit this if we found a case where we can put request in bundle.
-				// for now, FHIR spec does not indicate message to have request or response.
-//				BundleEntryRequestComponent bundleEntryRequest = new BundleEntryRequestComponent();
-//				bundleEntryRequest.setMethod(HTTPVerb.POST);
-//				bundleEntryRequest.setUrl("Patient");
-//				bundleEntryPatient.setRequest(bundleEntryRequest);
-				UUID uuid = UUID.randomUUID();
-				patientReference = "urn:uuid:" + uuid.toString();
-				bundleEntryPatient.setFullUrl(patientReference);
-				bundle.addEntry(bundleEntryPatient);
-			} else {
-				// We must have a patient.
-				return null;
+			responses[i] = oruR01Message.getRESPONSE(i);
+		}
+		List<Bundle> mapped = ParallelMapping.map(numberOfResponses, new ParallelMapping.Unit<Bundle>() {
+			public Bundle map(int i) {
+				return mapResponse(responses[i], i);
 			}
+		});
 
-			// Add Observation.
-			List<Observation> returnedObservations = mapObservations(oruR01Message.getRESPONSE(i), patientReference);
-			for (Observation observation : returnedObservations) {
-				BundleEntryComponent bundleEntryObservation = new BundleEntryComponent();
-				bundleEntryObservation.setResource(observation);
-//				BundleEntryRequestComponent bundleEntryRequest = new BundleEntryRequestComponent();
-//				bundleEntryRequest.setMethod(HTTPVerb.POST);
-//				bundleEntryRequest.setUrl("Observation");
-//				bundleEntryObservation.setRequest(bundleEntryRequest);
-				UUID uuid = UUID.randomUUID();
-				bundleEntryObservation.setFullUrl("urn:uuid:" + uuid.toString());
-				bundle.addEntry(bundleEntryObservation);
+		for (Bundle bundle : mapped) {
+			if (bundle == null) {
+				// We must have a patient.
+				return null;
 			}
-
 			bundles.add(bundle);
 		}
 
 		return bundles;
 	}
 
-	private List<Patient> mapPatients(ORU_R01_RESPONSE response) {
+	// Null if the RESPONSE has no patient.
+	private Bundle mapResponse(ORU_R01_RESPONSE response, int i) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.MESSAGE);
+
+		BundleEntryComponent bundleEntryMessageHeader = new BundleEntryComponent();
+		bundleEntryMessageHeader.setResource(messageHeader);
+		bundle.addEntry(bundleEntryMessageHeader);
+
+		List<Patient> returnedPatients = mapPatients(response, i);
+		// v2.3 says that there should be 1 patient. This library reads as many.
+		// We just use first one if the returnedPatients is not empty.
+		String patientReference = null;
+		if (returnedPatients.size() > 0) {
+			BundleEntryComponent bundleEntryPatient = new BundleEntryComponent();
+			Patient subject = returnedPatients.get(0);
+			bundleEntryPatient.setResource(subject);
+			// TODO: revisit this if we found a case where we can put request in bundle.
+			// for now, FHIR spec does not indicate message to have request or response.
+//			BundleEntryRequestComponent bundleEntryRequest = new BundleEntryRequestComponent();
+//			bundleEntryRequest.setMethod(HTTPVerb.POST);
+//			bundleEntryRequest.setUrl("Patient");
+//			bundleEntryPatient.setRequest(bundleEntryRequest);
+			patientReference = "urn:uuid:" + ids.newId(idScope, "RESPONSE[" + i + "]/PID");
+			bundleEntryPatient.setFullUrl(patientReference);
+			bundle.addEntry(bundleEntryPatient);
+		} else {
+			// We must have a patient.
+			return null;
+		}
+
+		// Add Observation.
+		List<Observation> returnedObservations = mapObservations(response, patientReference);
+		for (int n = 0; n < returnedObservations.size(); n++) {
+			Observation observation = returnedObservations.get(n);
+			BundleEntryComponent bundleEntryObservation = new BundleEntryComponent();
+			bundleEntryObservation.setResource(observation);
+//			BundleEntryRequestComponent bundleEntryRequest = new BundleEntryRequestComponent();
+//			bundleEntryRequest.setMethod(HTTPVerb.POST);
+//			bundleEntryRequest.setUrl("Observation");
+//			bundleEntryObservation.setRequest(bundleEntryRequest);
+			String observationReference = "urn:uuid:"
+					+ ids.newId(idScope, "RESPONSE[" + i + "]/Observation[" + n + "]");
+			bundleEntryObservation.setFullUrl(observationReference);
+			bundle.addEntry(bundleEntryObservation);
+		}
+
+		return bundle;
+	}
+
+	private List<Patient> mapPatients(ORU_R01_RESPONSE response, int responseIndex) {
 		List<Patient> retVal = new ArrayList<Patient>();
 
 		Patient patient = new Patient();
@@ -153,7 +193,7 @@ public class HL7v23FhirStu3Parser extends BaseHL7v2FHIRParser {
 			ORU_R01_PATIENT patientHL7 = response.getPATIENT();
 			ca.uhn.hl7v2.model.v23.segment.PID pid = patientHL7.getPID();
 
-			patient.setId(UUID.randomUUID().toString());
+			patient.setId(ids.newId(idScope, "RESPONSE[" + responseIndex + "]/PID/Patient.id"));
 
 			// PID-2 to patient ID.
 			// This is the accession number of NMS' client.
@@ -303,13 +343,13 @@ public class HL7v23FhirStu3Parser extends BaseHL7v2FHIRParser {
 					if (!unit.isEmpty()) {
 						ID id = unit.getCe1_Identifier();
 						if (id != null && !id.isEmpty()) {
-							unitString = id.getValue().replace("mcg", "ug").replace(" Creat", "{creat}");
-							unitCodeString = id.getValue().replace("mcg", "ug").replace(" Creat", "{creat}");
+							unitString = terminology.normalizeUnit(id.getValue());
+							unitCodeString = unitString;
 						}
 
 						ST system = unit.getCe3_NameOfCodingSystem();
 						if (system != null && !system.isEmpty()) {
-							unitSystemString = system.getValue();
+							unitSystemString = terminology.getCodingSystem(system.getValue());
 						}
 					}
 
@@ -378,23 +418,18 @@ public class HL7v23FhirStu3Parser extends BaseHL7v2FHIRParser {
 					ID obx11 = obx.getObx11_ObservResultStatus();
 					if (obx11 != null && !obx11.isEmpty()) {
 						String hl7Status = obx11.getValue();
-						if ("F".equals(hl7Status)) {
-							// Final Result.
-							observation.setStatus(ObservationStatus.FINAL);
-						} else if ("C".equals(hl7Status)) {
-							// Record coming over is a correction and thus replaces a final result.
-							observation.setStatus(ObservationStatus.AMENDED);
-						} else if ("X".equals(hl7Status)) {
-							// Record coming over is a correction and thus replaces a final result.
-							observation.setStatus(ObservationStatus.CANCELLED);
-						} else if ("P".equals(hl7Status)) {
-							// Record coming over is a correction and thus replaces a final result.
-							observation.setStatus(ObservationStatus.PRELIMINARY);
-						} else {
+						String status = terminology.getResultStatus(hl7Status);
+						if (status == null) {
 							LOGGER.error(
 									"OBX received with status = " + hl7Status + ". (Table:" + obx11.getTable() + ")");
 							continue;
 						}
+						try {
+							observation.setStatus(ObservationStatus.fromCode(status));
+						} catch (FHIRException e) {
+							LOGGER.error("OBX status " + hl7Status + " is mapped to unknown observation status " + status);
+							continue;
+						}
 					}
 
 					// effective[x] from obx14
@@ -483,12 +518,10 @@ public class HL7v23FhirStu3Parser extends BaseHL7v2FHIRParser {
 			}
 			ST system = codeElement.getCe3_NameOfCodingSystem();
 			if (system != null && !system.isEmpty()) {
-				coding.setSystem(system.getValue());
-			} else {
-				// Put facility name for the system if available.
-				// For now, we put NMS Labs if sending facility is NMS.
-				if (getSendingFacilityName().equalsIgnoreCase("NMS"))
-					coding.setSystem("NMS Labs");
+				coding.setSystem(terminology.getCodingSystem(system.getValue()));
+			} else if (facilityCodingSystem != null) {
+				// Put facility name for the system if available (facility-system table).
+				coding.setSystem(facilityCodingSystem);
 			}
 			if (!coding.isEmpty()) {
 				retVal.addCoding(coding);
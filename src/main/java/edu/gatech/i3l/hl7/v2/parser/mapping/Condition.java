@@ -0,0 +1,83 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.util.Map;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Group;
+
+/*
+ * Condition column of a mapping: PATH=VALUE, PATH!=VALUE, PATH~number or PATH!~number.
+ * Values are compared ignoring case. An empty VALUE stands for an empty field.
+ */
+final class Condition {
+	private final String text;
+	private final V2Path path;
+	private final boolean negated;
+	// Null for ~number.
+	private final String value;
+
+	private Condition(String text, V2Path path, boolean negated, String value) {
+		this.text = text;
+		this.path = path;
+		this.negated = negated;
+		this.value = value;
+	}
+
+	static Condition parse(String text) {
+		int operator = -1;
+		for (int i = 0; i < text.length() && operator < 0; i++) {
+			char c = text.charAt(i);
+			if (c == '!' || c == '=' || c == '~')
+				operator = i;
+		}
+		if (operator <= 0)
+			throw new IllegalArgumentException("Not a condition: " + text);
+
+		V2Path path = V2Path.parse(text.substring(0, operator).trim());
+		boolean negated = text.charAt(operator) == '!';
+		int at = negated ? operator + 1 : operator;
+		if (at >= text.length())
+			throw new IllegalArgumentException("Not a condition: " + text);
+
+		String value = text.substring(at + 1).trim();
+		if (text.charAt(at) == '~') {
+			if (!value.equals("number"))
+				throw new IllegalArgumentException("Only ~number is supported: " + text);
+			return new Condition(text, path, negated, null);
+		}
+		if (text.charAt(at) != '=')
+			throw new IllegalArgumentException("Not a condition: " + text);
+		return new Condition(text, path, negated, value);
+	}
+
+	V2Path getPath() {
+		return path;
+	}
+
+	boolean test(Group[] scopes, Map<String, Integer> cursor) throws HL7Exception {
+		String actual = V2Path.text(path.resolve(scopes, cursor));
+		boolean matches;
+		if (value == null)
+			matches = isNumber(actual);
+		else if (value.isEmpty())
+			matches = actual == null;
+		else
+			matches = value.equalsIgnoreCase(actual);
+		return matches != negated;
+	}
+
+	private static boolean isNumber(String text) {
+		if (text == null)
+			return false;
+		try {
+			Double.parseDouble(text);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public String toString() {
+		return text;
+	}
+}
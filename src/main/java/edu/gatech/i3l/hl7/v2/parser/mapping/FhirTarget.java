@@ -0,0 +1,178 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.RuntimePrimitiveDatatypeDefinition;
+
+/*
+ * A FHIR path like referenceRange[0].high.value, compiled against the runtime
+ * definitions of a FhirContext into the child accessors and mutators that get or make
+ * each element on the way. The definitions are looked up once here, not per message.
+ *
+ * [n] is the nth element, made (with any before it) if it is not there. Without an index
+ * the first element is used. [+] adds an element the first time it is used in a
+ * repetition, and reuses it for the other rows of the repetition (the appended map, keyed
+ * by the path up to [+]).
+ *
+ * The last element is a primitive, set from a String or its value type, or an element
+ * (eg. Bundle.entry.resource) set to the given IBase.
+ */
+final class FhirTarget {
+	static final int APPEND = -1;
+
+	private static class Step {
+		final String key;
+		final BaseRuntimeChildDefinition child;
+		final BaseRuntimeElementDefinition<?> definition;
+		final int index;
+		final boolean single;
+
+		Step(String key, BaseRuntimeChildDefinition child, BaseRuntimeElementDefinition<?> definition, int index) {
+			this.key = key;
+			this.child = child;
+			this.definition = definition;
+			this.index = index;
+			this.single = child.getMax() == 1;
+		}
+
+		IBase newElement() {
+			return definition.newInstance(child.getInstanceConstructorArguments());
+		}
+
+		void add(IBase parent, IBase element) {
+			if (single)
+				child.getMutator().setValue(parent, element);
+			else
+				child.getMutator().addValue(parent, element);
+		}
+
+		// The element at this step, made if it is not there.
+		IBase get(IBase parent, Map<String, IBase> appended) {
+			if (index == APPEND) {
+				IBase element = appended.get(key);
+				if (element == null) {
+					element = newElement();
+					add(parent, element);
+					appended.put(key, element);
+				}
+				return element;
+			}
+
+			List<IBase> values = child.getAccessor().getValues(parent);
+			if (index < values.size())
+				return values.get(index);
+			IBase element = null;
+			for (int i = values.size(); i <= index; i++) {
+				element = newElement();
+				add(parent, element);
+			}
+			return element;
+		}
+	}
+
+	private final String path;
+	private final Step[] steps;
+	private final boolean primitive;
+
+	private FhirTarget(String path, Step[] steps, boolean primitive) {
+		this.path = path;
+		this.steps = steps;
+		this.primitive = primitive;
+	}
+
+	// Throws IllegalArgumentException if the path is not in the definition.
+	static FhirTarget compile(BaseRuntimeElementCompositeDefinition<?> root, String path) {
+		String[] names = path.split("\\.", -1);
+		Step[] steps = new Step[names.length];
+		BaseRuntimeElementCompositeDefinition<?> parent = root;
+		StringBuilder key = new StringBuilder();
+		boolean primitive = false;
+
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i];
+			int index = 0;
+			int bracket = name.indexOf('[');
+			if (bracket >= 0) {
+				if (!name.endsWith("]"))
+					throw new IllegalArgumentException("Bad index in " + path);
+				String position = name.substring(bracket + 1, name.length() - 1);
+				name = name.substring(0, bracket);
+				if (position.equals("+")) {
+					index = APPEND;
+				} else {
+					try {
+						index = Integer.parseInt(position);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Bad index in " + path);
+					}
+					if (index < 0)
+						throw new IllegalArgumentException("Bad index in " + path);
+				}
+			}
+
+			if (parent == null)
+				throw new IllegalArgumentException(names[i - 1] + " has no elements in " + path);
+			BaseRuntimeChildDefinition child = parent.getChildByName(name);
+			if (child == null)
+				throw new IllegalArgumentException(root.getName() + " has no " + name + " in " + path);
+			BaseRuntimeElementDefinition<?> definition = child.getChildByName(name);
+			if (index != 0 && child.getMax() == 1)
+				throw new IllegalArgumentException(name + " does not repeat in " + path);
+
+			key.append(i == 0 ? "" : ".").append(names[i]);
+			steps[i] = new Step(key.toString(), child, definition, index);
+
+			boolean last = i == names.length - 1;
+			if (last) {
+				primitive = definition instanceof RuntimePrimitiveDatatypeDefinition;
+				if (primitive && index == APPEND)
+					throw new IllegalArgumentException("[+] on a primitive in " + path);
+			} else if (definition instanceof BaseRuntimeElementCompositeDefinition) {
+				parent = (BaseRuntimeElementCompositeDefinition<?>) definition;
+			} else {
+				parent = null;
+			}
+		}
+		return new FhirTarget(path, steps, primitive);
+	}
+
+	boolean isPrimitive() {
+		return primitive;
+	}
+
+	// Throws an unchecked exception if the value does not fit, eg. an unknown code.
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void set(IBase root, Object value, String joinSeparator, Map<String, IBase> appended) {
+		IBase parent = root;
+		int last = steps.length - 1;
+		for (int i = 0; i < last; i++) {
+			parent = steps[i].get(parent, appended);
+		}
+
+		Step step = steps[last];
+		if (!primitive) {
+			step.add(parent, (IBase) value);
+			return;
+		}
+
+		IPrimitiveType element = (IPrimitiveType) step.get(parent, appended);
+		if (joinSeparator != null && element.getValueAsString() != null && !element.getValueAsString().isEmpty()) {
+			element.setValueAsString(element.getValueAsString() + joinSeparator + value);
+		} else if (value instanceof String) {
+			element.setValueAsString((String) value);
+		} else {
+			element.setValue(value);
+		}
+	}
+
+	public String toString() {
+		return path;
+	}
+}
@@ -0,0 +1,80 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Group;
+import ca.uhn.hl7v2.model.Message;
+
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerator;
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerators;
+import edu.gatech.i3l.hl7.v2.parser.TerminologyTables;
+
+/*
+ * What the mappings of one message need besides the message: terminology tables and id
+ * generator (taken once per message), facility names from MSH, and the variables
+ * (@patient) set while mapping. Not shared between threads.
+ */
+public class MappingContext {
+	private final TerminologyTables terminology;
+	private final ResourceIdGenerator ids;
+	private final String idScope;
+	private final String sendingFacilityName;
+	private final String receivingFacilityName;
+	private final String facilityCodingSystem;
+	private final Map<String, String> variables = new HashMap<String, String>();
+
+	public MappingContext(TerminologyTables terminology, ResourceIdGenerator ids, String idScope,
+			String sendingFacilityName, String receivingFacilityName) {
+		this.terminology = terminology;
+		this.ids = ids;
+		this.idScope = idScope;
+		this.sendingFacilityName = sendingFacilityName;
+		this.receivingFacilityName = receivingFacilityName;
+		this.facilityCodingSystem = terminology.getFacilityCodingSystem(sendingFacilityName);
+	}
+
+	// Sending facility is MSH-4.1, receiving facility the HD value of MSH-6. Resource ids
+	// are made from sending application and facility, and MSH-10.
+	public static MappingContext forMessage(Message msg) throws HL7Exception {
+		Group[] scopes = { msg };
+		Map<String, Integer> first = new HashMap<String, Integer>();
+		String sender = ValueTransforms.valueOfHD(V2Path.parse("MSH-3").resolve(scopes, first)) + "^"
+				+ ValueTransforms.valueOfHD(V2Path.parse("MSH-4").resolve(scopes, first));
+		String idScope = ResourceIdGenerators.scope(sender,
+				V2Path.text(V2Path.parse("MSH-10").resolve(scopes, first)));
+		return new MappingContext(TerminologyTables.get(), ResourceIdGenerators.get(), idScope,
+				V2Path.text(V2Path.parse("MSH-4-1").resolve(scopes, first)),
+				ValueTransforms.valueOfHD(V2Path.parse("MSH-6").resolve(scopes, first)));
+	}
+
+	public TerminologyTables getTerminology() {
+		return terminology;
+	}
+
+	// For codes without CE-3. Null if the sending facility has none.
+	public String getFacilityCodingSystem() {
+		return facilityCodingSystem;
+	}
+
+	public String getSendingFacilityName() {
+		return sendingFacilityName;
+	}
+
+	public String getReceivingFacilityName() {
+		return receivingFacilityName;
+	}
+
+	public String newId(String position) {
+		return ids.newId(idScope, position);
+	}
+
+	public String getVariable(String name) {
+		return variables.get(name);
+	}
+
+	public void setVariable(String name, String value) {
+		variables.put(name, value);
+	}
+}
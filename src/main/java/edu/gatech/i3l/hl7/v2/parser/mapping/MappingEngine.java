@@ -0,0 +1,357 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Group;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Structure;
+import ca.uhn.hl7v2.model.Type;
+
+/*
+ * Maps an ORU^R01 to FHIR message bundles with the rows of a MappingSpec, for the FHIR
+ * version of a FhirContext.
+ *
+ * The rows are compiled once per spec and context: segment paths and conditions are
+ * parsed, transforms looked up, and FHIR paths turned into child accessor chains
+ * (FhirTarget). Mapping a message then only walks those.
+ *
+ * Each RESPONSE gives one Bundle (type message) with a MessageHeader, the Patient and one
+ * Observation per OBSERVATION group, all with urn:uuid fullUrls (no fullUrl for the
+ * MessageHeader) that are also added to MessageHeader.focus. No Patient (dropped by its
+ * mappings) means no bundles, as in the hand written parsers.
+ *
+ * The engine is immutable and is shared by all parser threads.
+ */
+public class MappingEngine {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(MappingEngine.class.getName());
+
+	// ORU^R01 group names.
+	static final String RESPONSE = "RESPONSE";
+	static final String PATIENT = "PATIENT";
+	static final String ORDER_OBSERVATION = "ORDER_OBSERVATION";
+	static final String OBSERVATION = "OBSERVATION";
+
+	private static volatile MappingSpec spec = MappingSpec.loadDefault();
+	private static final ConcurrentHashMap<FhirContext, MappingEngine> engines = new ConcurrentHashMap<FhirContext, MappingEngine>();
+
+	private static class Row {
+		final String location;
+		final V2Path path;
+		final String constant;
+		final String variable;
+		final Condition condition;
+		final FhirTarget target;
+		final ValueTransform transform;
+		final boolean drop;
+
+		Row(MappingSpec.Row row, RuntimeResourceDefinition resource) {
+			this.location = row.location;
+			String source = row.source;
+			if (source.startsWith("=\"") && source.endsWith("\"") && source.length() > 2) {
+				this.path = null;
+				this.constant = source.substring(2, source.length() - 1);
+				this.variable = null;
+			} else if (source.startsWith("@")) {
+				this.path = null;
+				this.constant = null;
+				this.variable = source.substring(1);
+			} else {
+				this.path = V2Path.parse(source);
+				this.constant = null;
+				this.variable = null;
+			}
+			this.condition = row.condition.isEmpty() ? null : Condition.parse(row.condition);
+			this.target = FhirTarget.compile(resource, row.target);
+			if (!target.isPrimitive())
+				throw new IllegalArgumentException(row.target + " is not a primitive element");
+			this.transform = ValueTransforms.forName(row.transform);
+			if (row.onFail.isEmpty() || row.onFail.equals("skip"))
+				this.drop = false;
+			else if (row.onFail.equals("drop"))
+				this.drop = true;
+			else
+				throw new IllegalArgumentException("on-fail is skip or drop, not " + row.onFail);
+		}
+
+		// The [*] part of the source, or else of the condition.
+		String getRepeatingPart() {
+			String part = path == null ? null : path.getRepeatingPart();
+			if (part == null && condition != null)
+				part = condition.getPath().getRepeatingPart();
+			return part;
+		}
+
+		// False if the resource is to be dropped.
+		boolean apply(IBase resource, Group[] scopes, Map<String, Integer> cursor, Map<String, IBase> appended,
+				MappingContext context) throws HL7Exception {
+			if (condition != null && !condition.test(scopes, cursor))
+				return true;
+
+			Type source = null;
+			String text;
+			if (path != null) {
+				source = path.resolve(scopes, cursor);
+				text = V2Path.text(source);
+			} else if (variable != null) {
+				text = context.getVariable(variable);
+			} else {
+				text = constant;
+			}
+			if (text == null && !transform.acceptsEmpty())
+				return true;
+
+			Object value = transform.apply(source, text, context);
+			if (value != null) {
+				try {
+					target.set(resource, value, transform.getJoinSeparator(), appended);
+					return true;
+				} catch (RuntimeException e) {
+					LOGGER.error(location + ": " + value + " does not fit " + target + ": " + e.getMessage());
+				}
+			} else if (text != null) {
+				LOGGER.error(location + ": " + text + " is not mapped by " + transform);
+			}
+			return !drop;
+		}
+	}
+
+	// Consecutive rows applied together, once per repetition of their [*] part.
+	private static class Block {
+		final V2Path repeating;
+		final Row[] rows;
+
+		Block(V2Path repeating, List<Row> rows) {
+			this.repeating = repeating;
+			this.rows = rows.toArray(new Row[rows.size()]);
+		}
+
+		boolean apply(IBase resource, Group[] scopes, MappingContext context) throws HL7Exception {
+			Map<String, Integer> cursor = new HashMap<String, Integer>();
+			Map<String, IBase> appended = new HashMap<String, IBase>();
+			if (repeating == null)
+				return applyRows(resource, scopes, cursor, appended, context);
+
+			int segments = repeating.isSegmentRepeating() ? repeating.countSegments(scopes) : 1;
+			for (int s = 0; s < segments; s++) {
+				if (repeating.isSegmentRepeating())
+					cursor.put(repeating.getSegmentKey(), s);
+				int fields = repeating.isFieldRepeating() ? repeating.countFields(scopes, cursor) : 1;
+				for (int f = 0; f < fields; f++) {
+					if (repeating.isFieldRepeating())
+						cursor.put(repeating.getFieldKey(), f);
+					appended.clear();
+					if (!applyRows(resource, scopes, cursor, appended, context))
+						return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean applyRows(IBase resource, Group[] scopes, Map<String, Integer> cursor,
+				Map<String, IBase> appended, MappingContext context) throws HL7Exception {
+			for (Row row : rows) {
+				if (!row.apply(resource, scopes, cursor, appended, context))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	private static class ResourceMapping {
+		final RuntimeResourceDefinition definition;
+		final Block[] blocks;
+
+		ResourceMapping(RuntimeResourceDefinition definition, List<MappingSpec.Row> rows) {
+			this.definition = definition;
+			List<Block> blocks = new ArrayList<Block>();
+			List<Row> block = new ArrayList<Row>();
+			String part = null;
+			for (MappingSpec.Row specRow : rows) {
+				Row row;
+				try {
+					row = new Row(specRow, definition);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(specRow.location + ": " + e.getMessage(), e);
+				}
+				String rowPart = row.getRepeatingPart();
+				if (!block.isEmpty() && !same(part, rowPart)) {
+					blocks.add(new Block(repeating(block), block));
+					block = new ArrayList<Row>();
+				}
+				block.add(row);
+				part = rowPart;
+			}
+			if (!block.isEmpty())
+				blocks.add(new Block(repeating(block), block));
+			this.blocks = blocks.toArray(new Block[blocks.size()]);
+		}
+
+		private static boolean same(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+
+		private static V2Path repeating(List<Row> block) {
+			String part = block.get(0).getRepeatingPart();
+			return part == null ? null : V2Path.parse(part);
+		}
+
+		// Null if the resource is dropped.
+		IBaseResource map(Group[] scopes, MappingContext context) {
+			IBaseResource resource = (IBaseResource) definition.newInstance();
+			for (Block block : blocks) {
+				try {
+					if (!block.apply(resource, scopes, context))
+						return null;
+				} catch (HL7Exception e) {
+					LOGGER.error("Failed to read " + definition.getName() + " fields from the message", e);
+				}
+			}
+			return resource;
+		}
+	}
+
+	private final MappingSpec source;
+	private final FhirVersionEnum version;
+	private final RuntimeResourceDefinition bundle;
+	private final FhirTarget bundleType;
+	private final FhirTarget entryFullUrl;
+	private final FhirTarget entryResource;
+	private final FhirTarget headerFocus;
+	private final ResourceMapping messageHeader;
+	private final ResourceMapping patient;
+	private final ResourceMapping observation;
+
+	// Throws IllegalArgumentException (with the file and line) for a row that does not
+	// compile.
+	public MappingEngine(FhirContext context, MappingSpec spec) {
+		this.source = spec;
+		this.version = context.getVersion().getVersion();
+		this.bundle = context.getResourceDefinition("Bundle");
+		this.bundleType = FhirTarget.compile(bundle, "type");
+		this.entryFullUrl = FhirTarget.compile(bundle, "entry[+].fullUrl");
+		this.entryResource = FhirTarget.compile(bundle, "entry[+].resource");
+
+		RuntimeResourceDefinition header = context.getResourceDefinition("MessageHeader");
+		this.headerFocus = FhirTarget.compile(header, "focus[+].reference");
+		this.messageHeader = new ResourceMapping(header, rows(spec, "MessageHeader"));
+		this.patient = new ResourceMapping(context.getResourceDefinition("Patient"), rows(spec, "Patient"));
+		this.observation = new ResourceMapping(context.getResourceDefinition("Observation"),
+				rows(spec, "Observation"));
+
+		for (MappingSpec.Row row : spec.getRows()) {
+			if (!row.resource.equals("MessageHeader") && !row.resource.equals("Patient")
+					&& !row.resource.equals("Observation"))
+				throw new IllegalArgumentException(row.location + ": unknown resource " + row.resource);
+		}
+		LOGGER.info("FHIR " + version + " mappings compiled: " + spec);
+	}
+
+	// The engine for the context, compiled from the current spec the first time.
+	public static MappingEngine get(FhirContext context) {
+		MappingEngine engine = engines.get(context);
+		if (engine == null || engine.source != spec) {
+			engine = new MappingEngine(context, spec);
+			engines.put(context, engine);
+		}
+		return engine;
+	}
+
+	// Compiles the new spec for the contexts already in use first, so a spec with errors
+	// throws IllegalArgumentException and the old one stays.
+	public static synchronized void setSpec(MappingSpec newSpec) {
+		Map<FhirContext, MappingEngine> compiled = new HashMap<FhirContext, MappingEngine>();
+		for (FhirContext context : engines.keySet()) {
+			compiled.put(context, new MappingEngine(context, newSpec));
+		}
+		spec = newSpec;
+		engines.putAll(compiled);
+	}
+
+	private List<MappingSpec.Row> rows(MappingSpec spec, String resource) {
+		String versionName = version == FhirVersionEnum.DSTU3 ? "STU3" : version.name();
+		List<MappingSpec.Row> rows = new ArrayList<MappingSpec.Row>();
+		for (MappingSpec.Row row : spec.getRows()) {
+			if (row.resource.equals(resource) && (row.version.isEmpty() || row.version.equalsIgnoreCase(versionName)))
+				rows.add(row);
+		}
+		return rows;
+	}
+
+	public FhirVersionEnum getVersion() {
+		return version;
+	}
+
+	// One bundle per RESPONSE. Null if a RESPONSE has no Patient.
+	public List<IBaseBundle> map(Message msg, MappingContext context) throws HL7Exception {
+		List<IBaseBundle> bundles = new ArrayList<IBaseBundle>();
+		Structure[] responses = msg.getAll(RESPONSE);
+		for (int i = 0; i < responses.length; i++) {
+			Group response = (Group) responses[i];
+			IBaseBundle message = (IBaseBundle) bundle.newInstance();
+			bundleType.set(message, "message", null, new HashMap<String, IBase>());
+
+			IBaseResource header = messageHeader.map(new Group[] { msg }, context);
+			addEntry(message, null, header);
+
+			Group patientGroup = (Group) response.get(PATIENT);
+			IBaseResource subject = patient.map(new Group[] { patientGroup, response, msg }, context);
+			if (subject == null) {
+				// We must have a patient.
+				return null;
+			}
+			subject.setId(context.newId("RESPONSE[" + i + "]/PID/Patient.id"));
+			String patientReference = "urn:uuid:" + context.newId("RESPONSE[" + i + "]/PID");
+			addEntry(message, patientReference, subject);
+			addFocus(header, patientReference);
+			context.setVariable("patient", patientReference);
+
+			int n = 0;
+			for (Structure orderObservation : response.getAll(ORDER_OBSERVATION)) {
+				for (Structure observationGroup : ((Group) orderObservation).getAll(OBSERVATION)) {
+					IBaseResource mapped = observation.map(new Group[] { (Group) observationGroup,
+							(Group) orderObservation, patientGroup, response, msg }, context);
+					if (mapped == null)
+						continue;
+					String observationReference = "urn:uuid:"
+							+ context.newId("RESPONSE[" + i + "]/Observation[" + n + "]");
+					addEntry(message, observationReference, mapped);
+					addFocus(header, observationReference);
+					n++;
+				}
+			}
+
+			bundles.add(message);
+		}
+		return bundles;
+	}
+
+	private void addEntry(IBaseBundle message, String fullUrl, IBaseResource resource) {
+		Map<String, IBase> entry = new HashMap<String, IBase>();
+		if (fullUrl != null)
+			entryFullUrl.set(message, fullUrl, null, entry);
+		entryResource.set(message, resource, null, entry);
+	}
+
+	private void addFocus(IBaseResource header, String reference) {
+		headerFocus.set(header, reference, null, new HashMap<String, IBase>());
+	}
+
+	public String toString() {
+		return "FHIR " + version + " mapping engine, " + source;
+	}
+}
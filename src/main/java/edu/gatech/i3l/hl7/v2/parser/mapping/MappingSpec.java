@@ -0,0 +1,132 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * The HL7 v2 to FHIR field mappings, as rows read from a tab separated file. See
+ * ToxicologyMappingToFHIR.tsv on the classpath for the columns. The rows are only read
+ * here. MappingEngine checks and compiles them.
+ */
+public final class MappingSpec {
+	// Logger setup
+	final static Logger LOGGER = LoggerFactory.getLogger(MappingSpec.class.getName());
+
+	static final String DEFAULT_RESOURCE = "ToxicologyMappingToFHIR.tsv";
+	static final int COLUMNS = 7;
+
+	public static class Row {
+		final String resource;
+		final String version;
+		final String source;
+		final String condition;
+		final String target;
+		final String transform;
+		final String onFail;
+		// file:line, for errors.
+		final String location;
+
+		Row(String[] columns, String location) {
+			this.resource = columns[0];
+			this.version = columns[1];
+			this.source = columns[2];
+			this.condition = columns[3];
+			this.target = columns[4];
+			this.transform = columns[5];
+			this.onFail = columns[6];
+			this.location = location;
+		}
+
+		public String toString() {
+			return location + ": " + resource + " " + source + " -> " + target;
+		}
+	}
+
+	private final String source;
+	private final List<Row> rows;
+
+	private MappingSpec(String source, List<Row> rows) {
+		this.source = source;
+		this.rows = Collections.unmodifiableList(rows);
+	}
+
+	public static MappingSpec load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return load(new InputStreamReader(in, StandardCharsets.UTF_8), file.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	public static MappingSpec load(Reader reader, String source) throws IOException {
+		List<Row> rows = new ArrayList<Row>();
+		BufferedReader lines = new BufferedReader(reader);
+		String line;
+		int lineNumber = 0;
+		while ((line = lines.readLine()) != null) {
+			lineNumber++;
+			if (line.endsWith("\r"))
+				line = line.substring(0, line.length() - 1);
+			if (line.trim().isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] read = line.split("\t", -1);
+			if (read.length < 5 || read.length > COLUMNS)
+				throw new IOException(source + ":" + lineNumber
+						+ ": expected resource, version, source, condition, target, transform and on-fail separated by tabs");
+
+			String[] columns = new String[COLUMNS];
+			for (int i = 0; i < COLUMNS; i++) {
+				columns[i] = i < read.length ? read[i].trim() : "";
+			}
+			if (columns[0].isEmpty() || columns[2].isEmpty() || columns[4].isEmpty())
+				throw new IOException(source + ":" + lineNumber + ": resource, source and target are required");
+			rows.add(new Row(columns, source + ":" + lineNumber));
+		}
+		return new MappingSpec(source, rows);
+	}
+
+	// The spec on the classpath. Empty (nothing is mapped) if it cannot be read.
+	public static MappingSpec loadDefault() {
+		InputStream in = MappingSpec.class.getClassLoader().getResourceAsStream(DEFAULT_RESOURCE);
+		if (in == null) {
+			LOGGER.error(DEFAULT_RESOURCE + " not found on the classpath. No FHIR mappings");
+			return new MappingSpec("nothing", new ArrayList<Row>());
+		}
+		try {
+			try {
+				return load(new InputStreamReader(in, StandardCharsets.UTF_8), DEFAULT_RESOURCE);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.error("Failed to read " + DEFAULT_RESOURCE + ". No FHIR mappings", e);
+			return new MappingSpec("nothing", new ArrayList<Row>());
+		}
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public List<Row> getRows() {
+		return rows;
+	}
+
+	public String toString() {
+		return rows.size() + " mappings from " + source;
+	}
+}
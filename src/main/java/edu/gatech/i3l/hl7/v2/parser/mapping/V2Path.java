@@ -0,0 +1,195 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Composite;
+import ca.uhn.hl7v2.model.Group;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Structure;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.model.Varies;
+
+/*
+ * A parsed segment path, SEG[*]-field[*]-component-subcomponent, eg. OBX-6-1 or
+ * NTE[*]-3[*].
+ *
+ * The segment is looked up in the given groups, first group that has it. Which
+ * repetition of a segment or field is used comes from the cursor (keys getSegmentKey()
+ * and getFieldKey()), first repetition if the cursor has none. [*] only tells
+ * MappingEngine to go through the repetitions.
+ */
+final class V2Path {
+	// Segment names of each group class, so lookups do not copy getNames() every time.
+	private static final ConcurrentHashMap<Class<?>, Set<String>> NAMES = new ConcurrentHashMap<Class<?>, Set<String>>();
+
+	private final String text;
+	private final String segment;
+	private final boolean segmentRepeats;
+	private final int field;
+	private final boolean fieldRepeats;
+	private final int component;
+	private final int subcomponent;
+	private final String fieldKey;
+
+	private V2Path(String text, String segment, boolean segmentRepeats, int field, boolean fieldRepeats,
+			int component, int subcomponent) {
+		this.text = text;
+		this.segment = segment;
+		this.segmentRepeats = segmentRepeats;
+		this.field = field;
+		this.fieldRepeats = fieldRepeats;
+		this.component = component;
+		this.subcomponent = subcomponent;
+		this.fieldKey = segment + "-" + field;
+	}
+
+	static V2Path parse(String text) {
+		String[] parts = text.split("-", -1);
+		if (parts.length < 2 || parts.length > 4)
+			throw new IllegalArgumentException("Not a segment path: " + text);
+
+		String segment = parts[0];
+		boolean segmentRepeats = segment.endsWith("[*]");
+		if (segmentRepeats)
+			segment = segment.substring(0, segment.length() - 3);
+		if (segment.length() != 3)
+			throw new IllegalArgumentException("Not a segment name in " + text);
+
+		String field = parts[1];
+		boolean fieldRepeats = field.endsWith("[*]");
+		if (fieldRepeats)
+			field = field.substring(0, field.length() - 3);
+
+		return new V2Path(text, segment, segmentRepeats, number(field, text), fieldRepeats,
+				parts.length > 2 ? number(parts[2], text) : 0, parts.length > 3 ? number(parts[3], text) : 0);
+	}
+
+	private static int number(String part, String text) {
+		try {
+			int number = Integer.parseInt(part);
+			if (number > 0)
+				return number;
+		} catch (NumberFormatException e) {
+			// Below.
+		}
+		throw new IllegalArgumentException("Not a position: " + part + " in " + text);
+	}
+
+	String getSegmentKey() {
+		return segment;
+	}
+
+	String getFieldKey() {
+		return fieldKey;
+	}
+
+	boolean isSegmentRepeating() {
+		return segmentRepeats;
+	}
+
+	boolean isFieldRepeating() {
+		return fieldRepeats;
+	}
+
+	// The [*] part, eg. NTE[*]-3[*]. Null if nothing repeats.
+	String getRepeatingPart() {
+		if (fieldRepeats)
+			return segment + (segmentRepeats ? "[*]" : "") + "-" + field + "[*]";
+		if (segmentRepeats)
+			return segment + "[*]";
+		return null;
+	}
+
+	Type resolve(Group[] scopes, Map<String, Integer> cursor) throws HL7Exception {
+		Segment found = segment(scopes, cursor);
+		if (found == null)
+			return null;
+		Type[] repetitions = found.getField(field);
+		int repetition = index(cursor, fieldKey);
+		if (repetition >= repetitions.length)
+			return null;
+
+		Type type = repetitions[repetition];
+		if (component > 0)
+			type = component(type, component);
+		if (type != null && subcomponent > 0)
+			type = component(type, subcomponent);
+		return type;
+	}
+
+	// Number of repetitions of the segment.
+	int countSegments(Group[] scopes) throws HL7Exception {
+		Group group = group(scopes);
+		return group == null ? 0 : group.getAll(segment).length;
+	}
+
+	// Number of repetitions of the field, in the segment repetition given by the cursor.
+	int countFields(Group[] scopes, Map<String, Integer> cursor) throws HL7Exception {
+		Segment found = segment(scopes, cursor);
+		return found == null ? 0 : found.getField(field).length;
+	}
+
+	private Segment segment(Group[] scopes, Map<String, Integer> cursor) throws HL7Exception {
+		Group group = group(scopes);
+		if (group == null)
+			return null;
+		Structure[] repetitions = group.getAll(segment);
+		int repetition = index(cursor, segment);
+		return repetition < repetitions.length ? (Segment) repetitions[repetition] : null;
+	}
+
+	private Group group(Group[] scopes) {
+		for (Group scope : scopes) {
+			if (names(scope).contains(segment))
+				return scope;
+		}
+		return null;
+	}
+
+	private static Set<String> names(Group group) {
+		Set<String> names = NAMES.get(group.getClass());
+		if (names == null) {
+			names = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(group.getNames())));
+			NAMES.put(group.getClass(), names);
+		}
+		return names;
+	}
+
+	private static int index(Map<String, Integer> cursor, String key) {
+		Integer index = cursor.get(key);
+		return index == null ? 0 : index;
+	}
+
+	// Component n of the type. A primitive is its own first component.
+	private static Type component(Type type, int n) {
+		if (type instanceof Varies)
+			type = ((Varies) type).getData();
+		if (type instanceof Composite) {
+			Type[] components = ((Composite) type).getComponents();
+			return n <= components.length ? components[n - 1] : null;
+		}
+		return n == 1 ? type : null;
+	}
+
+	// Value of the type, or of its first component. Null if empty.
+	static String text(Type type) {
+		while (type instanceof Varies || type instanceof Composite) {
+			type = component(type, 1);
+		}
+		if (!(type instanceof Primitive))
+			return null;
+		String value = ((Primitive) type).getValue();
+		return value == null || value.isEmpty() ? null : value;
+	}
+
+	public String toString() {
+		return text;
+	}
+}
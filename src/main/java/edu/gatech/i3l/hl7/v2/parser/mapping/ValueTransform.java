@@ -0,0 +1,38 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import ca.uhn.hl7v2.model.Type;
+
+/*
+ * Turns the source of a mapping into the value set on the FHIR element: a String (set
+ * with setValueAsString) or the value type of the element, eg. Date or BigDecimal. See
+ * ValueTransforms.
+ */
+public abstract class ValueTransform {
+	private final String name;
+
+	protected ValueTransform(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// source is the v2 field (null for constants), text its value. Null if there is no
+	// value for it.
+	public abstract Object apply(Type source, String text, MappingContext context);
+
+	// Also applied if the source is empty (text is null).
+	public boolean acceptsEmpty() {
+		return false;
+	}
+
+	// Separator to append the value to the one already there with. Null to replace it.
+	public String getJoinSeparator() {
+		return null;
+	}
+
+	public String toString() {
+		return name;
+	}
+}
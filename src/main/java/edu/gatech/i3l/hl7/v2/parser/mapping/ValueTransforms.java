@@ -0,0 +1,148 @@
+package edu.gatech.i3l.hl7.v2.parser.mapping;
+
+import java.math.BigDecimal;
+
+import ca.uhn.hl7v2.model.Composite;
+import ca.uhn.hl7v2.model.DataTypeException;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.model.Varies;
+import ca.uhn.hl7v2.model.primitive.CommonTS;
+
+/*
+ * Known value transforms, by the name used in the transform column.
+ *
+ *   string         the text as it is. The default.
+ *   decimal        a number. Not a number gives no value.
+ *   ts             HL7 date/time (TS) as Date, for date and dateTime elements.
+ *   gender         F, M, O to female, male, other. Anything else is unknown.
+ *   unit           unit with the terminology unit rewrites.
+ *   system         CE-3 coding system name to system, from the terminology tables.
+ *   code-system    as system, or the sending facility's system if CE-3 is empty.
+ *   result-status  OBX-11 to observation status, from the terminology tables.
+ *   hd             HD-2, or HD-1 if it is empty, or HD-3.
+ *   join(SEP)      the text, appended to the value already there with SEP between.
+ */
+public class ValueTransforms {
+	public static final ValueTransform STRING = new ValueTransform("string") {
+		public Object apply(Type source, String text, MappingContext context) {
+			return text;
+		}
+	};
+
+	public static final ValueTransform DECIMAL = new ValueTransform("decimal") {
+		public Object apply(Type source, String text, MappingContext context) {
+			try {
+				return BigDecimal.valueOf(Double.parseDouble(text));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	};
+
+	public static final ValueTransform TS = new ValueTransform("ts") {
+		public Object apply(Type source, String text, MappingContext context) {
+			try {
+				return new CommonTS(text).getValueAsDate();
+			} catch (DataTypeException e) {
+				return null;
+			}
+		}
+	};
+
+	public static final ValueTransform GENDER = new ValueTransform("gender") {
+		public Object apply(Type source, String text, MappingContext context) {
+			if (text.equals("F"))
+				return "female";
+			if (text.equals("M"))
+				return "male";
+			if (text.equals("O"))
+				return "other";
+			return "unknown";
+		}
+	};
+
+	public static final ValueTransform UNIT = new ValueTransform("unit") {
+		public Object apply(Type source, String text, MappingContext context) {
+			return context.getTerminology().normalizeUnit(text);
+		}
+	};
+
+	public static final ValueTransform SYSTEM = new ValueTransform("system") {
+		public Object apply(Type source, String text, MappingContext context) {
+			return context.getTerminology().getCodingSystem(text);
+		}
+	};
+
+	public static final ValueTransform CODE_SYSTEM = new ValueTransform("code-system") {
+		public Object apply(Type source, String text, MappingContext context) {
+			if (text == null)
+				return context.getFacilityCodingSystem();
+			return context.getTerminology().getCodingSystem(text);
+		}
+
+		public boolean acceptsEmpty() {
+			return true;
+		}
+	};
+
+	public static final ValueTransform RESULT_STATUS = new ValueTransform("result-status") {
+		public Object apply(Type source, String text, MappingContext context) {
+			return context.getTerminology().getResultStatus(text);
+		}
+	};
+
+	public static final ValueTransform HD = new ValueTransform("hd") {
+		public Object apply(Type source, String text, MappingContext context) {
+			return valueOfHD(source);
+		}
+
+		// HD-1 may be empty when HD-2 is not.
+		public boolean acceptsEmpty() {
+			return true;
+		}
+	};
+
+	private static final ValueTransform[] KNOWN = { STRING, DECIMAL, TS, GENDER, UNIT, SYSTEM, CODE_SYSTEM,
+			RESULT_STATUS, HD };
+
+	// Throws IllegalArgumentException for an unknown name. Empty is string.
+	public static ValueTransform forName(String name) {
+		if (name == null || name.isEmpty())
+			return STRING;
+		if (name.startsWith("join(") && name.endsWith(")"))
+			return join(name.substring("join(".length(), name.length() - 1));
+		for (ValueTransform transform : KNOWN) {
+			if (transform.getName().equals(name))
+				return transform;
+		}
+		throw new IllegalArgumentException("Unknown transform " + name);
+	}
+
+	public static ValueTransform join(final String separator) {
+		return new ValueTransform("join(" + separator + ")") {
+			public Object apply(Type source, String text, MappingContext context) {
+				return text;
+			}
+
+			public String getJoinSeparator() {
+				return separator;
+			}
+		};
+	}
+
+	// HD-2 (universal id), or HD-1 (namespace id) if it is empty, or HD-3.
+	static String valueOfHD(Type hd) {
+		if (hd instanceof Varies)
+			hd = ((Varies) hd).getData();
+		if (!(hd instanceof Composite))
+			return V2Path.text(hd);
+
+		Type[] components = ((Composite) hd).getComponents();
+		for (int i : new int[] { 1, 0, 2 }) {
+			String value = i < components.length ? V2Path.text(components[i]) : null;
+			if (value != null)
+				return value;
+		}
+		return null;
+	}
+}
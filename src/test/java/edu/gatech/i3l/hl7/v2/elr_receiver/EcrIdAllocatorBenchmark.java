@@ -0,0 +1,48 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.io.File;
+
+/*
+ * Ids per second from EcrIdAllocator with several threads. The ids themselves are
+ * checked by EcrIdAllocatorTest. Not a unit test. Run from the project directory:
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *       edu.gatech.i3l.hl7.v2.elr_receiver.EcrIdAllocatorBenchmark [threads] [ids per thread]
+ */
+public class EcrIdAllocatorBenchmark {
+	static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int ids = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+		File file = File.createTempFile("ecrid", ".state");
+		file.delete();
+
+		final EcrIdAllocator allocator = new EcrIdAllocator(7, file, EcrIdAllocator.DEFAULT_RESERVE_MILLIS);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					long sum = 0L;
+					for (int i = 0; i < ids; i++) {
+						sum += allocator.next();
+					}
+					sink += sum;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long nanos = System.nanoTime() - start;
+		allocator.close();
+		file.delete();
+
+		System.out.println(String.format("%d threads, %d ids, %.0f ids/s", threads, (long) threads * ids,
+				(double) threads * ids / (nanos / 1e9)));
+	}
+}
@@ -0,0 +1,96 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Ids from EcrIdAllocator are unique across threads, go up on each thread, and go on
+ * going up after a restart from the same state file.
+ */
+public class EcrIdAllocatorTest {
+	static final int THREADS = 4;
+	static final int IDS = 20000;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("ecrid", ".state");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void idsAreUniqueAndGoUpOnEachThread() throws Exception {
+		EcrIdAllocator allocator = new EcrIdAllocator(7, file, EcrIdAllocator.DEFAULT_RESERVE_MILLIS);
+		long[][] allocated = allocate(allocator);
+		allocator.close();
+
+		Set<Long> all = new HashSet<Long>();
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 0; i < IDS; i++) {
+				if (i > 0)
+					assertTrue("id went down on thread " + t + " at " + i, allocated[t][i] > allocated[t][i - 1]);
+				all.add(allocated[t][i]);
+			}
+		}
+		assertEquals(THREADS * IDS, all.size());
+	}
+
+	@Test
+	public void idsGoOnAfterARestart() throws Exception {
+		EcrIdAllocator allocator = new EcrIdAllocator(7, file, EcrIdAllocator.DEFAULT_RESERVE_MILLIS);
+		long last = 0L;
+		for (int i = 0; i < IDS; i++) {
+			last = allocator.next();
+		}
+		allocator.close();
+
+		EcrIdAllocator restarted = new EcrIdAllocator(7, file, EcrIdAllocator.DEFAULT_RESERVE_MILLIS);
+		long next = restarted.next();
+		restarted.close();
+		assertTrue("id " + next + " after a restart is not above " + last, next > last);
+	}
+
+	@Test
+	public void nodeIdIsInEveryId() throws Exception {
+		EcrIdAllocator allocator = new EcrIdAllocator(7, null, EcrIdAllocator.DEFAULT_RESERVE_MILLIS);
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(7L, (allocator.next() >>> EcrIdAllocator.SEQUENCE_BITS) & EcrIdAllocator.MAX_NODE);
+		}
+		allocator.close();
+	}
+
+	private static long[][] allocate(final EcrIdAllocator allocator) throws InterruptedException {
+		final long[][] allocated = new long[THREADS][IDS];
+		Thread[] workers = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final long[] mine = allocated[t];
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < IDS; i++) {
+						mine[i] = allocator.next();
+					}
+				}
+			});
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return allocated;
+	}
+}
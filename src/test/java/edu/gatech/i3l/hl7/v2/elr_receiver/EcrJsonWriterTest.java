@@ -0,0 +1,47 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/*
+ * EcrJsonWriter (and so EcrDocument) gives the same text as JSONObject.toString(),
+ * escapes included.
+ */
+public class EcrJsonWriterTest {
+	@Test
+	public void sameAsToString() {
+		JSONObject ecr = EcrSerializationBenchmark.ecr(3);
+		assertEquals(ecr.toString(), new String(EcrJsonWriter.toJson(ecr), StandardCharsets.UTF_8));
+		assertEquals(ecr.toString(), EcrDocument.of(ecr).getText());
+	}
+
+	@Test
+	public void sameEscapesAsQuote() {
+		JSONObject json = new JSONObject();
+		json.put("slash", "Results </br> reviewed, a/b");
+		json.put("quotes", "\"quoted\" and back\\slash");
+		json.put("control", "tab\tnew line\ncarriage return\rbell\u0007");
+		json.put("c1", "next line\u0085");
+		json.put("separators", "line\u2028paragraph\u2029dash\u2013");
+		json.put("unicode", "caf\u00e9 \u65e5\u672c");
+		assertEquals(json.toString(), new String(EcrJsonWriter.toJson(json), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void sameValuesAsToString() {
+		JSONObject json = new JSONObject();
+		json.put("int", 42);
+		json.put("long", -1234567890123L);
+		json.put("double", 12.50);
+		json.put("whole", 3.0);
+		json.put("true", true);
+		json.put("null", JSONObject.NULL);
+		json.put("array", new JSONArray().put("a").put(1).put(new JSONArray()).put(new JSONObject()));
+		assertEquals(json.toString(), new String(EcrJsonWriter.toJson(json), StandardCharsets.UTF_8));
+	}
+}
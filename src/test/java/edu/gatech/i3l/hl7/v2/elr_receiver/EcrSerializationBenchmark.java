@@ -0,0 +1,118 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/*
+ * Time and bytes allocated per ECR for what sendEcr does with the JSON text, the way it
+ * used to (toString() for the debug log, POST body, INFO log and stdout, and the body
+ * encoded to bytes) and with EcrDocument (one EcrJsonWriter pass, text made once for
+ * the INFO log, and no stdout). That the text is the same is checked by
+ * EcrJsonWriterTest. Not a unit test. Run from the project directory:
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *       edu.gatech.i3l.hl7.v2.elr_receiver.EcrSerializationBenchmark [ecrs] [results]
+ *
+ * Allocation is measured with com.sun.management.ThreadMXBean (HotSpot JVMs).
+ */
+public class EcrSerializationBenchmark {
+	static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		int ecrs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int results = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+		JSONObject ecr = ecr(results);
+
+		// Warm up the JIT, so only the steady state is measured.
+		toStrings(ecr, ecrs / 2);
+		document(ecr, ecrs / 2);
+
+		long[] before = measure(ecr, ecrs, false);
+		long[] after = measure(ecr, ecrs, true);
+
+		System.out.println(String.format("%-22s %14s %14s", "", "us/ECR", "bytes/ECR"));
+		System.out.println(String.format("%-22s %14.1f %14d", "toString() per use", before[0] / 1e3 / ecrs,
+				before[1] / ecrs));
+		System.out.println(String.format("%-22s %14.1f %14d", "EcrDocument", after[0] / 1e3 / ecrs,
+				after[1] / ecrs));
+		System.out.println(String.format("%-22s %14d", "ECR size (bytes)", EcrDocument.of(ecr).getBytes().length));
+	}
+
+	// Nanoseconds and bytes allocated.
+	static long[] measure(JSONObject ecr, int ecrs, boolean document) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		if (document)
+			document(ecr, ecrs);
+		else
+			toStrings(ecr, ecrs);
+		return new long[] { System.nanoTime() - start, threads.getThreadAllocatedBytes(thread) - allocated };
+	}
+
+	static void toStrings(JSONObject ecr, int ecrs) {
+		for (int i = 0; i < ecrs; i++) {
+			String debug = ecr.toString();
+			byte[] body = ecr.toString().getBytes(StandardCharsets.UTF_8);
+			String info = ecr.toString();
+			String stdout = ecr.toString();
+			sink += debug.length() + body.length + info.length() + stdout.length();
+		}
+	}
+
+	static void document(JSONObject ecr, int ecrs) {
+		for (int i = 0; i < ecrs; i++) {
+			EcrDocument document = EcrDocument.of(ecr);
+			byte[] body = document.getBytes();
+			String info = document.getText();
+			sink += body.length + info.length();
+		}
+	}
+
+	static JSONObject ecr(int results) {
+		JSONObject ecr = new JSONObject();
+		ecr.put("id", "158315040");
+		ecr.put("Sending Application", new JSONObject().put("Name", "NMS Labs").put("ID", "05D0645703"));
+
+		JSONObject provider = new JSONObject();
+		provider.put("ID", new JSONObject().put("value", "1234567890").put("type", "NPI"));
+		provider.put("Name", "Jon Duke");
+		provider.put("Phone", "(123)-456-7890");
+		ecr.put("Provider", new JSONArray().put(provider));
+		ecr.put("Facility", new JSONObject().put("Name", "Fulton County ME Office").put("Address",
+				"430 Pryor St SW, Atlanta, GA 30312"));
+
+		JSONObject patient = new JSONObject();
+		patient.put("ID", new JSONArray().put(new JSONObject().put("value", "21-00457").put("type", "MR")));
+		patient.put("Name", new JSONObject().put("given", "John").put("family", "Doe"));
+		patient.put("Note", "Results </br> reviewed\u2013see report");
+		patient.put("Birth_Date", "19700101");
+		patient.put("Sex", "M");
+		patient.put("Visit_DateTime", "20200301090000");
+
+		JSONArray results_json = new JSONArray();
+		for (int i = 0; i < results; i++) {
+			JSONObject result = new JSONObject();
+			result.put("Code", new JSONObject().put("Code", "3349-" + i).put("Name", "Toxicology analyte " + i)
+					.put("System", "LN"));
+			result.put("Value", String.valueOf(12.5 + i));
+			result.put("Unit", new JSONObject().put("Code", "ug/L").put("System", "UCUM"));
+			result.put("Range", "<50");
+			result.put("Status", "F");
+			result.put("Date", "20200301100000");
+			results_json.put(result);
+		}
+		JSONObject order = new JSONObject();
+		order.put("Code", new JSONObject().put("Code", "8052B").put("Name", "Postmortem Toxicology - Expanded"));
+		order.put("DateTime", "20200301090000");
+		order.put("Laboratory_Results", results_json);
+		patient.put("Lab_Order_Code", new JSONArray().put(order));
+		ecr.put("Patient", patient);
+		return ecr;
+	}
+}
@@ -0,0 +1,100 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.json.JSONObject;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+
+/*
+ * Per-message cost of FHIR encoding and parsing, the way sendFhir used to do it (new
+ * FhirContext and parser for every message) and with FhirSerializationService. Not a
+ * unit test. Run from the project directory:
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *       edu.gatech.i3l.hl7.v2.elr_receiver.FhirSerializationBenchmark [messages] [observations]
+ *
+ * Each message is encoded once and parsed twice, as in mapMyMessage and sendFhir.
+ */
+public class FhirSerializationBenchmark {
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int observations = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+		Bundle bundle = messageBundle(observations);
+
+		// Warm up the JIT and the shared contexts, so only the steady state is measured.
+		FhirSerializationService.get().warmUp(FhirVersionEnum.R4);
+		perContext(bundle, 5);
+		shared(bundle, 5);
+
+		long start = System.nanoTime();
+		perContext(bundle, messages);
+		double perContextMicros = (System.nanoTime() - start) / 1e3 / messages;
+
+		start = System.nanoTime();
+		shared(bundle, messages);
+		double sharedMicros = (System.nanoTime() - start) / 1e3 / messages;
+
+		System.out.println(String.format("%-22s %14s", "", "us/message"));
+		System.out.println(String.format("%-22s %14.0f", "context per message", perContextMicros));
+		System.out.println(String.format("%-22s %14.0f", "shared service", sharedMicros));
+		System.out.println(String.format("%-22s %14.1fx", "speed up", perContextMicros / sharedMicros));
+	}
+
+	static void perContext(Bundle bundle, int messages) {
+		for (int i = 0; i < messages; i++) {
+			String json = FhirContext.forR4().newJsonParser().setPrettyPrint(true).encodeResourceToString(bundle);
+			String payload = new JSONObject(json).toString();
+			FhirContext.forR4().newJsonParser().parseResource(Bundle.class, payload);
+			FhirContext.forR4().newJsonParser().parseResource(Bundle.class, payload);
+		}
+	}
+
+	static void shared(Bundle bundle, int messages) {
+		FhirSerializationService fhir = FhirSerializationService.get();
+		for (int i = 0; i < messages; i++) {
+			String payload = fhir.encode(bundle);
+			fhir.parse(Bundle.class, payload);
+			fhir.parse(Bundle.class, payload);
+		}
+	}
+
+	static Bundle messageBundle(int observations) {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.MESSAGE);
+
+		MessageHeader header = new MessageHeader();
+		header.addDestination().setName("Fulton County ME Office").setEndpoint("urn:mdi:fulton");
+		bundle.addEntry().setFullUrl("urn:uuid:5d3c2a8e-9b6f-4f1e-8f7c-0a1b2c3d4e5f").setResource(header);
+
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("urn:mdi:case").setValue("21-00457");
+		patient.addName().setFamily("Doe").addGiven("John");
+		patient.setGender(AdministrativeGender.MALE);
+		bundle.addEntry().setFullUrl("urn:uuid:6e4d3b9f-ac70-4a2f-9a8d-1b2c3d4e5f60").setResource(patient);
+
+		for (int i = 0; i < observations; i++) {
+			Observation observation = new Observation();
+			observation.setStatus(ObservationStatus.FINAL);
+			observation.setCode(
+					new CodeableConcept().addCoding(new Coding("http://loinc.org", "3349-" + i, "Toxicology analyte " + i)));
+			observation.setSubject(new Reference("urn:uuid:6e4d3b9f-ac70-4a2f-9a8d-1b2c3d4e5f60"));
+			observation.setValue(new Quantity().setValue(12.5 + i).setUnit("ng/mL")
+					.setSystem("http://unitsofmeasure.org").setCode("ng/mL"));
+			bundle.addEntry().setFullUrl("urn:uuid:7f5e4cab-bd81-4b3f-ab9e-2c3d4e5f6071-" + i)
+					.setResource(observation);
+		}
+
+		return bundle;
+	}
+}
@@ -0,0 +1,56 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import edu.gatech.i3l.hl7.v2.elr_receiver.HL7v2ReceiverApplication.ErrorCode;
+
+/*
+ * The ACK of an ORU^R01 from the results of its patients, in message order: the first
+ * mapping error, else PID if no patient could be mapped, else INTERNAL if an ECR could
+ * not be delivered, else NOERROR.
+ */
+public class HL7v2ReceiverECRApplicationTest {
+	@Test
+	public void firstMappingErrorWins() {
+		assertEquals(ErrorCode.LAB_RESULTS, HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.NOERROR,
+				ErrorCode.INTERNAL, ErrorCode.PID, ErrorCode.LAB_RESULTS, ErrorCode.ORDER_OBSERVATION)));
+		assertEquals(ErrorCode.ORDER_OBSERVATION,
+				HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.PID, ErrorCode.ORDER_OBSERVATION)));
+	}
+
+	@Test
+	public void pidWhenNoPatientIsMapped() {
+		assertEquals(ErrorCode.PID, HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.PID, ErrorCode.PID)));
+		assertEquals(ErrorCode.PID, HL7v2ReceiverECRApplication.ack(Collections.<ErrorCode>emptyList()));
+	}
+
+	@Test
+	public void internalWhenAnEcrIsNotDelivered() {
+		assertEquals(ErrorCode.INTERNAL,
+				HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.NOERROR, ErrorCode.PID, ErrorCode.INTERNAL)));
+		assertEquals(ErrorCode.INTERNAL, HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.INTERNAL)));
+	}
+
+	@Test
+	public void noErrorWhenAllMappedPatientsAreDelivered() {
+		assertEquals(ErrorCode.NOERROR,
+				HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.NOERROR, ErrorCode.NOERROR)));
+		assertEquals(ErrorCode.NOERROR, HL7v2ReceiverECRApplication.ack(Arrays.asList(ErrorCode.PID, ErrorCode.NOERROR)));
+	}
+
+	@Test
+	public void pidAndDeliveryErrorsAreNotMappingErrors() {
+		assertTrue(HL7v2ReceiverECRApplication.isMappingError(ErrorCode.ORDER_OBSERVATION));
+		assertTrue(HL7v2ReceiverECRApplication.isMappingError(ErrorCode.LAB_RESULTS));
+		assertFalse(HL7v2ReceiverECRApplication.isMappingError(ErrorCode.NOERROR));
+		assertFalse(HL7v2ReceiverECRApplication.isMappingError(ErrorCode.PID));
+		assertFalse(HL7v2ReceiverECRApplication.isMappingError(ErrorCode.INTERNAL));
+	}
+}
@@ -0,0 +1,195 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.squareup.tape2.QueueFile;
+
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.LeasedQueue.Lease;
+
+/*
+ * LeasedQueue on a temporary queue file: take() hands out entries in queue order past
+ * the cursor, leases never overlap, acked entries leave the file once the ones in
+ * front of them are acked too, and nacked, expired or unacked entries are delivered
+ * again, also after reopening the file.
+ */
+public class LeasedQueueTest {
+	static final long LEASE_MILLIS = 60 * 1000L;
+
+	private File file;
+	private LeasedQueue queue;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("leased", ".queue");
+		file.delete();
+		queue = new LeasedQueue(file, LEASE_MILLIS);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		queue.close();
+		file.delete();
+	}
+
+	@Test
+	public void takeStartsPastTheEntriesInFlight() throws IOException {
+		add(queue, 5);
+		assertEquals(Arrays.asList("0", "1"), data(queue.take(2)));
+		assertEquals(Arrays.asList("2", "3"), data(queue.take(2)));
+		assertEquals(Arrays.asList("4"), data(queue.take(10)));
+		assertTrue(queue.take(10).isEmpty());
+		assertEquals(5, queue.inFlight());
+		assertEquals(5, queue.size());
+	}
+
+	@Test
+	public void leasesAreDisjointAndAckedEntriesLeaveFromTheHead() throws IOException {
+		add(queue, 4);
+		List<Lease> first = queue.take(2);
+		List<Lease> second = queue.take(2);
+		assertEquals(Arrays.asList(0L, 1L), seqs(first));
+		assertEquals(Arrays.asList(2L, 3L), seqs(second));
+
+		// Out of order: marked, but still in the file behind entry 0 and 1.
+		queue.ack(second.get(1));
+		queue.ack(second.get(0));
+		queue.ack(first.get(1));
+		assertEquals(1, queue.size());
+		assertEquals(4, queue.getQueueFile().size());
+
+		queue.ack(first.get(0));
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.getQueueFile().size());
+		assertEquals(0, queue.inFlight());
+
+		// A second ack of the same lease changes nothing.
+		queue.ack(first.get(0));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void nackedEntryIsDeliveredAgainInPlace() throws IOException {
+		add(queue, 3);
+		List<Lease> batch = queue.take(3);
+		queue.nack(batch.get(1));
+
+		List<Lease> again = queue.take(3);
+		assertEquals(Arrays.asList(1L), seqs(again));
+		assertEquals("1", text(again.get(0)));
+		assertEquals(2, again.get(0).getAttempt());
+
+		// The old lease no longer counts.
+		queue.nack(batch.get(1));
+		assertEquals(3, queue.inFlight());
+
+		queue.ack(batch.get(0));
+		queue.ack(again.get(0));
+		queue.ack(batch.get(2));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void partlyDeliveredEntryStartsAfterTheDeliveredRecords() throws IOException {
+		add(queue, 1);
+		Lease lease = queue.take(1).get(0);
+		assertEquals(0, lease.getDelivered());
+		queue.nack(lease, 2);
+
+		Lease next = queue.take(1).get(0);
+		assertEquals(2, next.getDelivered());
+		assertEquals(1, next.getAttempt());
+
+		queue.nack(next);
+		Lease last = queue.take(1).get(0);
+		assertEquals(2, last.getDelivered());
+		assertEquals(2, last.getAttempt());
+	}
+
+	@Test
+	public void expiredLeaseIsDeliveredAgain() throws IOException {
+		queue.close();
+		queue = new LeasedQueue(file, 0L);
+		add(queue, 2);
+
+		List<Lease> expired = queue.take(2);
+		List<Lease> again = queue.take(2);
+		assertEquals(Arrays.asList(0L, 1L), seqs(again));
+		assertEquals(2, again.get(0).getAttempt());
+
+		// Delivered on the expired lease after all. The entry is done.
+		queue.ack(expired.get(0));
+		assertEquals(1, queue.size());
+	}
+
+	@Test
+	public void entriesPastTheWindowAreReadFromTheFile() throws IOException {
+		queue.close();
+		queue = new LeasedQueue(new QueueFile.Builder(file).build(), LEASE_MILLIS, 2);
+		add(queue, 7);
+
+		List<Lease> first = queue.take(3);
+		assertEquals(Arrays.asList("0", "1", "2"), data(first));
+		queue.ack(first.get(0));
+
+		List<Lease> rest = queue.take(10);
+		assertEquals(Arrays.asList("3", "4", "5", "6"), data(rest));
+
+		queue.nack(rest.get(1));
+		assertEquals(Arrays.asList("4"), data(queue.take(10)));
+	}
+
+	@Test
+	public void unackedEntriesAreThereAfterReopening() throws IOException {
+		add(queue, 3);
+		List<Lease> batch = queue.take(3);
+		queue.ack(batch.get(0));
+		queue.nack(batch.get(1), 1);
+		queue.close();
+
+		queue = new LeasedQueue(file, LEASE_MILLIS);
+		assertEquals(2, queue.size());
+		List<Lease> again = queue.take(10);
+		assertEquals(Arrays.asList("1", "2"), data(again));
+		// Attempts and progress are per process.
+		assertEquals(1, again.get(0).getAttempt());
+		assertEquals(0, again.get(0).getDelivered());
+	}
+
+	static void add(LeasedQueue queue, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			queue.add(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	static String text(Lease lease) {
+		return new String(lease.getData(), StandardCharsets.UTF_8);
+	}
+
+	static List<String> data(List<Lease> leases) {
+		List<String> data = new ArrayList<String>();
+		for (Lease lease : leases) {
+			data.add(text(lease));
+		}
+		return data;
+	}
+
+	static List<Long> seqs(List<Lease> leases) {
+		List<Long> seqs = new ArrayList<Long>();
+		for (Lease lease : leases) {
+			seqs.add(lease.getSeq());
+		}
+		return seqs;
+	}
+}
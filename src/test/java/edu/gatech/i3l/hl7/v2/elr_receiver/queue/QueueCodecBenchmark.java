@@ -0,0 +1,148 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.LeasedQueue.Lease;
+
+/*
+ * Bytes per queue entry and drain throughput for the payload codecs, with and without
+ * compression. Not a unit test. Run from the project directory:
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *       edu.gatech.i3l.hl7.v2.elr_receiver.queue.QueueCodecBenchmark [entries] [group size]
+ *
+ * Each record is a different FHIR message bundle shaped like the ones the toxicology
+ * parser produces (case numbers, names, ids, codes and values differ), so deflate only
+ * finds the redundancy there is within one record. By default each entry holds one
+ * record, as it does when appends do not overlap. A larger group size shows what group
+ * commits add. "json, uncompressed" is what was queued before codecs were added.
+ */
+public class QueueCodecBenchmark {
+	public static void main(String[] args) throws Exception {
+		int entries = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int groupSize = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+		// The same records for every codec.
+		Random random = new Random(42L);
+		List<JSONObject> samples = new ArrayList<JSONObject>(entries);
+		for (int i = 0; i < entries; i++) {
+			samples.add(fhirBundle(random, i, 4 + random.nextInt(16)));
+		}
+
+		System.out.println(String.format("%-8s %-6s %14s %14s %14s", "codec", "deflate", "bytes/entry", "write/sec",
+				"drain/sec"));
+		for (PayloadCodec codec : new PayloadCodec[] { PayloadCodecs.JSON, PayloadCodecs.BINARY }) {
+			for (boolean compress : new boolean[] { false, true }) {
+				run(codec, compress, samples, entries, groupSize);
+			}
+		}
+	}
+
+	static void run(PayloadCodec codec, boolean compress, List<JSONObject> samples, int entries, int groupSize)
+			throws Exception {
+		File file = File.createTempFile("queue-bench", ".q");
+		file.delete();
+		LeasedQueue queue = new LeasedQueue(file, LeasedQueue.DEFAULT_LEASE_MILLIS);
+
+		long start = System.nanoTime();
+		long bytes = 0L;
+		int written = 0;
+		List<byte[]> group = new ArrayList<byte[]>(groupSize);
+		for (int i = 0; i < entries; i++) {
+			JSONObject json = samples.get(i);
+			group.add(QueueRecord.of("LAB", "MSG" + i, System.currentTimeMillis(), codec, json).toBytes());
+			if (group.size() == groupSize || i == entries - 1) {
+				byte[] entry = QueueRecordCodec.encode(group, compress);
+				bytes += entry.length;
+				queue.add(entry);
+				written++;
+				group.clear();
+			}
+		}
+		double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+		start = System.nanoTime();
+		int drained = 0;
+		while (true) {
+			List<Lease> batch = queue.take(50);
+			if (batch.isEmpty())
+				break;
+			for (Lease lease : batch) {
+				for (byte[] record : QueueRecordCodec.decode(lease.getData())) {
+					if (QueueRecord.fromBytes(record).toJson().length() == 0)
+						throw new IllegalStateException("Empty payload");
+					drained++;
+				}
+				queue.ack(lease);
+			}
+		}
+		double drainSeconds = (System.nanoTime() - start) / 1e9;
+
+		queue.close();
+		file.delete();
+
+		System.out.println(String.format("%-8s %-6s %14d %14.0f %14.0f", codec.getName(), compress, bytes / written,
+				entries / writeSeconds, drained / drainSeconds));
+	}
+
+	static JSONObject fhirBundle(Random random, int caseNumber, int observations) {
+		String[] families = { "Doe", "Smith", "Garcia", "Nguyen", "Johnson", "Williams", "Brown", "Okafor" };
+		String[] givens = { "John", "Maria", "Wei", "Aisha", "Robert", "Linda", "Carlos", "Emily" };
+		String[] units = { "ng/mL", "ug/L", "mg/L", "%" };
+
+		JSONObject bundle = new JSONObject();
+		bundle.put("resourceType", "Bundle");
+		bundle.put("id", UUID.randomUUID().toString());
+		bundle.put("type", "message");
+		JSONArray entry = new JSONArray();
+		bundle.put("entry", entry);
+
+		JSONObject header = new JSONObject();
+		header.put("resourceType", "MessageHeader");
+		header.put("eventUri", "urn:mdi:toxicology");
+		header.put("destination",
+				new JSONArray().put(new JSONObject().put("name", "County ME Office " + random.nextInt(200))));
+		entry.put(new JSONObject().put("fullUrl", "urn:uuid:" + UUID.randomUUID()).put("resource", header));
+
+		String patientUrl = "urn:uuid:" + UUID.randomUUID();
+		JSONObject patient = new JSONObject();
+		patient.put("resourceType", "Patient");
+		patient.put("identifier", new JSONArray()
+				.put(new JSONObject().put("system", "urn:mdi:case").put("value", "21-" + (10000 + caseNumber))));
+		patient.put("name", new JSONArray().put(new JSONObject().put("family", families[random.nextInt(families.length)])
+				.put("given", new JSONArray().put(givens[random.nextInt(givens.length)]))));
+		patient.put("gender", random.nextBoolean() ? "male" : "female");
+		patient.put("birthDate", String.format("19%02d-%02d-%02d", random.nextInt(100), 1 + random.nextInt(12),
+				1 + random.nextInt(28)));
+		entry.put(new JSONObject().put("fullUrl", patientUrl).put("resource", patient));
+
+		for (int i = 0; i < observations; i++) {
+			int analyte = random.nextInt(5000);
+			String unit = units[random.nextInt(units.length)];
+			JSONObject observation = new JSONObject();
+			observation.put("resourceType", "Observation");
+			observation.put("status", "final");
+			observation.put("code",
+					new JSONObject().put("coding",
+							new JSONArray().put(new JSONObject().put("system", "http://loinc.org")
+									.put("code", analyte + "-" + random.nextInt(10))
+									.put("display", "Toxicology analyte " + analyte))));
+			observation.put("subject", new JSONObject().put("reference", patientUrl));
+			observation.put("valueQuantity",
+					new JSONObject().put("value", Math.round(random.nextDouble() * 100000) / 100.0).put("unit", unit)
+							.put("system", "http://unitsofmeasure.org").put("code", unit));
+			observation.put("effectiveDateTime", String.format("2021-%02d-%02dT%02d:%02d:00-05:00",
+					1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60)));
+			entry.put(new JSONObject().put("fullUrl", "urn:uuid:" + UUID.randomUUID()).put("resource", observation));
+		}
+
+		return bundle;
+	}
+}
@@ -0,0 +1,153 @@
+package edu.gatech.i3l.hl7.v2.elr_receiver.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.gatech.i3l.hl7.v2.elr_receiver.queue.LeasedQueue.Lease;
+
+/*
+ * ShardedQueue in a temporary directory: a routing key always goes to the same shard,
+ * in order, unacked entries are there after reopening, and shard files past the shard
+ * count and the single queue file from before sharding are opened drain-only.
+ */
+public class ShardedQueueTest {
+	static final long LEASE_MILLIS = 60 * 1000L;
+
+	private File dir;
+	private String base;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("sharded", ".queue");
+		dir.delete();
+		dir.mkdir();
+		base = new File(dir, "queueELR").getPath();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void sameKeyGoesToTheSameShardInOrder() throws IOException {
+		ShardedQueue queue = new ShardedQueue(base, 4, LEASE_MILLIS);
+		int shard = queue.shardFor("dest|patient-1");
+		for (int i = 0; i < 5; i++) {
+			queue.add("dest|patient-1", record(i));
+		}
+
+		assertEquals(4, queue.getShards().size());
+		assertEquals(5, queue.size());
+		assertEquals(5, queue.getShards().get(shard).size());
+		List<String> records = records(queue.getShards().get(shard).take(10));
+		assertEquals(5, records.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(String.valueOf(i), records.get(i));
+		}
+		queue.close();
+	}
+
+	@Test
+	public void unackedEntriesAreThereAfterReopening() throws IOException {
+		ShardedQueue queue = new ShardedQueue(base, 4, LEASE_MILLIS);
+		for (int i = 0; i < 20; i++) {
+			queue.add("patient-" + i, record(i));
+		}
+
+		// Ack one entry per shard, and leave the rest in flight.
+		int acked = 0;
+		for (LeasedQueue shard : queue.getShards()) {
+			List<Lease> leases = shard.take(10);
+			if (!leases.isEmpty()) {
+				shard.ack(leases.get(0));
+				acked++;
+			}
+		}
+		queue.close();
+
+		queue = new ShardedQueue(base, 4, LEASE_MILLIS);
+		assertEquals(20 - acked, queue.size());
+		int taken = 0;
+		for (LeasedQueue shard : queue.getShards()) {
+			taken += shard.take(20).size();
+		}
+		assertEquals(20 - acked, taken);
+		queue.close();
+	}
+
+	@Test
+	public void shardsPastTheCountAreDrainOnly() throws IOException {
+		ShardedQueue queue = new ShardedQueue(base, 4, LEASE_MILLIS);
+		for (int i = 0; i < 20; i++) {
+			queue.add("patient-" + i, record(i));
+		}
+		int beyond = queue.getShards().get(2).size() + queue.getShards().get(3).size();
+		queue.close();
+		assertTrue("no entries in shards 2 and 3", beyond > 0);
+
+		queue = new ShardedQueue(base, 2, LEASE_MILLIS);
+		assertEquals(20, queue.size());
+		assertTrue(queue.getShards().size() > 2);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(queue.shardFor("patient-" + i) < 2);
+		}
+
+		// Emptied, they are not opened again.
+		for (LeasedQueue shard : queue.getShards().subList(2, queue.getShards().size())) {
+			for (Lease lease : shard.take(20)) {
+				shard.ack(lease);
+			}
+		}
+		queue.close();
+		queue = new ShardedQueue(base, 2, LEASE_MILLIS);
+		assertEquals(2, queue.getShards().size());
+		assertEquals(20 - beyond, queue.size());
+		queue.close();
+	}
+
+	@Test
+	public void singleQueueFileIsDrained() throws IOException {
+		LeasedQueue legacy = new LeasedQueue(new File(base), LEASE_MILLIS);
+		legacy.add(QueueRecordCodec.encode(Collections.singletonList(record(7))));
+		legacy.close();
+
+		ShardedQueue queue = new ShardedQueue(base, 2, LEASE_MILLIS);
+		assertEquals(3, queue.getShards().size());
+		assertEquals(1, queue.size());
+		assertEquals("7", records(queue.getShards().get(2).take(1)).get(0));
+		queue.close();
+	}
+
+	static byte[] record(int i) {
+		return String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+	}
+
+	// The records of the entries. A group commit may put several in one entry.
+	static List<String> records(List<Lease> leases) throws IOException {
+		List<String> records = new ArrayList<String>();
+		for (Lease lease : leases) {
+			for (byte[] record : QueueRecordCodec.decode(lease.getData())) {
+				records.add(new String(record, StandardCharsets.UTF_8));
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,133 @@
+package edu.gatech.i3l.hl7.v2.parser.fhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerator;
+import edu.gatech.i3l.hl7.v2.parser.ResourceIdGenerators;
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingEngine;
+
+/*
+ * Maps one golden ORU^R01 with the hand written R4 parser and with the mapping spec
+ * (HL7v23FhirMappingParser) and checks that the bundles are the same, except for what
+ * the MappingEngine doc lists:
+ *
+ *   - MessageHeader.event is observation-provide, not the laboratory category.
+ *   - Each bundle has its own MessageHeader, focused on the entries of that bundle. The
+ *     hand written parser shares one, focused on the entries of all bundles.
+ *   - Only the first PID-5 repetition is used. The hand written parser uses the first
+ *     one that is not empty, which is the same here.
+ *
+ * Resource ids are name based, so both give the same ids and fullUrls.
+ */
+public class HL7v23FhirMappingParserTest {
+	static final String MESSAGE = "MSH|^~\\&|NMS|NMS^2.16.840.1.113883.3.1234^ISO|MDI|FULTON^urn:mdi:fulton^URI|"
+			+ "20200302120000||ORU^R01^ORU_R01|MSG00001|P|2.3\r"
+			+ "PID|1|21-00457|WO12345^^^^WO~AC778^^^^AN||DOE^JOHN~DOE^JACK||19700101|M\r"
+			+ "OBR|1|||8052B^Postmortem Toxicology - Expanded|||20200301090000\r"
+			+ "OBX|1|NM|3349-1^Morphine^LN||12.5|mcg/L^^UCUM|50|H|||F|||20200301100000\r"
+			+ "NTE|1|METHOD|Liquid Chromatography/Tandem Mass Spectrometry (LC-MS/MS)\r"
+			+ "NTE|2||Reporting limit 5.0 mcg/L\r"
+			+ "NTE|3||Confirmed by second run\r"
+			+ "OBX|2|ST|3349-2^Ethanol^LN||None Detected||Negative||||C|||20200301100000\r"
+			// Status I is not mapped, so both leave this one out.
+			+ "OBX|3|NM|1234-5^Fentanyl^LN||0.8|ng/mL^^UCUM|||||I|||20200301100000\r"
+			// No CE-3, so the system is the one of the sending facility.
+			+ "OBX|4|TX|TOX-1^Comment||See report||||||P|||20200301100000\r"
+			+ "PID|2|21-00458|WO12346^^^^WO||ROE^JANE||19800202|F\r"
+			+ "OBR|1|||8052B^Postmortem Toxicology - Expanded|||20200301090000\r"
+			+ "OBX|1|NM|3349-1^Morphine^LN||3|mcg/L^^UCUM|5.0|H|||F|||20200301110000\r";
+
+	private ResourceIdGenerator ids;
+	private IParser json;
+
+	@Before
+	public void setUp() {
+		ids = ResourceIdGenerators.get();
+		ResourceIdGenerators.set(ResourceIdGenerators.NAME_BASED);
+		json = FhirContext.forR4().newJsonParser();
+	}
+
+	@After
+	public void tearDown() {
+		ResourceIdGenerators.set(ids);
+	}
+
+	@Test
+	public void mapsTheSameAsTheR4Parser() throws Exception {
+		Message msg = PipeParser.getInstanceWithNoValidation().parse(MESSAGE);
+		List<IBaseBundle> expected = new HL7v23FhirR4Parser().executeParser(msg);
+		List<IBaseBundle> actual = new HL7v23FhirMappingParser(MappingEngine.get(FhirContext.forR4()))
+				.executeParser(msg);
+		assertNotNull(expected);
+		assertNotNull(actual);
+		assertEquals(2, expected.size());
+		assertEquals(expected.size(), actual.size());
+
+		List<String> allEntries = new ArrayList<String>();
+		for (int i = 0; i < expected.size(); i++) {
+			Bundle expectedBundle = (Bundle) expected.get(i);
+			Bundle actualBundle = (Bundle) actual.get(i);
+			assertEquals(expectedBundle.getType(), actualBundle.getType());
+			assertEquals("bundle " + i, expectedBundle.getEntry().size(), actualBundle.getEntry().size());
+
+			// Patient and Observations
+			List<String> entries = new ArrayList<String>();
+			for (int n = 1; n < expectedBundle.getEntry().size(); n++) {
+				Bundle.BundleEntryComponent expectedEntry = expectedBundle.getEntry().get(n);
+				Bundle.BundleEntryComponent actualEntry = actualBundle.getEntry().get(n);
+				assertEquals(expectedEntry.getFullUrl(), actualEntry.getFullUrl());
+				assertEquals("bundle " + i + " entry " + n, encode(expectedEntry.getResource()),
+						encode(actualEntry.getResource()));
+				entries.add(actualEntry.getFullUrl());
+			}
+
+			MessageHeader expectedHeader = (MessageHeader) expectedBundle.getEntry().get(0).getResource();
+			MessageHeader actualHeader = (MessageHeader) actualBundle.getEntry().get(0).getResource();
+			assertEquals("observation-provide", actualHeader.getEventCoding().getCode());
+			assertEquals(entries, references(actualHeader.getFocus()));
+			assertEquals("bundle " + i + " MessageHeader", encode(withoutEventAndFocus(expectedHeader)),
+					encode(withoutEventAndFocus(actualHeader)));
+			allEntries.addAll(entries);
+		}
+
+		MessageHeader shared = (MessageHeader) ((Bundle) expected.get(0)).getEntry().get(0).getResource();
+		assertEquals("laboratory", shared.getEventCoding().getCode());
+		assertEquals(allEntries, references(shared.getFocus()));
+	}
+
+	private String encode(IBaseResource resource) {
+		return json.encodeResourceToString(resource);
+	}
+
+	private static MessageHeader withoutEventAndFocus(MessageHeader header) {
+		MessageHeader copy = header.copy();
+		copy.setEvent(null);
+		copy.setFocus(new ArrayList<Reference>());
+		return copy;
+	}
+
+	private static List<String> references(List<Reference> focus) {
+		List<String> references = new ArrayList<String>();
+		for (Reference reference : focus) {
+			references.add(reference.getReference());
+		}
+		return references;
+	}
+}
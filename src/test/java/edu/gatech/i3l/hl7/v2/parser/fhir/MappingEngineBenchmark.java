@@ -0,0 +1,93 @@
+package edu.gatech.i3l.hl7.v2.parser.fhir;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingContext;
+import edu.gatech.i3l.hl7.v2.parser.mapping.MappingEngine;
+
+/*
+ * Per-message cost of mapping an ORU^R01 to FHIR with the hand written parsers and with
+ * the compiled mapping spec (MappingEngine), for R4 and STU3. Not a unit test. Run from
+ * the project directory:
+ *
+ *   java -cp target/classes:target/test-classes:<dependencies> \
+ *       edu.gatech.i3l.hl7.v2.parser.fhir.MappingEngineBenchmark [messages] [observations]
+ *
+ * A new hand written parser is made for every message, as canProcess does.
+ */
+public class MappingEngineBenchmark {
+	interface Mapper {
+		List<IBaseBundle> map(Message msg) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int observations = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+		Message msg = PipeParser.getInstanceWithNoValidation().parse(message(observations));
+
+		final MappingEngine r4 = MappingEngine.get(FhirContext.forR4());
+		final MappingEngine stu3 = MappingEngine.get(FhirContext.forDstu3());
+		Mapper[] mappers = { new Mapper() {
+			public List<IBaseBundle> map(Message msg) {
+				return new HL7v23FhirR4Parser().executeParser(msg);
+			}
+		}, new Mapper() {
+			public List<IBaseBundle> map(Message msg) throws Exception {
+				return r4.map(msg, MappingContext.forMessage(msg));
+			}
+		}, new Mapper() {
+			public List<IBaseBundle> map(Message msg) {
+				return new HL7v23FhirStu3Parser().executeParser(msg);
+			}
+		}, new Mapper() {
+			public List<IBaseBundle> map(Message msg) throws Exception {
+				return stu3.map(msg, MappingContext.forMessage(msg));
+			}
+		} };
+		String[] names = { "R4 hand written", "R4 mapping spec", "STU3 hand written", "STU3 mapping spec" };
+
+		// Warm up the JIT, so only the steady state is measured.
+		for (Mapper mapper : mappers) {
+			run(mapper, msg, messages / 2);
+		}
+
+		System.out.println(String.format("%-20s %14s", "", "us/message"));
+		for (int i = 0; i < mappers.length; i++) {
+			long start = System.nanoTime();
+			run(mappers[i], msg, messages);
+			double micros = (System.nanoTime() - start) / 1e3 / messages;
+			System.out.println(String.format("%-20s %14.1f", names[i], micros));
+		}
+	}
+
+	static void run(Mapper mapper, Message msg, int messages) throws Exception {
+		for (int i = 0; i < messages; i++) {
+			if (mapper.map(msg) == null)
+				throw new IllegalStateException("No bundles");
+		}
+	}
+
+	static String message(int observations) {
+		StringBuilder msg = new StringBuilder();
+		msg.append("MSH|^~\\&|NMS|NMS^2.16.840.1.113883.3.1234^ISO|MDI|FULTON^urn:mdi:fulton^URI|20200302120000||ORU^R01^ORU_R01|MSG00001|P|2.3\r");
+		msg.append("PID|1|21-00457|WO12345^^^^WO~AC778^^^^AN||DOE^JOHN||19700101|M\r");
+		msg.append("OBR|1|||8052B^Postmortem Toxicology - Expanded|||20200301090000\r");
+		for (int i = 0; i < observations; i++) {
+			if (i % 3 == 2) {
+				msg.append("OBX|" + (i + 1) + "|ST|3349-" + i + "^Toxicology analyte " + i + "^LN||None Detected||"
+						+ "Negative||||F|||20200301100000\r");
+			} else {
+				msg.append("OBX|" + (i + 1) + "|NM|3349-" + i + "^Toxicology analyte " + i + "^LN||" + (12.5 + i)
+						+ "|mcg/L^^UCUM|" + (50 + i) + "|H|||F|||20200301100000\r");
+			}
+			msg.append("NTE|1|METHOD|Liquid Chromatography/Tandem Mass Spectrometry (LC-MS/MS)\r");
+			msg.append("NTE|2||Reporting limit 5.0 mcg/L\r");
+		}
+		return msg.toString();
+	}
+}